@@ -0,0 +1,50 @@
+package app;
+
+import metrics.Metrics;
+import server.MessageServer;
+import service.MessageService;
+import service.UserService;
+import storage.StorageLayout;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Entry point for running CryptoMessenger as a network server.
+ */
+public class Server {
+    /**
+     * Starts the server and runs until the process is stopped, then prints its metrics.
+     * It listens on the loopback address unless the {@code cryptomessenger.server.bind} system
+     * property names another one; the protocol itself is not encrypted.
+     * @param args optional port (default 7070) and storage root (default {@link StorageLayout#defaultRoot()})
+     * @throws Exception if the server cannot start
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+        Path directory = args.length > 1 ? Paths.get(args[1]) : StorageLayout.defaultRoot();
+        String bind = System.getProperty("cryptomessenger.server.bind");
+        InetAddress bindAddress = bind != null ? InetAddress.getByName(bind) : InetAddress.getLoopbackAddress();
+
+        UserService userService = new UserService(directory);
+        MessageService messageService = new MessageService(directory);
+        MessageServer server = new MessageServer(userService, messageService, bindAddress, port);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (Exception e) {
+                System.err.println("Failed to stop server: " + e.getMessage());
+            }
+            messageService.close();
+            Metrics.dump(System.out);
+            stopped.countDown();
+        }));
+
+        server.start();
+        System.out.println("CryptoMessenger server listening on " + bindAddress.getHostAddress() + ":" + server.getPort());
+        stopped.await();
+    }
+}
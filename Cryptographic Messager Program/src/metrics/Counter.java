@@ -0,0 +1,56 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic, lock-free counter, e.g. of operations or bytes processed.
+ * Obtained from {@link Metrics#counter}.
+ */
+public final class Counter {
+
+    private final String name;
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the counter's name.
+     * @return the name
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Adds one, unless metrics are disabled.
+     */
+    public void increment() {
+        if (Metrics.enabled) {
+            value.increment();
+        }
+    }
+
+    /**
+     * Adds an amount, unless metrics are disabled.
+     * @param amount the amount
+     */
+    public void add(long amount) {
+        if (Metrics.enabled) {
+            value.add(amount);
+        }
+    }
+
+    /**
+     * Returns the current total.
+     * @return the total
+     */
+    public long get() {
+        return value.sum();
+    }
+
+    void reset() {
+        value.reset();
+    }
+}
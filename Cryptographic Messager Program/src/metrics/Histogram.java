@@ -0,0 +1,138 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, such as latencies in nanoseconds or sizes in bytes.
+ * Obtained from {@link Metrics#timer} or {@link Metrics#histogram}.
+ * <p>
+ * Like an HDR histogram, buckets are log-linear: values below {@value #SUB_BUCKETS} have a bucket
+ * each, and every power-of-two range above is split into {@value #SUB_BUCKETS} equal buckets.
+ * Recorded values are thus kept to within about 3% over the whole {@code long} range in a fixed
+ * array, and recording is a few arithmetic operations and lock-free updates.
+ */
+public final class Histogram {
+
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final Unit unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Unit of the recorded values.
+     */
+    public enum Unit {
+        /** Latencies, recorded in nanoseconds. */
+        NANOSECONDS,
+        /** Sizes, recorded in bytes. */
+        BYTES
+    }
+
+    Histogram(String name, Unit unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    /**
+     * Returns the histogram's name.
+     * @return the name
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Returns the unit of the recorded values.
+     * @return the unit
+     */
+    public Unit unit() {
+        return unit;
+    }
+
+    /**
+     * Records a value, unless metrics are disabled. Negative values are recorded as zero.
+     * @param value the value
+     */
+    public void record(long value) {
+        if (!Metrics.enabled) {
+            return;
+        }
+        long v = Math.max(value, 0);
+        counts.incrementAndGet(bucket(v));
+        sum.add(v);
+        if (v > max.get()) {
+            max.accumulateAndGet(v, Math::max);
+        }
+    }
+
+    /**
+     * Records the time since {@link Metrics#start()} and, while a JFR recording with the
+     * {@code metrics.Operation} event is running, emits that event.
+     *
+     * @param start the value returned by {@link Metrics#start()}
+     */
+    public void recordSince(long start) {
+        if (start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        record(nanos);
+        if (Metrics.jfrStarted()) {
+            OperationEvent event = new OperationEvent();
+            if (event.isEnabled()) {
+                event.operation = name;
+                event.latency = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /** @return the largest value that falls into a bucket */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Takes a consistent copy of the bucket counts for percentile calculations.
+     *
+     * @return the snapshot
+     */
+    public MetricsSnapshot.HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new MetricsSnapshot.HistogramSnapshot(name, unit, copy, count, sum.sum(), max.get());
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+    }
+}
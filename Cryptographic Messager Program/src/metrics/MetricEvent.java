@@ -0,0 +1,43 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * Periodic JFR event carrying the current value of one metric, emitted for every registered
+ * counter and histogram while a recording enables it.
+ */
+@Name("metrics.Metric")
+@Label("Metric")
+@Category("CryptoMessenger")
+@Description("Current value of a counter or histogram")
+@StackTrace(false)
+@Period("10 s")
+final class MetricEvent extends jdk.jfr.Event {
+
+    @Label("Name")
+    String name;
+
+    @Label("Count")
+    @Description("Counter total, or number of recorded values")
+    long count;
+
+    @Label("Unit")
+    String unit;
+
+    @Label("Mean")
+    double mean;
+
+    @Label("50th Percentile")
+    long p50;
+
+    @Label("99th Percentile")
+    long p99;
+
+    @Label("Maximum")
+    long max;
+}
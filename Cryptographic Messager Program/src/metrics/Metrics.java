@@ -0,0 +1,190 @@
+package metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide registry of counters and histograms for the hot paths of the services.
+ * <p>
+ * Metrics are registered once by name, usually into static fields of the class that updates
+ * them, and shared by every instance of that class. Updating a metric is lock-free and
+ * allocation-free. {@link #snapshot()} copies every metric for export as plain text, and while a
+ * JFR recording is running the registry emits a {@code metrics.Metric} event per metric every
+ * ten seconds, plus a {@code metrics.Operation} event per timed operation. The periodic event
+ * is registered at the first timed operation after JFR starts.
+ * <p>
+ * Metrics are enabled unless the {@code cryptomessenger.metrics} system property is
+ * {@code false}; {@link #setEnabled} switches them at runtime.
+ */
+public final class Metrics {
+
+    static volatile boolean enabled = !"false".equals(System.getProperty("cryptomessenger.metrics"));
+
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private static final boolean JFR_PRESENT = isJfrPresent();
+    private static volatile boolean periodicEventRegistered;
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the counter with the given name, registering it on first use.
+     *
+     * @param name the name, e.g. {@code "crypto.aes.bytes_encrypted"}
+     * @return the counter
+     */
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, Counter::new);
+    }
+
+    /**
+     * Returns the latency histogram with the given name, registering it on first use.
+     *
+     * @param name the operation name, e.g. {@code "message.send"}
+     * @return the histogram, recording nanoseconds
+     * @throws IllegalArgumentException if the name is registered with another unit
+     */
+    public static Histogram timer(String name) {
+        return histogram(name, Histogram.Unit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the histogram with the given name, registering it on first use.
+     *
+     * @param name the name
+     * @param unit the unit of the recorded values
+     * @return the histogram
+     * @throws IllegalArgumentException if the name is registered with another unit
+     */
+    public static Histogram histogram(String name, Histogram.Unit unit) {
+        Histogram histogram = histograms.computeIfAbsent(name, key -> new Histogram(key, unit));
+        if (histogram.unit() != unit) {
+            throw new IllegalArgumentException("Histogram " + name + " is registered in " + histogram.unit());
+        }
+        return histogram;
+    }
+
+    /**
+     * Starts timing an operation; pass the result to {@link Histogram#recordSince}.
+     *
+     * @return the start time, or 0 if metrics are disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Enables or disables recording. Disabled metrics keep their values.
+     *
+     * @param enabled whether updates are recorded
+     */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * Checks whether updates are recorded.
+     *
+     * @return {@code true} if metrics are enabled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Copies the current value of every metric.
+     *
+     * @return the snapshot, sorted by name
+     */
+    public static MetricsSnapshot snapshot() {
+        List<MetricsSnapshot.CounterSnapshot> counterValues = new ArrayList<>(counters.size());
+        for (Counter counter : counters.values()) {
+            counterValues.add(new MetricsSnapshot.CounterSnapshot(counter.name(), counter.get()));
+        }
+        List<MetricsSnapshot.HistogramSnapshot> histogramValues = new ArrayList<>(histograms.size());
+        for (Histogram histogram : histograms.values()) {
+            histogramValues.add(histogram.snapshot());
+        }
+        return new MetricsSnapshot(counterValues, histogramValues);
+    }
+
+    /**
+     * Writes {@link #snapshot()} as plain text, one metric per line.
+     *
+     * @param out the destination
+     */
+    public static void dump(Appendable out) {
+        try {
+            out.append(snapshot().toText());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Sets every metric back to zero, e.g. between benchmark runs.
+     */
+    public static void reset() {
+        counters.values().forEach(Counter::reset);
+        histograms.values().forEach(Histogram::reset);
+    }
+
+    /**
+     * Checks whether JFR has been started in this process, registering the periodic metric event
+     * the first time it has. Event classes are only loaded from then on, since loading them
+     * initializes parts of JFR and would slow down the first timed operation otherwise.
+     *
+     * @return {@code true} if JFR events may be emitted
+     */
+    static boolean jfrStarted() {
+        if (!JFR_PRESENT || !jdk.jfr.FlightRecorder.isInitialized()) {
+            return false;
+        }
+        if (!periodicEventRegistered) {
+            synchronized (Metrics.class) {
+                if (!periodicEventRegistered) {
+                    jdk.jfr.FlightRecorder.addPeriodicEvent(MetricEvent.class, Metrics::emitMetricEvents);
+                    periodicEventRegistered = true;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isJfrPresent() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder", false, Metrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            // Runtime without the jdk.jfr module: the text export still works
+            return false;
+        }
+    }
+
+    private static void emitMetricEvents() {
+        MetricsSnapshot snapshot = snapshot();
+        for (MetricsSnapshot.CounterSnapshot counter : snapshot.counters()) {
+            MetricEvent event = new MetricEvent();
+            event.name = counter.name();
+            event.count = counter.value();
+            event.commit();
+        }
+        for (MetricsSnapshot.HistogramSnapshot histogram : snapshot.histograms()) {
+            MetricEvent event = new MetricEvent();
+            event.name = histogram.name();
+            event.count = histogram.count();
+            event.unit = histogram.unit().name();
+            event.mean = histogram.mean();
+            event.p50 = histogram.percentile(50);
+            event.p99 = histogram.percentile(99);
+            event.max = histogram.max();
+            event.commit();
+        }
+    }
+}
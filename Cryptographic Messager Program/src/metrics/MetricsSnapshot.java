@@ -0,0 +1,167 @@
+package metrics;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Point-in-time copy of the registered metrics, from {@link Metrics#snapshot()}.
+ */
+public final class MetricsSnapshot {
+
+    private final List<CounterSnapshot> counters;
+    private final List<HistogramSnapshot> histograms;
+
+    MetricsSnapshot(List<CounterSnapshot> counters, List<HistogramSnapshot> histograms) {
+        counters.sort(Comparator.comparing(CounterSnapshot::name));
+        histograms.sort(Comparator.comparing(HistogramSnapshot::name));
+        this.counters = Collections.unmodifiableList(counters);
+        this.histograms = Collections.unmodifiableList(histograms);
+    }
+
+    /**
+     * Returns the counters, sorted by name.
+     * @return the counters
+     */
+    public List<CounterSnapshot> counters() {
+        return counters;
+    }
+
+    /**
+     * Returns the histograms, sorted by name.
+     * @return the histograms
+     */
+    public List<HistogramSnapshot> histograms() {
+        return histograms;
+    }
+
+    /**
+     * Formats the snapshot as plain text, one metric per line. Latencies are shown in
+     * microseconds, e.g.
+     * <pre>
+     * counter crypto.rsa.encrypt 1200
+     * timer message.send count=1200 mean=85.1us p50=80us p90=110us p99=240us p999=900us max=1520us
+     * </pre>
+     *
+     * @return the text, ending with a line separator
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        for (CounterSnapshot counter : counters) {
+            text.append("counter ").append(counter.name()).append(' ').append(counter.value())
+                    .append(System.lineSeparator());
+        }
+        for (HistogramSnapshot histogram : histograms) {
+            boolean nanos = histogram.unit() == Histogram.Unit.NANOSECONDS;
+            String suffix = nanos ? "us" : "B";
+            double scale = nanos ? 1_000.0 : 1.0;
+            text.append(nanos ? "timer " : "histogram ").append(histogram.name())
+                    .append(" count=").append(histogram.count())
+                    .append(String.format(Locale.ROOT, " mean=%.1f%s", histogram.mean() / scale, suffix));
+            for (double percentile : new double[] {50, 90, 99, 99.9}) {
+                text.append(" p").append(percentile == 99.9 ? "999" : String.valueOf((int) percentile))
+                        .append('=').append(Math.round(histogram.percentile(percentile) / scale)).append(suffix);
+            }
+            text.append(" max=").append(Math.round(histogram.max() / scale)).append(suffix)
+                    .append(System.lineSeparator());
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+
+    /**
+     * Value of one counter.
+     */
+    public static final class CounterSnapshot {
+        private final String name;
+        private final long value;
+
+        CounterSnapshot(String name, long value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        /** @return the counter's name */
+        public String name() {
+            return name;
+        }
+
+        /** @return the counter's total */
+        public long value() {
+            return value;
+        }
+    }
+
+    /**
+     * Bucket counts of one histogram.
+     */
+    public static final class HistogramSnapshot {
+        private final String name;
+        private final Histogram.Unit unit;
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        HistogramSnapshot(String name, Histogram.Unit unit, long[] counts, long count, long sum, long max) {
+            this.name = name;
+            this.unit = unit;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /** @return the histogram's name */
+        public String name() {
+            return name;
+        }
+
+        /** @return the unit of the recorded values */
+        public Histogram.Unit unit() {
+            return unit;
+        }
+
+        /** @return the number of recorded values */
+        public long count() {
+            return count;
+        }
+
+        /** @return the mean of the recorded values, or 0 if there are none */
+        public double mean() {
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        /** @return the largest recorded value */
+        public long max() {
+            return max;
+        }
+
+        /**
+         * Returns a value at or above the given share of the recorded values, accurate to the
+         * histogram's bucket width and never above the maximum.
+         *
+         * @param percentile the percentile, from 0 to 100
+         * @return the value, or 0 if there are no values
+         */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(Histogram.upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event for one timed operation, e.g. a send or a login. Only committed while a recording
+ * enables it, so it costs nothing otherwise.
+ */
+@Name("metrics.Operation")
+@Label("Operation")
+@Category("CryptoMessenger")
+@Description("A timed service operation")
+@StackTrace(false)
+final class OperationEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    long latency;
+}
@@ -0,0 +1,68 @@
+package model;
+
+/**
+ * The result of decrypting one inbox message: its position, the message itself,
+ * and either its plaintext or the reason decryption failed.
+ */
+public class DecryptedMessage {
+
+    private final int index;
+    private final Message message;
+    private final String content;
+    private final Exception error;
+
+    /**
+     * Constructs a new DecryptedMessage.
+     *
+     * @param index the message's index in the inbox
+     * @param message the encrypted message
+     * @param content the decrypted content, or {@code null} if decryption failed
+     * @param error the decryption failure, or {@code null} on success
+     */
+    public DecryptedMessage(int index, Message message, String content, Exception error) {
+        this.index = index;
+        this.message = message;
+        this.content = content;
+        this.error = error;
+    }
+
+    /**
+     * Gets the message's index in the inbox.
+     * @return the index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Gets the encrypted message.
+     * @return the message
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Gets the decrypted content (the file name for attachment messages).
+     * @return the content, or {@code null} if decryption failed
+     */
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * Gets the decryption failure.
+     * @return the error, or {@code null} if decryption succeeded
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * Checks whether decryption succeeded.
+     * @return {@code true} if the content is available
+     */
+    public boolean isDecrypted() {
+        return error == null;
+    }
+}
@@ -1,9 +1,11 @@
 package model;
 
+import util.Compression;
 import util.CryptoUtil;
 
 import javax.crypto.SecretKey;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.security.PrivateKey;
 import java.time.LocalDateTime;
 
@@ -12,10 +14,18 @@ import java.time.LocalDateTime;
  */
 public class Message implements Serializable {
 
+    private static final long serialVersionUID = -8364644823462604652L;
+
     private byte[] encryptedContent;
     private byte[] encryptedAESKey;
     private String senderUsername;
     private LocalDateTime timestamp;
+    private String attachmentId;
+    private long sessionKeyId;
+    private String contentBlobId;
+    private boolean compressed;
+    // Position in the recipient's inbox log; not part of the stored record
+    private transient long sequence = -1;
 
     /**
      * Constructs a new Message.
@@ -25,10 +35,22 @@ public class Message implements Serializable {
      * @param senderUsername the sender's username
      */
     public Message(byte[] encryptedContent, byte[] encryptedAESKey, String senderUsername) {
+        this(encryptedContent, encryptedAESKey, senderUsername, LocalDateTime.now());
+    }
+
+    /**
+     * Constructs a Message with an explicit timestamp, e.g. when decoding a stored message.
+     *
+     * @param encryptedContent the encrypted message content
+     * @param encryptedAESKey the AES key encrypted with recipient's public key
+     * @param senderUsername the sender's username
+     * @param timestamp the time the message was sent
+     */
+    public Message(byte[] encryptedContent, byte[] encryptedAESKey, String senderUsername, LocalDateTime timestamp) {
         this.encryptedContent = encryptedContent;
         this.senderUsername = senderUsername;
         this.encryptedAESKey = encryptedAESKey;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
     }
 
     /**
@@ -63,6 +85,128 @@ public class Message implements Serializable {
         return timestamp;
     }
 
+    /**
+     * Gets the id of the encrypted attachment stored with this message.
+     * For attachment messages the encrypted content holds the attachment's file name.
+     * @return the attachment id, or {@code null} for a plain text message
+     */
+    public String getAttachmentId() {
+        return attachmentId;
+    }
+
+    /**
+     * Sets the id of the encrypted attachment stored with this message.
+     * @param attachmentId the attachment id
+     */
+    public void setAttachmentId(String attachmentId) {
+        this.attachmentId = attachmentId;
+    }
+
+    /**
+     * Checks whether this message carries an attachment.
+     * @return {@code true} if the message has an attachment
+     */
+    public boolean hasAttachment() {
+        return attachmentId != null;
+    }
+
+    /**
+     * Gets the id of the blob holding this message's encrypted content, for messages whose
+     * content is shared by several recipients. The encrypted content of such messages is empty.
+     * @return the content blob id, or {@code null} if the content is stored in the message
+     */
+    public String getContentBlobId() {
+        return contentBlobId;
+    }
+
+    /**
+     * Sets the id of the blob holding this message's encrypted content.
+     * @param contentBlobId the content blob id
+     */
+    public void setContentBlobId(String contentBlobId) {
+        this.contentBlobId = contentBlobId;
+    }
+
+    /**
+     * Checks whether this message's content is stored in a shared blob.
+     * @return {@code true} for messages sent to several recipients at once
+     */
+    public boolean hasSharedContent() {
+        return contentBlobId != null;
+    }
+
+    /**
+     * Checks whether this message's content was compressed before it was encrypted.
+     * {@link #decrypt(SecretKey)} inflates such content transparently.
+     * @return {@code true} if the plaintext is deflate-compressed
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Sets whether this message's content was compressed before it was encrypted.
+     * @param compressed {@code true} if the plaintext is deflate-compressed
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Gets the id of the session key this message was encrypted with.
+     * Session messages carry no wrapped key of their own.
+     * @return the session key id, or {@code 0} if the message has its own wrapped key
+     */
+    public long getSessionKeyId() {
+        return sessionKeyId;
+    }
+
+    /**
+     * Sets the id of the session key this message was encrypted with.
+     * @param sessionKeyId the session key id
+     */
+    public void setSessionKeyId(long sessionKeyId) {
+        this.sessionKeyId = sessionKeyId;
+    }
+
+    /**
+     * Checks whether this message was encrypted with a shared session key.
+     * @return {@code true} for session messages
+     */
+    public boolean usesSessionKey() {
+        return sessionKeyId != 0;
+    }
+
+    /**
+     * Gets this message's sequence number in its recipient's inbox.
+     * @return the sequence number, or {@code -1} if the message was not read from or written to an inbox
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Sets this message's sequence number in its recipient's inbox.
+     * @param sequence the sequence number
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Decrypts the AES key protecting this message (and its attachment, if any).
+     *
+     * @param privateKey the recipient's private RSA or X25519 key
+     * @return the AES key
+     * @throws Exception if decryption fails
+     */
+    public SecretKey decryptKey(PrivateKey privateKey) throws Exception {
+        if (usesSessionKey()) {
+            throw new IllegalStateException("Session messages must be decrypted with their session key.");
+        }
+        return CryptoUtil.unwrapKey(this.encryptedAESKey, privateKey);
+    }
+
     /**
      * Decrypts the message using the recipient's private key.
      *
@@ -71,12 +215,57 @@ public class Message implements Serializable {
      * @throws Exception if decryption fails
      */
     public String decrypt(PrivateKey privateKey) throws Exception {
+        return decrypt(decryptKey(privateKey));
+    }
+
+    /**
+     * Decrypts the message content into a caller-supplied (possibly direct) buffer.
+     * The content is written as stored, so this is only for uncompressed messages.
+     *
+     * @param privateKey the recipient's private RSA key
+     * @param out the destination, with at least {@code CryptoUtil.decryptedSize(getEncryptedContent().length)} bytes remaining
+     * @return the number of plaintext bytes written
+     * @throws Exception if decryption fails
+     */
+    public int decrypt(PrivateKey privateKey, ByteBuffer out) throws Exception {
         // Decrypt AES key with recipient's private RSA key
-        byte[] aesKeyBytes = CryptoUtil.decryptRSA(this.encryptedAESKey, privateKey);
-        SecretKey aesKey = CryptoUtil.restoreAESKey(aesKeyBytes);
+        return decrypt(decryptKey(privateKey), out);
+    }
 
-        // Decrypt message content with AES key
-        return CryptoUtil.decryptAES(this.encryptedContent, aesKey);
+    /**
+     * Decrypts the message with an already unwrapped AES key.
+     *
+     * @param aesKey the message's AES key
+     * @return the decrypted message content
+     * @throws Exception if decryption fails
+     */
+    public String decrypt(SecretKey aesKey) throws Exception {
+        if (hasSharedContent()) {
+            throw new IllegalStateException("Shared content must be read from its blob.");
+        }
+        byte[] plainBytes = new byte[CryptoUtil.decryptedSize(this.encryptedContent.length)];
+        int length = CryptoUtil.decryptAES(ByteBuffer.wrap(this.encryptedContent), ByteBuffer.wrap(plainBytes), aesKey);
+        return Compression.toText(plainBytes, length, compressed);
+    }
+
+    /**
+     * Decrypts the message content into a caller-supplied buffer with an already unwrapped AES key.
+     * The content is written as stored, so this is only for uncompressed messages.
+     *
+     * @param aesKey the message's AES key
+     * @param out the destination buffer
+     * @return the number of plaintext bytes written
+     * @throws Exception if decryption fails
+     */
+    public int decrypt(SecretKey aesKey, ByteBuffer out) throws Exception {
+        if (hasSharedContent()) {
+            throw new IllegalStateException("Shared content must be read from its blob.");
+        }
+        if (compressed) {
+            throw new IllegalStateException("Compressed content must be decrypted to a String.");
+        }
+        // Decrypt message content with AES key, reading the stored ciphertext in place
+        return CryptoUtil.decryptAES(ByteBuffer.wrap(this.encryptedContent), out, aesKey);
     }
 
 }
@@ -5,17 +5,26 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Represents a user in the CryptoMessenger application.
  * Stores username, password hash, RSA keys, and inbox.
  */
 public class User implements Serializable {
+
+    private static final long serialVersionUID = 4400448008676201852L;
+
+    /** Most characters a username may have. */
+    public static final int MAX_USERNAME_LENGTH = 64;
+
+    private static final Pattern USERNAME = Pattern.compile("[A-Za-z0-9_.-]{1," + MAX_USERNAME_LENGTH + "}");
+
     private String username;
     private String passwordHash;
     private PublicKey publicKey;
     private PrivateKey privateKey;
-    private List<Message> inbox;
+    private transient List<Message> inbox; // Persisted in the user's inbox log, not with the user
 
     /**
      * Constructs a new User.
@@ -29,6 +38,34 @@ public class User implements Serializable {
         this.inbox = new ArrayList<>();
     }
 
+    /**
+     * Returns whether a username is valid: 1 to {@value #MAX_USERNAME_LENGTH} ASCII letters, digits,
+     * {@code _}, {@code .} or {@code -}, and no {@code ..}. Only new registrations are held to this;
+     * accounts from before it may have any name, so paths and keys built from a username must not
+     * rely on it.
+     *
+     * @param username the username
+     * @return whether the username is valid
+     */
+    public static boolean isValidUsername(String username) {
+        return username != null && USERNAME.matcher(username).matches() && !username.contains("..");
+    }
+
+    /**
+     * Checks that a username is valid (see {@link #isValidUsername}).
+     *
+     * @param username the username
+     * @return the username
+     * @throws IllegalArgumentException if the username is invalid
+     */
+    public static String checkUsername(String username) {
+        if (!isValidUsername(username)) {
+            throw new IllegalArgumentException("Invalid username: use 1 to " + MAX_USERNAME_LENGTH
+                    + " letters, digits, '_', '.' or '-'.");
+        }
+        return username;
+    }
+
     // Getters and setters
 
     /**
@@ -83,15 +120,26 @@ public class User implements Serializable {
      * Gets the inbox (list of messages).
      * @return the inbox
      */
-    public List<Message> getInbox() {
+    public synchronized List<Message> getInbox() {
+        if (inbox == null) {
+            inbox = new ArrayList<>();
+        }
         return inbox;
     }
 
+    /**
+     * Replaces the inbox list, e.g. with a lazily loaded view.
+     * @param inbox the new inbox
+     */
+    public synchronized void setInbox(List<Message> inbox) {
+        this.inbox = inbox;
+    }
+
     /**
      * Adds a message to the inbox.
      * @param message the message to add
      */
-    public void addMessage(Message message) {
-        this.inbox.add(message);
+    public synchronized void addMessage(Message message) {
+        getInbox().add(message);
     }
 }
\ No newline at end of file
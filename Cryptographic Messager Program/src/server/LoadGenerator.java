@@ -0,0 +1,96 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Local load generator for {@link MessageServer}.
+ * <p>
+ * Registers {@code clients} users, then has each of them send {@code messages} messages to the
+ * next user over its own connection, all at once. Prints the send rate and latency percentiles.
+ * <pre>
+ * java -cp out server.LoadGenerator [host] [port] [clients] [messages] [messageSize]
+ * </pre>
+ */
+public class LoadGenerator {
+
+    /**
+     * Runs the load test.
+     * @param args host, port, clients, messages per client and message size, all optional
+     * @throws Exception if the setup fails
+     */
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int messageSize = args.length > 4 ? Integer.parseInt(args[4]) : 256;
+
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        String password = "load-" + run;
+        char[] filler = new char[messageSize];
+        Arrays.fill(filler, 'x');
+        String content = new String(filler);
+
+        System.out.println("Registering " + clients + " users...");
+        try (MessageClient client = new MessageClient(host, port)) {
+            for (int i = 0; i < clients; i++) {
+                client.register(username(run, i), password);
+            }
+        }
+
+        long[][] latencies = new long[clients][messages];
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                try (MessageClient client = new MessageClient(host, port)) {
+                    client.login(username(run, index), password);
+                    String recipient = username(run, (index + 1) % clients);
+                    ready.countDown();
+                    start.await();
+                    for (int m = 0; m < messages; m++) {
+                        long begin = System.nanoTime();
+                        client.send(recipient, content);
+                        latencies[index][m] = System.nanoTime() - begin;
+                    }
+                } catch (Exception e) {
+                    System.err.println("Client " + index + " failed: " + e.getMessage());
+                    ready.countDown();
+                }
+            }, "load-client-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).filter(l -> l > 0).sorted().toArray();
+        if (all.length == 0) {
+            System.out.println("No messages sent.");
+            return;
+        }
+        System.out.printf("Sent %d messages in %.2f s: %.0f messages/s%n", all.length, seconds, all.length / seconds);
+        System.out.printf("Latency ms: p50 %.3f, p99 %.3f, max %.3f%n",
+                percentile(all, 0.50), percentile(all, 0.99), all[all.length - 1] / 1e6);
+    }
+
+    private static String username(String run, int index) {
+        return "load-" + run + "-" + index;
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,231 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Blocking client for {@link MessageServer}. One instance holds one connection and is not
+ * thread-safe.
+ */
+public class MessageClient implements AutoCloseable {
+
+    /**
+     * A message returned by {@link #fetchInbox}.
+     */
+    public static final class InboxEntry {
+        private final long sequence;
+        private final String sender;
+        private final LocalDateTime timestamp;
+        private final String content;
+        private final String error;
+
+        InboxEntry(long sequence, String sender, LocalDateTime timestamp, String content, String error) {
+            this.sequence = sequence;
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.content = content;
+            this.error = error;
+        }
+
+        /**
+         * Gets the message's sequence number, to pass as the cursor of the next {@link #fetchSince}.
+         * @return the sequence number, or {@code -1} for entries from {@link #fetchInbox}
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Gets the sender's username.
+         * @return the sender's username
+         */
+        public String getSender() {
+            return sender;
+        }
+
+        /**
+         * Gets the timestamp when the message was sent.
+         * @return the timestamp
+         */
+        public LocalDateTime getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Gets the decrypted content.
+         * @return the content, or {@code null} if the server could not decrypt it
+         */
+        public String getContent() {
+            return content;
+        }
+
+        /**
+         * Gets why the message could not be decrypted.
+         * @return the error message, or {@code null}
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /**
+     * Connects to a server.
+     *
+     * @param host the server host
+     * @param port the server port
+     * @throws IOException if the connection fails
+     */
+    public MessageClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Registers a new user.
+     *
+     * @param username the username
+     * @param password the password
+     * @throws IOException if the request fails
+     */
+    public void register(String username, String password) throws IOException {
+        call(Protocol.REGISTER, username, password);
+    }
+
+    /**
+     * Logs this connection in.
+     *
+     * @param username the username
+     * @param password the password
+     * @throws IOException if the request fails
+     */
+    public void login(String username, String password) throws IOException {
+        call(Protocol.LOGIN, username, password);
+    }
+
+    /**
+     * Sends a message from the logged-in user.
+     *
+     * @param recipient the recipient's username
+     * @param content   the message content
+     * @throws IOException if the request fails
+     */
+    public void send(String recipient, String content) throws IOException {
+        call(Protocol.SEND, recipient, content);
+    }
+
+    /**
+     * Fetches a page of the logged-in user's inbox, oldest first.
+     *
+     * @param offset the index of the first message
+     * @param limit  the maximum number of messages
+     * @return the messages
+     * @throws IOException if the request fails
+     */
+    public List<InboxEntry> fetchInbox(int offset, int limit) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream request = new DataOutputStream(body);
+        request.writeInt(offset);
+        request.writeInt(limit);
+        DataInputStream response = exchange(Protocol.FETCH_INBOX, body.toByteArray());
+
+        response.readInt(); // total
+        int count = response.readInt();
+        List<InboxEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(readEntry(-1, response));
+        }
+        return entries;
+    }
+
+    /**
+     * Fetches the logged-in user's messages after a cursor, oldest first.
+     * Pass the sequence number of the last entry received to get only newer messages,
+     * {@code -1} for the whole inbox or {@link Protocol#STORED_CURSOR} for unread messages.
+     *
+     * @param cursor the cursor
+     * @param limit  the maximum number of messages
+     * @return the messages
+     * @throws IOException if the request fails
+     */
+    public List<InboxEntry> fetchSince(long cursor, int limit) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream request = new DataOutputStream(body);
+        request.writeLong(cursor);
+        request.writeInt(limit);
+        DataInputStream response = exchange(Protocol.FETCH_SINCE, body.toByteArray());
+
+        int count = response.readInt();
+        List<InboxEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(readEntry(response.readLong(), response));
+        }
+        return entries;
+    }
+
+    /**
+     * Marks the logged-in user's messages up to and including the given one as read.
+     *
+     * @param sequence the sequence number of the newest read message
+     * @throws IOException if the request fails
+     */
+    public void markRead(long sequence) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        new DataOutputStream(body).writeLong(sequence);
+        exchange(Protocol.MARK_READ, body.toByteArray());
+    }
+
+    private static InboxEntry readEntry(long sequence, DataInputStream response) throws IOException {
+        String sender = Protocol.readString(response);
+        LocalDateTime timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(response.readLong()), ZoneOffset.UTC);
+        boolean decrypted = response.readBoolean();
+        String text = Protocol.readString(response);
+        return new InboxEntry(sequence, sender, timestamp, decrypted ? text : null, decrypted ? null : text);
+    }
+
+    private void call(byte operation, String first, String second) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream request = new DataOutputStream(body);
+        Protocol.writeString(request, first);
+        Protocol.writeString(request, second);
+        exchange(operation, body.toByteArray());
+    }
+
+    private DataInputStream exchange(byte operation, byte[] body) throws IOException {
+        Protocol.writeFrame(out, operation, body);
+        out.flush();
+        byte[] frame = Protocol.readFrame(in);
+        if (frame == null) {
+            throw new IOException("Connection closed by server");
+        }
+        DataInputStream response = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+        if (frame[0] != Protocol.OK) {
+            throw new IOException("Server error: " + Protocol.readString(response));
+        }
+        return response;
+    }
+
+    /**
+     * Closes the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,266 @@
+package server;
+
+import model.DecryptedMessage;
+import model.User;
+import service.MessageService;
+import service.UserService;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP front end exposing the user and message services over {@link Protocol}.
+ * <p>
+ * Each connection is served by its own task with blocking I/O. On Java 21 and later the tasks
+ * run on virtual threads, so idle connections cost no platform thread; on older runtimes they
+ * fall back to a cached pool of platform threads.
+ * <p>
+ * The protocol has no transport security: passwords and message content travel in plaintext.
+ * The server therefore binds to the loopback address unless given another one; expose it only
+ * behind a TLS-terminating proxy or on a trusted network.
+ */
+public class MessageServer implements AutoCloseable {
+
+    private static final int MAX_FETCH_LIMIT = 1000;
+
+    private final UserService userService;
+    private final MessageService messageService;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+
+    /**
+     * Binds the server socket to the loopback address. Call {@link #start()} to accept connections.
+     *
+     * @param userService    the user service
+     * @param messageService the message service
+     * @param port           the TCP port, or {@code 0} for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public MessageServer(UserService userService, MessageService messageService, int port) throws IOException {
+        this(userService, messageService, InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Binds the server socket. Call {@link #start()} to accept connections.
+     *
+     * @param userService    the user service
+     * @param messageService the message service
+     * @param bindAddress    the local address to listen on
+     * @param port           the TCP port, or {@code 0} for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public MessageServer(UserService userService, MessageService messageService, InetAddress bindAddress, int port)
+            throws IOException {
+        this.userService = userService;
+        this.messageService = messageService;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(bindAddress, port), 1024);
+        this.connections = newConnectionExecutor();
+        this.acceptor = new Thread(this::acceptLoop, "message-server-acceptor");
+    }
+
+    // Virtual threads through reflection, so the code still compiles for Java 17
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "message-server-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     */
+    public void start() {
+        acceptor.start();
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     *
+     * @return the local port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.execute(() -> serve(socket));
+            } catch (SocketException e) {
+                // Server socket closed
+            } catch (IOException e) {
+                System.err.println("Failed to accept connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        openSockets.add(socket);
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            Session session = new Session();
+            byte[] frame;
+            while ((frame = Protocol.readFrame(in)) != null) {
+                DataInputStream request = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                DataOutputStream response = new DataOutputStream(body);
+                byte status = Protocol.OK;
+                try {
+                    session.handle(frame[0], request, response);
+                } catch (Exception e) {
+                    status = Protocol.ERROR;
+                    body.reset();
+                    Protocol.writeString(response, e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+                Protocol.writeFrame(out, status, body.toByteArray());
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Connection dropped or sent a malformed frame
+        } finally {
+            openSockets.remove(socket);
+        }
+    }
+
+    /**
+     * Per-connection state: the user the connection is logged in as.
+     */
+    private final class Session {
+        private User user;
+
+        void handle(byte operation, DataInputStream request, DataOutputStream response) throws Exception {
+            switch (operation) {
+                case Protocol.REGISTER:
+                    userService.register(Protocol.readString(request), Protocol.readString(request));
+                    break;
+                case Protocol.LOGIN:
+                    user = userService.login(Protocol.readString(request), Protocol.readString(request));
+                    break;
+                case Protocol.SEND:
+                    send(Protocol.readString(request), Protocol.readString(request));
+                    break;
+                case Protocol.FETCH_INBOX:
+                    fetchInbox(request.readInt(), request.readInt(), response);
+                    break;
+                case Protocol.FETCH_SINCE:
+                    fetchSince(request.readLong(), request.readInt(), response);
+                    break;
+                case Protocol.MARK_READ:
+                    messageService.markRead(requireLogin(), request.readLong());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + operation);
+            }
+        }
+
+        private User requireLogin() {
+            if (user == null) {
+                throw new IllegalStateException("Not logged in.");
+            }
+            return user;
+        }
+
+        private void send(String recipientName, String content) throws Exception {
+            User sender = requireLogin();
+            if (!userService.userExists(recipientName)) {
+                throw new IllegalArgumentException("Recipient not found.");
+            }
+            User recipient = new User(recipientName, null);
+            recipient.setPublicKey(userService.getUserPublicKey(recipientName));
+            messageService.sendMessage(sender, recipient, content);
+        }
+
+        private void fetchInbox(int offset, int limit, DataOutputStream response) throws Exception {
+            User current = requireLogin();
+            if (offset < 0 || limit < 0) {
+                throw new IllegalArgumentException("Offset and limit must not be negative.");
+            }
+            // Only the requested page is read, however large the inbox is
+            int total = (int) Math.min(messageService.inboxSize(current), Integer.MAX_VALUE);
+            List<DecryptedMessage> page = new ArrayList<>();
+            messageService.decryptMessages(current,
+                    messageService.fetchPage(current, offset, Math.min(limit, MAX_FETCH_LIMIT)), page::add);
+
+            response.writeInt(total);
+            response.writeInt(page.size());
+            for (DecryptedMessage message : page) {
+                writeEntry(message, response);
+            }
+        }
+
+        // Reads only the messages after the cursor; content this session has seen is cached
+        private void fetchSince(long cursor, int limit, DataOutputStream response) throws Exception {
+            User current = requireLogin();
+            if (limit < 0) {
+                throw new IllegalArgumentException("Limit must not be negative.");
+            }
+            long after = cursor == Protocol.STORED_CURSOR ? messageService.getReadCursor(current) : cursor;
+            List<DecryptedMessage> page = new ArrayList<>();
+            messageService.decryptMessages(current,
+                    messageService.fetchSince(current, after, Math.min(limit, MAX_FETCH_LIMIT)), page::add);
+
+            response.writeInt(page.size());
+            for (DecryptedMessage message : page) {
+                response.writeLong(message.getMessage().getSequence());
+                writeEntry(message, response);
+            }
+        }
+
+        private void writeEntry(DecryptedMessage message, DataOutputStream response) throws IOException {
+            Protocol.writeString(response, message.getMessage().getSenderUsername());
+            response.writeLong(message.getMessage().getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli());
+            response.writeBoolean(message.isDecrypted());
+            Protocol.writeString(response, message.isDecrypted()
+                    ? message.getContent()
+                    : String.valueOf(message.getError().getMessage()));
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        // Blocked socket reads ignore interrupts, so close the sockets themselves
+        for (Socket socket : openSockets) {
+            socket.close();
+        }
+        connections.shutdownNow();
+        try {
+            connections.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary protocol spoken between {@link MessageServer} and {@link MessageClient}.
+ * <p>
+ * Every frame is {@code [int length][byte type][body]}, where {@code length} counts the type byte
+ * and the body. Requests use an operation code as their type and responses a status. Strings are
+ * written as {@code int length + UTF-8 bytes}.
+ * <pre>
+ * REGISTER     username, password          -&gt; OK
+ * LOGIN        username, password          -&gt; OK
+ * SEND         recipient, content          -&gt; OK
+ * FETCH_INBOX  int offset, int limit       -&gt; OK int total, int count,
+ *                                             count * (sender, long epochMillis, byte ok, content or error)
+ * FETCH_SINCE  long cursor, int limit      -&gt; OK int count,
+ *                                             count * (long sequence, sender, long epochMillis, byte ok, content or error)
+ * MARK_READ    long sequence               -&gt; OK
+ * </pre>
+ * A cursor is the sequence number of the last message a client has; {@code -1} fetches from the
+ * start and {@code -2} from the user's stored read cursor.
+ * Any request may instead be answered with {@code ERROR message}.
+ */
+public final class Protocol {
+
+    /** Registers a new user. */
+    public static final byte REGISTER = 1;
+    /** Logs the connection in as a user. */
+    public static final byte LOGIN = 2;
+    /** Sends a message from the logged-in user. */
+    public static final byte SEND = 3;
+    /** Fetches a page of the logged-in user's inbox, oldest first. */
+    public static final byte FETCH_INBOX = 4;
+    /** Fetches the logged-in user's messages after a cursor, oldest first. */
+    public static final byte FETCH_SINCE = 5;
+    /** Moves the logged-in user's read cursor forward. */
+    public static final byte MARK_READ = 6;
+
+    /** FETCH_SINCE cursor that stands for the user's stored read cursor. */
+    public static final long STORED_CURSOR = -2;
+
+    /** The request succeeded. */
+    public static final byte OK = 0;
+    /** The request failed; the body holds the error message. */
+    public static final byte ERROR = 1;
+
+    /** Largest accepted frame, in bytes. */
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private Protocol() {
+    }
+
+    /**
+     * Reads one frame.
+     *
+     * @param in the input stream
+     * @return the frame's type byte followed by its body, or {@code null} at end of stream
+     * @throws IOException if the frame is truncated or too large
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * Writes one frame. The caller flushes the stream.
+     *
+     * @param out  the output stream
+     * @param type the operation code or status
+     * @param body the frame body
+     * @throws IOException if writing fails
+     */
+    public static void writeFrame(DataOutputStream out, byte type, byte[] body) throws IOException {
+        out.writeInt(1 + body.length);
+        out.writeByte(type);
+        out.write(body);
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string.
+     *
+     * @param out   the output stream
+     * @param value the string
+     * @throws IOException if writing fails
+     */
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     *
+     * @param in the input stream
+     * @return the string
+     * @throws IOException if the string is truncated or too large
+     */
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
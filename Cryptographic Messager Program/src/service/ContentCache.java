@@ -0,0 +1,77 @@
+package service;
+
+import util.LruCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decrypted message content kept for the rest of a session, keyed by recipient and inbox
+ * sequence number, so viewing an inbox again only decrypts messages that are new.
+ * Both the number of users and the number of messages per user are bounded.
+ */
+final class ContentCache {
+
+    private final LruCache<String, LruCache<Long, String>> users;
+    private final int messagesPerUser;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxUsers        the most users with cached content
+     * @param messagesPerUser the most cached messages per user
+     */
+    ContentCache(int maxUsers, int messagesPerUser) {
+        this.users = new LruCache<>(maxUsers);
+        this.messagesPerUser = messagesPerUser;
+    }
+
+    /**
+     * Returns cached content.
+     *
+     * @param username the recipient's username
+     * @param sequence the message's sequence number in the recipient's inbox
+     * @return the content, or {@code null} if it is not cached
+     */
+    String get(String username, long sequence) {
+        LruCache<Long, String> messages = users.get(username);
+        String content = messages != null ? messages.get(sequence) : null;
+        (content != null ? hits : misses).incrementAndGet();
+        return content;
+    }
+
+    /**
+     * Caches decrypted content.
+     *
+     * @param username the recipient's username
+     * @param sequence the message's sequence number in the recipient's inbox
+     * @param content  the decrypted content
+     */
+    void put(String username, long sequence, String content) {
+        LruCache<Long, String> messages;
+        synchronized (users) {
+            messages = users.get(username);
+            if (messages == null) {
+                messages = new LruCache<>(messagesPerUser);
+                users.put(username, messages);
+            }
+        }
+        messages.put(sequence, content);
+    }
+
+    /**
+     * Drops everything cached for a user.
+     *
+     * @param username the username
+     */
+    void clear(String username) {
+        users.remove(username);
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,220 @@
+package service;
+
+import model.Message;
+import storage.InboxStore;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for inbox delivery.
+ * <p>
+ * Messages are queued by the recipient's inbox shard and written by one flusher thread per group
+ * of shards, so inboxes in different shards (possibly on different disks) are written and forced
+ * in parallel. Each flusher waits up to the linger time after the first queued message for more to
+ * arrive, writes each recipient's share of the batch with one append, then forces every touched
+ * inbox before completing the batch's futures.
+ * <p>
+ * Each inbox is its own set of files, so a batch still costs one fsync per distinct recipient
+ * (plus one of the inbox directory when a new segment file was started): one fsync covers every
+ * message to the same recipient, not messages across recipients. The forces of a batch are
+ * issued in parallel on a shared pool of {@value #SYNC_THREADS} threads, so on storage that
+ * handles concurrent flushes a batch takes about as long as its slowest force rather than their
+ * sum. Fan-in to many distinct recipients therefore gains less from batching than fan-in to a few.
+ */
+final class DeliveryPipeline implements AutoCloseable {
+
+    private static final long IDLE_POLL_MILLIS = 100;
+    private static final int SYNC_THREADS = 16;
+
+    private static final class Pending {
+        final String recipient;
+        final Message message;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        Pending(String recipient, Message message) {
+            this.recipient = recipient;
+            this.message = message;
+        }
+    }
+
+    private final InboxStore inboxStore;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final List<BlockingQueue<Pending>> queues = new ArrayList<>();
+    private final List<Thread> flushers = new ArrayList<>();
+    private final ExecutorService syncPool;
+    private volatile boolean closed;
+
+    /**
+     * @param inboxStore   the store to deliver to
+     * @param maxBatchSize the most messages committed together
+     * @param maxLinger    how long to wait for a batch to fill
+     * @param writers      the number of flusher threads; capped at the store's shard count
+     */
+    DeliveryPipeline(InboxStore inboxStore, int maxBatchSize, Duration maxLinger, int writers) {
+        checkSettings(maxBatchSize, maxLinger, writers);
+        this.inboxStore = inboxStore;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = maxLinger.toNanos();
+        this.syncPool = Executors.newFixedThreadPool(SYNC_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "inbox-group-commit-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int count = Math.min(writers, inboxStore.getLayout().getShardCount());
+        for (int i = 0; i < count; i++) {
+            BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+            Thread flusher = new Thread(() -> run(queue), "inbox-group-commit-" + i);
+            flusher.setDaemon(true);
+            queues.add(queue);
+            flushers.add(flusher);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Rejects settings the pipeline cannot run with.
+     *
+     * @param maxBatchSize the most messages committed together
+     * @param maxLinger    how long to wait for a batch to fill
+     * @param writers      the number of flusher threads
+     * @throws IllegalArgumentException if the batch size or writer count is not positive or the linger is negative
+     */
+    static void checkSettings(int maxBatchSize, Duration maxLinger, int writers) {
+        if (maxBatchSize < 1 || maxLinger.isNegative()) {
+            throw new IllegalArgumentException("Batch size must be positive and linger must not be negative.");
+        }
+        if (writers < 1) {
+            throw new IllegalArgumentException("Writer count must be positive.");
+        }
+    }
+
+    /**
+     * Queues a message for delivery.
+     *
+     * @param recipient the recipient's username
+     * @param message   the encrypted message
+     * @return a future completed once the message is on disk
+     */
+    CompletableFuture<Void> submit(String recipient, Message message) {
+        Pending pending = new Pending(recipient, message);
+        if (closed) {
+            pending.durable.completeExceptionally(new IllegalStateException("Message service is closed."));
+        } else {
+            // Shards map onto writers in a fixed way, so each inbox is only written by one thread
+            queues.get(inboxStore.shardOf(recipient) % queues.size()).add(pending);
+        }
+        return pending.durable;
+    }
+
+    private void run(BlockingQueue<Pending> queue) {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxLingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    Pending next = queue.poll();
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0 || (next = queue.poll(wait, TimeUnit.NANOSECONDS)) == null) {
+                            break;
+                        }
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Nothing interrupts the flusher; commit whatever was batched
+            }
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        Map<String, List<Pending>> byRecipient = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            byRecipient.computeIfAbsent(pending.recipient, r -> new ArrayList<>()).add(pending);
+        }
+
+        // Write every inbox before forcing any, so the forces overlap as little as possible
+        List<String> written = new ArrayList<>(byRecipient.size());
+        for (Map.Entry<String, List<Pending>> entry : byRecipient.entrySet()) {
+            List<Message> messages = new ArrayList<>(entry.getValue().size());
+            for (Pending pending : entry.getValue()) {
+                messages.add(pending.message);
+            }
+            try {
+                inboxStore.appendAll(entry.getKey(), messages);
+                written.add(entry.getKey());
+            } catch (IOException | RuntimeException e) {
+                fail(entry.getValue(), e);
+            }
+        }
+
+        // Every inbox needs its own fsync; issue them together instead of one after another
+        if (written.size() == 1) {
+            force(written.get(0), byRecipient.get(written.get(0)));
+            return;
+        }
+        List<CompletableFuture<Void>> forces = new ArrayList<>(written.size());
+        for (String recipient : written) {
+            forces.add(CompletableFuture.runAsync(() -> force(recipient, byRecipient.get(recipient)), syncPool));
+        }
+        CompletableFuture.allOf(forces.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void force(String recipient, List<Pending> pending) {
+        try {
+            inboxStore.sync(recipient);
+            for (Pending p : pending) {
+                p.durable.complete(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(pending, e);
+        }
+    }
+
+    private static void fail(List<Pending> pending, Exception cause) {
+        for (Pending p : pending) {
+            p.durable.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Commits the queued messages and stops the flusher threads.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread flusher : flushers) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        syncPool.shutdown();
+        // A submit racing with close may have queued after a flusher's last drain
+        List<Pending> late = new ArrayList<>();
+        for (BlockingQueue<Pending> queue : queues) {
+            queue.drainTo(late);
+        }
+        fail(late, new IllegalStateException("Message service is closed."));
+    }
+}
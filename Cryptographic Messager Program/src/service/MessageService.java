@@ -1,19 +1,210 @@
 package service;
 
+import metrics.Histogram;
+import metrics.Metrics;
+import model.DecryptedMessage;
 import model.Message;
 import model.User;
+import storage.BlobStore;
+import storage.InboxStore;
+import storage.ReadCursor;
+import storage.StorageLayout;
+import util.AeadInputStream;
+import util.AeadOutputStream;
+import util.CipherContext;
+import util.Compression;
 import util.CryptoUtil;
 
 import javax.crypto.SecretKey;
-import java.io.*;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.PublicKey;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
 
 /**
  * Service for sending, saving, and loading encrypted messages between users.
+ * Inboxes are kept in append-only segment logs, so delivering a message only writes that message.
  */
-public class MessageService {
+public class MessageService implements AutoCloseable {
+
+    private static final int DECRYPT_WINDOW_PER_THREAD = 4;
+    private static final int BROADCAST_BATCH_SIZE = 256;
+    private static final int DEFAULT_GROUP_COMMIT_BATCH = 256;
+    private static final Duration DEFAULT_GROUP_COMMIT_LINGER = Duration.ZERO;
+    private static final int DEFAULT_DELIVERY_WRITERS = 4;
+    private static final int CONTENT_CACHE_USERS = 1024;
+    private static final int CONTENT_CACHE_MESSAGES_PER_USER = 1024;
+
+    private static final Histogram SEND = Metrics.timer("message.send");
+    private static final Histogram SEND_DURABLE = Metrics.timer("message.send_async");
+    private static final Histogram LOAD = Metrics.timer("message.load");
+    private static final Histogram SAVE = Metrics.timer("message.save");
+    private static final Histogram INBOX_BYTES = Metrics.histogram("inbox.bytes", Histogram.Unit.BYTES);
+
+    private final InboxStore inboxStore;
+    private final BlobStore blobStore;
+    private final ForkJoinPool cryptoPool;
+    private final SessionKeys sessionKeys = new SessionKeys();
+    private final ContentCache contentCache = new ContentCache(CONTENT_CACHE_USERS, CONTENT_CACHE_MESSAGES_PER_USER);
+    private volatile boolean sessionMode;
+    private DeliveryPipeline deliveryPipeline;
+    private int groupCommitBatch = DEFAULT_GROUP_COMMIT_BATCH;
+    private Duration groupCommitLinger = DEFAULT_GROUP_COMMIT_LINGER;
+    private int deliveryWriters = DEFAULT_DELIVERY_WRITERS;
+    private volatile int compressionThreshold = Integer.getInteger("cryptomessenger.compression.threshold", 0);
+    private boolean closed;
+
+    /**
+     * Creates a message service storing inboxes under the configured storage root
+     * (see {@link StorageLayout#defaultRoot()}).
+     */
+    public MessageService() {
+        this(StorageLayout.defaultRoot());
+    }
+
+    /**
+     * Creates a message service storing inboxes in the given directory, sharded by the
+     * configured shard count.
+     *
+     * @param baseDirectory the storage directory
+     */
+    public MessageService(Path baseDirectory) {
+        this(new StorageLayout(baseDirectory));
+    }
+
+    /**
+     * Creates a message service storing inboxes and blobs in the given layout.
+     *
+     * @param layout the storage layout
+     */
+    public MessageService(StorageLayout layout) {
+        this.inboxStore = new InboxStore(layout, InboxStore.DEFAULT_SEGMENT_BYTES);
+        this.blobStore = new BlobStore(layout.blobDirectory());
+        this.cryptoPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("message-crypto-" + thread.getId());
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Enables or disables session mode for outgoing messages.
+     * In session mode a sender wraps one AES key per recipient per session and later messages
+     * only carry its id, so neither side performs an RSA operation per message.
+     * Messages sent either way can always be read.
+     *
+     * @param enabled {@code true} to send messages with session keys
+     */
+    public void setSessionMode(boolean enabled) {
+        this.sessionMode = enabled;
+    }
+
+    /**
+     * Sets when session keys are rotated. Defaults to one hour or 1000 messages.
+     *
+     * @param maxAge      the maximum age of a session
+     * @param maxMessages the maximum number of messages sent with one session key
+     */
+    public void setSessionLimits(Duration maxAge, int maxMessages) {
+        sessionKeys.setLimits(maxAge, maxMessages);
+    }
+
+    /**
+     * Sets how {@link #sendMessageAsync} batches deliveries. Defaults to 256 messages and no linger:
+     * messages queued while one commit is being forced form the next batch. A linger lets batches
+     * grow further when senders do not wait for each message, at the cost of that much latency.
+     * Messages already queued are committed under the previous settings.
+     *
+     * @param maxBatchSize the most messages made durable by one group commit
+     * @param maxLinger    how long a message may wait for others to join its batch
+     */
+    public void setGroupCommit(int maxBatchSize, Duration maxLinger) {
+        setGroupCommit(maxBatchSize, maxLinger, deliveryWriters);
+    }
+
+    /**
+     * Sets how {@link #sendMessageAsync} batches deliveries and how many writer threads commit
+     * them. Inbox shards are divided among the writers (4 by default, at most one per shard),
+     * which write and force their inboxes independently.
+     *
+     * @param maxBatchSize the most messages made durable by one group commit
+     * @param maxLinger    how long a message may wait for others to join its batch
+     * @param writers      the number of writer threads
+     */
+    public void setGroupCommit(int maxBatchSize, Duration maxLinger, int writers) {
+        DeliveryPipeline.checkSettings(maxBatchSize, maxLinger, writers);
+        DeliveryPipeline previous;
+        synchronized (this) {
+            groupCommitBatch = maxBatchSize;
+            groupCommitLinger = maxLinger;
+            deliveryWriters = writers;
+            previous = deliveryPipeline;
+            deliveryPipeline = null;
+        }
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Sets the size from which message content is deflate-compressed before it is encrypted.
+     * Compression only applies to content of at least {@code minBytes} UTF-8 bytes, and is skipped
+     * for content it does not shrink. Compressed messages are flagged and decrypt as usual.
+     * <p>
+     * Disabled by default, or set by the {@code cryptomessenger.compression.threshold} system
+     * property. Note that compressed length depends on content: where an attacker can inject text
+     * into messages that also carry secrets and observe ciphertext sizes, it can leak them.
+     *
+     * @param minBytes the smallest content size to compress, or {@code 0} to disable compression
+     */
+    public void setCompressionThreshold(int minBytes) {
+        if (minBytes < 0) {
+            throw new IllegalArgumentException("Compression threshold must not be negative");
+        }
+        this.compressionThreshold = minBytes;
+    }
+
+    /**
+     * Sets how long and how many messages inboxes keep. Messages beyond any of the limits expire
+     * oldest first, in the background: sending and reading never wait for it. Inboxes keep
+     * everything by default. Shared message content and attachments are not deleted.
+     *
+     * @param maxAge      how long a message is kept, or {@code null} for no limit
+     * @param maxMessages the most messages kept per inbox, or {@code 0} for no limit
+     * @param maxBytes    the most bytes kept per inbox, or {@code 0} for no limit
+     */
+    public void setRetention(Duration maxAge, int maxMessages, long maxBytes) {
+        inboxStore.setRetention(maxAge, maxMessages, maxBytes);
+    }
+
+    /**
+     * Expires messages beyond the retention limits now instead of at the next background pass.
+     *
+     * @return the number of messages that expired
+     */
+    public long enforceRetention() {
+        return inboxStore.enforceRetention();
+    }
 
     /**
      * Sends an encrypted message from sender to recipient.
@@ -24,20 +215,353 @@ public class MessageService {
      * @throws Exception if encryption or saving fails
      */
     public void sendMessage(User sender, User recipient, String content) throws Exception {
-        // Generate AES key
-        SecretKey aesKey = CryptoUtil.generateAESKey();
+        long start = Metrics.start();
+        try {
+            Message message = encryptMessage(sender, recipient, content);
+            inboxStore.append(recipient.getUsername(), message);
+            recipient.addMessage(message);
+        } finally {
+            SEND.recordSince(start);
+        }
+    }
 
-        // Encrypt the message with AES
-        byte[] encryptedMessage = CryptoUtil.encryptAES(content, aesKey);
+    /**
+     * Encrypts a message now and queues it for a group commit with other deliveries.
+     * Use this instead of {@link #sendMessage} when many messages are sent at once and each must be
+     * on disk before it is acknowledged; the batch shares one fsync per inbox.
+     *
+     * @param sender    the sender user
+     * @param recipient the recipient user
+     * @param content   the plaintext message content
+     * @return a future completed with the message once it is durable, or exceptionally if saving fails
+     * @throws Exception if encryption fails
+     */
+    public CompletableFuture<Message> sendMessageAsync(User sender, User recipient, String content) throws Exception {
+        long start = Metrics.start();
+        Message message = encryptMessage(sender, recipient, content);
+        return deliveryPipeline().submit(recipient.getUsername(), message).thenApply(done -> {
+            SEND_DURABLE.recordSince(start);
+            recipient.addMessage(message);
+            return message;
+        });
+    }
+
+    private synchronized DeliveryPipeline deliveryPipeline() {
+        if (closed) {
+            throw new IllegalStateException("Message service is closed.");
+        }
+        if (deliveryPipeline == null) {
+            deliveryPipeline = new DeliveryPipeline(inboxStore, groupCommitBatch, groupCommitLinger, deliveryWriters);
+        }
+        return deliveryPipeline;
+    }
 
-        // Encrypt AES key with recipient's RSA public key
+    private Message encryptMessage(User sender, User recipient, String content) throws Exception {
+        SecretKey aesKey;
+        byte[] encryptedAESKey;
+        long sessionKeyId = 0;
         PublicKey recipientKey = recipient.getPublicKey();
-        byte[] encryptedAESKey = CryptoUtil.encryptRSA(aesKey.getEncoded(), recipientKey);
 
-        // Create and store the message
+        if (sessionMode) {
+            // Reuse the current session key; its wrapped form is already in the recipient's inbox
+            SessionKeys.Outbound session = outboundSession(sender, recipient, recipientKey);
+            aesKey = session.key;
+            encryptedAESKey = new byte[0];
+            sessionKeyId = session.keyId;
+        } else {
+            // Generate AES key and wrap it with recipient's public key
+            aesKey = CryptoUtil.generateAESKey();
+            encryptedAESKey = CryptoUtil.wrapKey(aesKey, recipientKey);
+        }
+
+        // Encrypt the message with AES straight into the array the message will hold
+        byte[] plainBytes = content.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = compress(plainBytes);
+        byte[] stored = compressed != null ? compressed : plainBytes;
+        byte[] encryptedMessage = new byte[CryptoUtil.encryptedSize(stored.length)];
+        CryptoUtil.encryptAES(ByteBuffer.wrap(stored), ByteBuffer.wrap(encryptedMessage), aesKey);
+
         Message message = new Message(encryptedMessage, encryptedAESKey, sender.getUsername());
+        message.setSessionKeyId(sessionKeyId);
+        message.setCompressed(compressed != null);
+        return message;
+    }
+
+    // Returns the compressed content, or null if it is below the threshold or does not shrink
+    private byte[] compress(byte[] plainBytes) {
+        int threshold = compressionThreshold;
+        if (threshold == 0 || plainBytes.length < threshold) {
+            return null;
+        }
+        return Compression.deflate(plainBytes);
+    }
+
+    // Returns the current session to the recipient, starting a new one if it has expired.
+    // Two threads may race to start a session; both keys are stored, so either is readable.
+    private SessionKeys.Outbound outboundSession(User sender, User recipient, PublicKey recipientKey)
+            throws Exception {
+        SessionKeys.Outbound session = sessionKeys.acquire(sender.getUsername(), recipient.getUsername(), recipientKey);
+        if (session != null) {
+            return session;
+        }
+
+        long keyId;
+        do {
+            keyId = CipherContext.random().nextLong();
+        } while (keyId == 0);
+        SecretKey aesKey = CryptoUtil.generateAESKey();
+        byte[] wrapped = CryptoUtil.wrapKey(aesKey, recipientKey);
+        inboxStore.putSessionKey(recipient.getUsername(), keyId, wrapped);
+
+        session = new SessionKeys.Outbound(keyId, aesKey, recipientKey);
+        sessionKeys.start(sender.getUsername(), recipient.getUsername(), session);
+        return session;
+    }
+
+    /**
+     * Returns the AES key protecting a message, unwrapping it with the recipient's private key.
+     * Session keys are unwrapped once and then served from a bounded cache.
+     *
+     * @param user    the recipient, with private key loaded
+     * @param message the message
+     * @return the message's AES key
+     * @throws Exception if the key cannot be unwrapped
+     */
+    public SecretKey resolveKey(User user, Message message) throws Exception {
+        if (!message.usesSessionKey()) {
+            return message.decryptKey(user.getPrivateKey());
+        }
+
+        long keyId = message.getSessionKeyId();
+        SecretKey aesKey = sessionKeys.inbound(user.getUsername(), keyId);
+        if (aesKey == null) {
+            byte[] wrapped = inboxStore.getSessionKey(user.getUsername(), keyId);
+            aesKey = CryptoUtil.unwrapKey(wrapped, user.getPrivateKey());
+            sessionKeys.putInbound(user.getUsername(), keyId, aesKey);
+        }
+        return aesKey;
+    }
+
+    /**
+     * Sends one message to many recipients.
+     * The content is encrypted once under a single AES key and stored as one blob; each inbox
+     * only receives that key wrapped for its owner and the blob id. Recipients are ordered by
+     * inbox shard and handled in batches on the crypto pool, so key wrapping runs in parallel and
+     * each shard's inboxes are mostly written by one batch, with one append per inbox.
+     * A failure for one recipient does not stop delivery to the others.
+     *
+     * @param sender     the sender user
+     * @param recipients the recipients, with public keys loaded
+     * @param content    the plaintext message content
+     * @return the usernames the message could not be delivered to, with the cause; empty on success
+     * @throws Exception if the content cannot be encrypted or stored
+     */
+    public Map<String, Exception> sendToMany(User sender, List<User> recipients, String content) throws Exception {
+        Map<String, Exception> failures = new ConcurrentHashMap<>();
+        if (recipients.isEmpty()) {
+            return failures; // Nothing would refer to the blob
+        }
+
+        SecretKey aesKey = CryptoUtil.generateAESKey();
+        byte[] plainBytes = content.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = compress(plainBytes);
+        byte[] stored = compressed != null ? compressed : plainBytes;
+        byte[] encryptedMessage = new byte[CryptoUtil.encryptedSize(stored.length)];
+        CryptoUtil.encryptAES(ByteBuffer.wrap(stored), ByteBuffer.wrap(encryptedMessage), aesKey);
+
+        // The blob is durable before any inbox refers to it
+        String blobId = blobStore.write(out -> out.write(encryptedMessage));
+        LocalDateTime timestamp = LocalDateTime.now();
+
+        List<User> ordered = new ArrayList<>(recipients);
+        ordered.sort(Comparator.comparingInt((User r) -> inboxStore.shardOf(r.getUsername()))
+                .thenComparing(User::getUsername));
+
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int from = 0; from < ordered.size(); from += BROADCAST_BATCH_SIZE) {
+            List<User> batch = ordered.subList(from, Math.min(from + BROADCAST_BATCH_SIZE, ordered.size()));
+            batches.add(CompletableFuture.runAsync(
+                    () -> deliverShared(sender, batch, aesKey, blobId, compressed != null, timestamp, failures),
+                    cryptoPool));
+        }
+        CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).join();
+        return failures;
+    }
+
+    private void deliverShared(User sender, List<User> batch, SecretKey aesKey, String blobId, boolean compressed,
+                               LocalDateTime timestamp, Map<String, Exception> failures) {
+        // Wrap every key first, then write each recipient's messages with one append
+        Map<String, List<Message>> messages = new LinkedHashMap<>();
+        Map<String, List<User>> owners = new HashMap<>();
+        for (User recipient : batch) {
+            try {
+                byte[] encryptedAESKey = CryptoUtil.wrapKey(aesKey, recipient.getPublicKey());
+                Message message = new Message(new byte[0], encryptedAESKey, sender.getUsername(), timestamp);
+                message.setContentBlobId(blobId);
+                message.setCompressed(compressed);
+                messages.computeIfAbsent(recipient.getUsername(), r -> new ArrayList<>()).add(message);
+                owners.computeIfAbsent(recipient.getUsername(), r -> new ArrayList<>()).add(recipient);
+            } catch (Exception e) {
+                failures.put(recipient.getUsername(), e);
+            }
+        }
+
+        for (Map.Entry<String, List<Message>> entry : messages.entrySet()) {
+            try {
+                inboxStore.appendAll(entry.getKey(), entry.getValue());
+                List<User> users = owners.get(entry.getKey());
+                for (int i = 0; i < users.size(); i++) {
+                    users.get(i).addMessage(entry.getValue().get(i));
+                }
+            } catch (IOException | RuntimeException e) {
+                failures.put(entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Sends an encrypted file attachment from sender to recipient.
+     * The data is encrypted as a chunked AES-GCM stream straight into blob storage, so memory use
+     * does not depend on the attachment size. The inbox message carries the encrypted file name.
+     *
+     * @param sender    the sender user
+     * @param recipient the recipient user
+     * @param fileName  the attachment's file name
+     * @param data      the attachment content; read to the end but not closed
+     * @throws Exception if encryption or saving fails
+     */
+    public void sendAttachment(User sender, User recipient, String fileName, InputStream data) throws Exception {
+        SecretKey aesKey = CryptoUtil.generateAESKey();
+
+        // Stream the attachment through the encrypting stream into a new blob
+        String attachmentId = blobStore.write(out -> {
+            try (AeadOutputStream encrypted = new AeadOutputStream(out, aesKey)) {
+                data.transferTo(encrypted);
+            }
+        });
+
+        byte[] encryptedName = CryptoUtil.encryptAES(fileName, aesKey);
+        byte[] encryptedAESKey = CryptoUtil.wrapKey(aesKey, recipient.getPublicKey());
+
+        Message message = new Message(encryptedName, encryptedAESKey, sender.getUsername());
+        message.setAttachmentId(attachmentId);
+        inboxStore.append(recipient.getUsername(), message);
         recipient.addMessage(message);
-        saveMessages(recipient); // Save inbox
+    }
+
+    /**
+     * Opens a decrypting stream over a message's attachment.
+     * Each chunk is authenticated before its data is returned.
+     *
+     * @param user    the recipient, with private key loaded
+     * @param message the message carrying the attachment
+     * @return the decrypted attachment content
+     * @throws Exception if the attachment cannot be opened
+     */
+    public InputStream openAttachment(User user, Message message) throws Exception {
+        if (!message.hasAttachment()) {
+            throw new IllegalArgumentException("Message has no attachment.");
+        }
+        SecretKey aesKey = resolveKey(user, message);
+        return new AeadInputStream(new BufferedInputStream(blobStore.open(message.getAttachmentId())), aesKey);
+    }
+
+    /**
+     * Decrypts a single message for its recipient.
+     * Content of messages read from the recipient's inbox is cached for the session (see
+     * {@link #endSession}), so decrypting the same message again is a lookup.
+     *
+     * @param user    the recipient, with private key loaded
+     * @param message the message
+     * @return the decrypted content (the file name for attachment messages)
+     * @throws Exception if decryption fails
+     */
+    public String decrypt(User user, Message message) throws Exception {
+        long sequence = message.getSequence();
+        if (sequence >= 0) {
+            String cached = contentCache.get(user.getUsername(), sequence);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        SecretKey aesKey = resolveKey(user, message);
+        String content = message.hasSharedContent() ? decryptShared(message, aesKey) : message.decrypt(aesKey);
+        if (sequence >= 0) {
+            contentCache.put(user.getUsername(), sequence, content);
+        }
+        return content;
+    }
+
+    private String decryptShared(Message message, SecretKey aesKey) throws Exception {
+        byte[] encrypted = blobStore.readAll(message.getContentBlobId());
+        byte[] plainBytes = new byte[CryptoUtil.decryptedSize(encrypted.length)];
+        int length = CryptoUtil.decryptAES(ByteBuffer.wrap(encrypted), ByteBuffer.wrap(plainBytes), aesKey);
+        return Compression.toText(plainBytes, length, message.isCompressed());
+    }
+
+    /**
+     * Decrypts the inbox messages in {@code [from, to)} in parallel and hands them to the
+     * consumer in inbox order, each as soon as it and all earlier messages are done.
+     * At most a small window of messages per worker thread is in flight, so memory stays
+     * bounded for any range. A message that fails to decrypt is reported through
+     * {@link DecryptedMessage#getError()} rather than aborting the range.
+     *
+     * @param user     the recipient, with inbox and private key loaded
+     * @param from     the first index, inclusive
+     * @param to       the last index, exclusive
+     * @param consumer receives results in order, on the calling thread
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void decryptInbox(User user, int from, int to, Consumer<DecryptedMessage> consumer)
+            throws InterruptedException {
+        decryptInOrder(user, user.getInbox(), from, to, consumer);
+    }
+
+    /**
+     * Decrypts a list of messages, such as a page from
+     * {@link #getInbox(User, LocalDateTime, LocalDateTime, int, int)}, like {@link #decryptInbox}.
+     * Results are indexed by position in the list.
+     *
+     * @param user     the recipient, with private key loaded
+     * @param messages the messages
+     * @param consumer receives results in list order, on the calling thread
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void decryptMessages(User user, List<Message> messages, Consumer<DecryptedMessage> consumer)
+            throws InterruptedException {
+        decryptInOrder(user, messages, 0, messages.size(), consumer);
+    }
+
+    private void decryptInOrder(User user, List<Message> inbox, int from, int to, Consumer<DecryptedMessage> consumer)
+            throws InterruptedException {
+        int window = cryptoPool.getParallelism() * DECRYPT_WINDOW_PER_THREAD;
+        Deque<CompletableFuture<DecryptedMessage>> inFlight = new ArrayDeque<>(window);
+
+        int next = from;
+        while (next < to || !inFlight.isEmpty()) {
+            // Keep the window full; messages are decoded here and only decrypted on the pool
+            while (next < to && inFlight.size() < window) {
+                int index = next++;
+                Message message = inbox.get(index);
+                inFlight.addLast(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return new DecryptedMessage(index, message, decrypt(user, message), null);
+                    } catch (Exception e) {
+                        return new DecryptedMessage(index, message, null, e);
+                    }
+                }, cryptoPool));
+            }
+
+            try {
+                consumer.accept(inFlight.removeFirst().get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Decryption task failed", e.getCause());
+            } catch (InterruptedException e) {
+                inFlight.forEach(future -> future.cancel(false));
+                throw e;
+            }
+        }
     }
 
     /**
@@ -51,41 +575,182 @@ public class MessageService {
     }
 
     /**
-     * Saves the user's inbox to a file.
+     * Returns a page of the messages stored in a user's inbox, newest first, optionally limited to
+     * a time range. The inbox's timestamp index is used to find the page, so only the returned
+     * messages are read and the in-memory inbox is not needed.
+     *
+     * @param user     the user
+     * @param fromTime the earliest timestamp, inclusive, or {@code null} for no lower bound
+     * @param toTime   the latest timestamp, exclusive, or {@code null} for no upper bound
+     * @param offset   the number of matching messages to skip
+     * @param limit    the maximum number of messages to return
+     * @return the messages, newest first
+     * @throws IOException if the inbox cannot be read
+     */
+    public List<Message> getInbox(User user, LocalDateTime fromTime, LocalDateTime toTime, int offset, int limit)
+            throws IOException {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit must not be negative.");
+        }
+        long fromMillis = fromTime != null ? fromTime.toInstant(ZoneOffset.UTC).toEpochMilli() : Long.MIN_VALUE;
+        long toMillis = toTime != null ? toTime.toInstant(ZoneOffset.UTC).toEpochMilli() : Long.MAX_VALUE;
+        return inboxStore.query(user.getUsername(), fromMillis, toMillis, offset, limit);
+    }
+
+    /**
+     * Returns the messages that arrived in a user's inbox after the given cursor, oldest first.
+     * Only those messages are read. Pass the sequence number of the last message received
+     * ({@link Message#getSequence()}) to get only newer ones.
+     *
+     * @param user   the user
+     * @param cursor the sequence number to fetch after, or {@link ReadCursor#NONE} for the whole inbox
+     * @param limit  the maximum number of messages to return
+     * @return the messages, with their sequence numbers set
+     * @throws IOException if the inbox cannot be read
+     */
+    public List<Message> fetchSince(User user, long cursor, int limit) throws IOException {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative.");
+        }
+        return inboxStore.readAfter(user.getUsername(), cursor, limit);
+    }
+
+    /**
+     * Returns a page of the messages stored in a user's inbox, oldest first. Only the returned
+     * messages are read, and the in-memory inbox is not needed.
+     *
+     * @param user   the user
+     * @param offset the number of messages to skip, counted from the oldest
+     * @param limit  the maximum number of messages to return
+     * @return the messages, with their sequence numbers set
+     * @throws IOException if the inbox cannot be read
+     */
+    public List<Message> fetchPage(User user, int offset, int limit) throws IOException {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit must not be negative.");
+        }
+        return inboxStore.readPage(user.getUsername(), offset, limit);
+    }
+
+    /**
+     * Returns how many messages are stored in a user's inbox, without reading them.
      *
      * @param user the user
+     * @return the message count
+     * @throws IOException if the inbox cannot be opened
      */
-    public void saveMessages(User user) {
-        String filename = "inbox_" + user.getUsername() + ".dat";
+    public long inboxSize(User user) throws IOException {
+        return inboxStore.messageCount(user.getUsername());
+    }
+
+    /**
+     * Returns the user's unread messages, oldest first: those after the stored read cursor.
+     *
+     * @param user  the user
+     * @param limit the maximum number of messages to return
+     * @return the messages, with their sequence numbers set
+     * @throws IOException if the inbox cannot be read
+     */
+    public List<Message> fetchUnread(User user, int limit) throws IOException {
+        return fetchSince(user, getReadCursor(user), limit);
+    }
+
+    /**
+     * Returns the user's stored read cursor.
+     *
+     * @param user the user
+     * @return the sequence number of the newest message read, or {@link ReadCursor#NONE}
+     * @throws IOException if the inbox cannot be opened
+     */
+    public long getReadCursor(User user) throws IOException {
+        return inboxStore.getReadCursor(user.getUsername());
+    }
+
+    /**
+     * Marks every message up to and including the given one as read.
+     * The cursor only moves forward and is kept across sessions.
+     *
+     * @param user     the user
+     * @param sequence the sequence number of the newest message read
+     * @throws IOException if the cursor cannot be saved
+     */
+    public void markRead(User user, long sequence) throws IOException {
+        inboxStore.advanceReadCursor(user.getUsername(), sequence);
+    }
 
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filename))) {
-            oos.writeObject(user.getInbox());
+    /**
+     * Returns how many messages arrived after the user's read cursor, without reading them.
+     *
+     * @param user the user
+     * @return the unread message count
+     * @throws IOException if the inbox cannot be opened
+     */
+    public long unreadCount(User user) throws IOException {
+        return inboxStore.unreadCount(user.getUsername());
+    }
+
+    /**
+     * Drops the decrypted content cached for a user, e.g. when they log out.
+     *
+     * @param user the user
+     */
+    public void endSession(User user) {
+        contentCache.clear(user.getUsername());
+    }
+
+    /**
+     * Replaces the user's stored inbox with the in-memory one.
+     * Not needed after {@link #sendMessage}, which appends the new message itself.
+     *
+     * @param user the user
+     */
+    public void saveMessages(User user) {
+        long start = Metrics.start();
+        // Sequence numbers restart, so cached content no longer matches them
+        contentCache.clear(user.getUsername());
+        try {
+            inboxStore.rewrite(user.getUsername(), user.getInbox());
+            INBOX_BYTES.record(inboxStore.sizeBytes(user.getUsername()));
         } catch (IOException e) {
             System.err.println("Failed to save inbox: " + e.getMessage());
+        } finally {
+            SAVE.recordSince(start);
         }
     }
 
     /**
-     * Loads the user's inbox from a file.
+     * Loads the user's inbox from its log.
+     * The inbox is memory-mapped and each message is decoded only when it is accessed.
+     * A legacy {@code inbox_<user>.dat} file is migrated on first access.
      *
      * @param user the user
      */
-    @SuppressWarnings("unchecked")
     public void loadMessages(User user) {
-        String filename = "inbox_" + user.getUsername() + ".dat";
-        File file = new File(filename);
-
-        if (!file.exists()) {
-            user.getInbox().clear(); // Start fresh if no inbox exists
-            return;
+        long start = Metrics.start();
+        try {
+            user.setInbox(inboxStore.openMapped(user.getUsername()));
+            INBOX_BYTES.record(inboxStore.sizeBytes(user.getUsername()));
+        } catch (IOException e) {
+            System.err.println("Failed to load inbox: " + e.getMessage());
+        } finally {
+            LOAD.recordSince(start);
         }
+    }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(filename))) {
-            List<Message> messages = (List<Message>) ois.readObject();
-            user.getInbox().clear();
-            user.getInbox().addAll(messages);
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Failed to load inbox: " + e.getMessage());
+    /**
+     * Commits queued deliveries, then stops background inbox maintenance and the decryption pool.
+     */
+    @Override
+    public void close() {
+        DeliveryPipeline pipeline;
+        synchronized (this) {
+            closed = true;
+            pipeline = deliveryPipeline;
+        }
+        if (pipeline != null) {
+            pipeline.close();
         }
+        cryptoPool.shutdownNow();
+        inboxStore.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,292 @@
+package service;
+
+import util.LruCache;
+import util.PasswordHasher;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Password hashing for {@link UserService}: hashes new passwords with the current
+ * {@link PasswordHasher}, verifies hashes of the current and the legacy scheme, and tells which
+ * stored hashes should be replaced.
+ * <p>
+ * Key derivation runs on a small, bounded pool of worker threads, so a burst of logins cannot
+ * take over the threads serving other requests. When every worker is busy and the queue is full,
+ * a call fails fast with {@link IllegalStateException} instead of waiting.
+ * <p>
+ * Successful verifications are remembered for {@value #CACHE_TTL_MINUTES} minutes, so repeated
+ * logins with the same password skip key derivation. The cache keeps an HMAC of the password
+ * under a random per-instance key, never the password; a capacity of zero disables it.
+ */
+public class PasswordHashing implements AutoCloseable {
+
+    /** Default PBKDF2 iteration count for new hashes. */
+    public static final int DEFAULT_ITERATIONS = 600_000;
+
+    /** Default number of hashing jobs that may wait for a worker. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /** Default number of remembered verifications. */
+    public static final int DEFAULT_CACHE_CAPACITY = 1024;
+
+    static final int CACHE_TTL_MINUTES = 10;
+
+    private final PasswordHasher current;
+    private final PasswordHasher[] accepted;
+    private final ThreadPoolExecutor executor;
+    private final LruCache<String, Verified> verified;
+    private final SecretKeySpec cacheKey;
+
+    private final LongAdder hashes = new LongAdder();
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder jobs = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder workNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * Creates a password hashing service.
+     *
+     * @param current       the hasher for new hashes; hashes it marks for rehashing are replaced
+     * @param threads       the number of key derivation workers
+     * @param queueCapacity the number of jobs that may wait for a worker
+     * @param cacheCapacity the number of remembered verifications, or 0 for none
+     */
+    public PasswordHashing(PasswordHasher current, int threads, int queueCapacity, int cacheCapacity) {
+        if (threads <= 0 || queueCapacity < 0 || cacheCapacity < 0) {
+            throw new IllegalArgumentException("Require at least one worker and non-negative capacities.");
+        }
+        this.current = current;
+        this.accepted = new PasswordHasher[] {current, PasswordHasher.LEGACY_SHA256};
+
+        AtomicInteger workers = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>(),
+                task -> {
+                    Thread worker = new Thread(task, "password-kdf-" + workers.getAndIncrement());
+                    worker.setDaemon(true);
+                    return worker;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.verified = cacheCapacity > 0 ? new LruCache<>(cacheCapacity) : null;
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.cacheKey = new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    /**
+     * Creates a service with the default settings: PBKDF2 with the iteration count from the
+     * {@code cryptomessenger.pbkdf2.iterations} system property (default
+     * {@value #DEFAULT_ITERATIONS}), one worker per processor, and the default capacities.
+     *
+     * @return the service
+     */
+    public static PasswordHashing withDefaults() {
+        int iterations = Integer.getInteger("cryptomessenger.pbkdf2.iterations", DEFAULT_ITERATIONS);
+        return new PasswordHashing(PasswordHasher.pbkdf2(iterations), Runtime.getRuntime().availableProcessors(),
+                DEFAULT_QUEUE_CAPACITY, DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * Hashes a new password with the current hasher.
+     *
+     * @param password the password
+     * @return the encoded hash
+     * @throws IllegalStateException if too many hashing jobs are pending
+     * @throws Exception             if hashing fails
+     */
+    public String hash(String password) throws Exception {
+        hashes.increment();
+        return run(() -> current.hash(password));
+    }
+
+    /**
+     * Verifies a password against a stored hash of the current or the legacy scheme.
+     *
+     * @param password the password
+     * @param encoded  the stored hash
+     * @return {@code true} if the password matches
+     * @throws IllegalStateException if too many hashing jobs are pending
+     * @throws Exception             if hashing fails
+     */
+    public boolean verify(String password, String encoded) throws Exception {
+        verifications.increment();
+        byte[] mac = verified != null ? mac(password) : null;
+        if (mac != null) {
+            Verified entry = verified.get(encoded);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0 && MessageDigest.isEqual(entry.mac, mac)) {
+                cacheHits.increment();
+                return true;
+            }
+        }
+
+        PasswordHasher hasher = hasherFor(encoded);
+        if (hasher == null) {
+            System.err.println("Failed to verify password: unrecognised hash format");
+            return false;
+        }
+        boolean matches = run(() -> hasher.verify(password, encoded));
+        if (matches && mac != null) {
+            verified.put(encoded, new Verified(mac, System.nanoTime() + TimeUnit.MINUTES.toNanos(CACHE_TTL_MINUTES)));
+        }
+        return matches;
+    }
+
+    /**
+     * Checks whether a stored hash should be replaced by one from the current hasher,
+     * because it is of the legacy scheme or has weaker parameters.
+     *
+     * @param encoded the stored hash
+     * @return {@code true} if the hash should be replaced after the next successful login
+     */
+    public boolean needsRehash(String encoded) {
+        return current.needsRehash(encoded);
+    }
+
+    private PasswordHasher hasherFor(String encoded) {
+        for (PasswordHasher hasher : accepted) {
+            if (hasher.recognizes(encoded)) {
+                return hasher;
+            }
+        }
+        return null;
+    }
+
+    private <T> T run(Callable<T> task) throws Exception {
+        long submitted = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                long started = System.nanoTime();
+                waitNanos.add(started - submitted);
+                try {
+                    return task.call();
+                } finally {
+                    workNanos.add(System.nanoTime() - started);
+                    jobs.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            throw new IllegalStateException("Too many logins in progress, try again later.");
+        }
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            maxLatencyNanos.accumulateAndGet(System.nanoTime() - submitted, Math::max);
+        }
+    }
+
+    private byte[] mac(String password) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(cacheKey);
+        return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns how many passwords were hashed.
+     * @return the number of {@link #hash} calls
+     */
+    public long hashes() {
+        return hashes.sum();
+    }
+
+    /**
+     * Returns how many passwords were verified, including cache hits.
+     * @return the number of {@link #verify} calls
+     */
+    public long verifications() {
+        return verifications.sum();
+    }
+
+    /**
+     * Returns how many verifications were answered from the cache.
+     * @return the number of cache hits
+     */
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * Returns how many calls were refused because the workers and queue were full.
+     * @return the number of rejected calls
+     */
+    public long rejections() {
+        return rejections.sum();
+    }
+
+    /**
+     * Returns the number of jobs waiting for a worker.
+     * @return the queue depth
+     */
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the average time a job waited for a worker.
+     * @return the average wait in microseconds, or 0 if no job ran
+     */
+    public double averageWaitMicros() {
+        long count = jobs.sum();
+        return count > 0 ? waitNanos.sum() / 1_000.0 / count : 0;
+    }
+
+    /**
+     * Returns the average time spent hashing or verifying on a worker.
+     * @return the average hashing time in microseconds, or 0 if no job ran
+     */
+    public double averageWorkMicros() {
+        long count = jobs.sum();
+        return count > 0 ? workNanos.sum() / 1_000.0 / count : 0;
+    }
+
+    /**
+     * Returns the longest time a caller waited for a job, queueing included.
+     * @return the maximum latency in microseconds
+     */
+    public double maxLatencyMicros() {
+        return maxLatencyNanos.get() / 1_000.0;
+    }
+
+    /**
+     * Stops the workers; pending jobs still complete.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static final class Verified {
+        final byte[] mac;
+        final long expiresAt;
+
+        Verified(byte[] mac, long expiresAt) {
+            this.mac = mac;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
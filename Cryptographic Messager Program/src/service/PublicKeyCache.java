@@ -0,0 +1,120 @@
+package service;
+
+import storage.UserKeyStore;
+import util.LruCache;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of decoded public keys, keyed by username.
+ * <p>
+ * Every lookup checks the position of the user's record in the {@link UserKeyStore}; if the
+ * keys were replaced since they were decoded, the record is read again. A hit therefore costs
+ * one in-memory index lookup instead of reading and decoding the key.
+ */
+public class PublicKeyCache {
+
+    /** Default number of cached keys. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final class Entry {
+        final PublicKey key;
+        final long version;
+
+        Entry(PublicKey key, long version) {
+            this.key = key;
+            this.version = version;
+        }
+    }
+
+    private final UserKeyStore keyStore;
+    private final LruCache<String, Entry> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache holding at most {@code capacity} keys.
+     *
+     * @param keyStore the store the keys are read from
+     * @param capacity the maximum number of keys
+     */
+    public PublicKeyCache(UserKeyStore keyStore, int capacity) {
+        this.keyStore = keyStore;
+        this.entries = new LruCache<>(capacity);
+    }
+
+    /**
+     * Returns a user's public key, decoding it only if it is not cached or the user's keys
+     * were replaced.
+     *
+     * @param username the username
+     * @return the public key
+     * @throws IOException if the store holds no keys for the user or they cannot be read
+     */
+    public PublicKey get(String username) throws IOException {
+        long version = keyStore.version(username);
+        if (version < 0) {
+            entries.remove(username);
+            throw new IOException("Keys not found for user: " + username);
+        }
+
+        Entry entry = entries.get(username);
+        if (entry != null && entry.version == version) {
+            hits.increment();
+            return entry.key;
+        }
+
+        misses.increment();
+        PublicKey key = keyStore.getPublicKey(username);
+        if (key == null) {
+            throw new IOException("Keys not found for user: " + username);
+        }
+        entries.put(username, new Entry(key, version));
+        return key;
+    }
+
+    /**
+     * Caches a key that was just written to the store.
+     *
+     * @param username the username
+     * @param key      the user's public key
+     */
+    public void put(String username, PublicKey key) {
+        entries.put(username, new Entry(key, keyStore.version(username)));
+    }
+
+    /**
+     * Drops a cached key.
+     *
+     * @param username the username
+     */
+    public void invalidate(String username) {
+        entries.remove(username);
+    }
+
+    /**
+     * Returns the number of lookups served from the cache.
+     * @return the hit count
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that decoded the key.
+     * @return the miss count
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of cached keys.
+     * @return the size
+     */
+    public int size() {
+        return entries.size();
+    }
+}
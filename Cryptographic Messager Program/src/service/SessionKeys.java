@@ -0,0 +1,123 @@
+package service;
+
+import util.LruCache;
+
+import javax.crypto.SecretKey;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded caches of session keys used by {@link MessageService} in session mode.
+ * <p>
+ * Outbound sessions are keyed by sender and recipient and expire after a maximum age or
+ * number of messages, or when the recipient's public key changes. Inbound keys are cached
+ * already unwrapped, so a recipient pays for one RSA decryption per session instead of one
+ * per message.
+ */
+final class SessionKeys {
+
+    static final Duration DEFAULT_MAX_AGE = Duration.ofHours(1);
+    static final int DEFAULT_MAX_MESSAGES = 1000;
+
+    private static final int CAPACITY = 1024;
+
+    /**
+     * An outbound session from one sender to one recipient.
+     */
+    static final class Outbound {
+        final long keyId;
+        final SecretKey key;
+        final PublicKey recipientKey;
+        final long createdAt;
+        final AtomicInteger uses = new AtomicInteger();
+
+        Outbound(long keyId, SecretKey key, PublicKey recipientKey) {
+            this.keyId = keyId;
+            this.key = key;
+            this.recipientKey = recipientKey;
+            this.createdAt = System.nanoTime();
+        }
+    }
+
+    private final LruCache<String, Outbound> outbound = new LruCache<>(CAPACITY);
+    private final LruCache<String, SecretKey> inbound = new LruCache<>(CAPACITY);
+    private volatile long maxAgeNanos = DEFAULT_MAX_AGE.toNanos();
+    private volatile int maxMessages = DEFAULT_MAX_MESSAGES;
+
+    /**
+     * Sets when outbound sessions are rotated.
+     *
+     * @param maxAge      the maximum session age
+     * @param maxMessages the maximum number of messages per session
+     */
+    void setLimits(Duration maxAge, int maxMessages) {
+        if (maxAge.isNegative() || maxAge.isZero() || maxMessages <= 0) {
+            throw new IllegalArgumentException("Session limits must be positive.");
+        }
+        this.maxAgeNanos = maxAge.toNanos();
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Returns the current session from sender to recipient and counts one use of it.
+     *
+     * @param sender       the sender's username
+     * @param recipient    the recipient's username
+     * @param recipientKey the recipient's current public key
+     * @return the session, or {@code null} if a new one must be started
+     */
+    Outbound acquire(String sender, String recipient, PublicKey recipientKey) {
+        Outbound session = outbound.get(outboundKey(sender, recipient));
+        if (session == null
+                || !session.recipientKey.equals(recipientKey)
+                || System.nanoTime() - session.createdAt > maxAgeNanos) {
+            return null;
+        }
+        return session.uses.incrementAndGet() <= maxMessages ? session : null;
+    }
+
+    /**
+     * Makes a new session current. Its first use is counted.
+     *
+     * @param sender    the sender's username
+     * @param recipient the recipient's username
+     * @param session   the new session
+     */
+    void start(String sender, String recipient, Outbound session) {
+        session.uses.incrementAndGet();
+        outbound.put(outboundKey(sender, recipient), session);
+    }
+
+    /**
+     * Returns a cached, unwrapped inbound session key.
+     *
+     * @param recipient the recipient's username
+     * @param keyId     the session key id
+     * @return the key, or {@code null} if it is not cached
+     */
+    SecretKey inbound(String recipient, long keyId) {
+        return inbound.get(inboundKey(recipient, keyId));
+    }
+
+    /**
+     * Caches an unwrapped inbound session key.
+     *
+     * @param recipient the recipient's username
+     * @param keyId     the session key id
+     * @param key       the unwrapped key
+     */
+    void putInbound(String recipient, long keyId, SecretKey key) {
+        inbound.put(inboundKey(recipient, keyId), key);
+    }
+
+    // Usernames from before they were checked may hold any character: the sender is prefixed with
+    // its length, and a key id holds no ':', so the composite keys stay unambiguous
+    private static String outboundKey(String sender, String recipient) {
+        return sender.length() + ":" + sender + recipient;
+    }
+
+    private static String inboundKey(String recipient, long keyId) {
+        return recipient + ':' + keyId;
+    }
+}
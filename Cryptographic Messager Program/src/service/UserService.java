@@ -1,60 +1,176 @@
 package service;
 
 import java.io.*;
+import java.nio.file.Path;
 import java.security.KeyPair;
 import java.security.PublicKey;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
 import model.User;
-import util.KeyUtil;
+import storage.StorageLayout;
+import storage.UserKeyStore;
+import storage.UserStore;
+import util.KeyPairPool;
+import util.KeyScheme;
 
 /**
  * Service for managing user registration, login, and user data persistence.
  */
 public class UserService {
 
-    private final Map<String, User> userStore = new HashMap<>();
-    private static final String USER_DATA_FILE = "users.dat";
+    private static final String USER_STORE_FILE = "users.log";
+    private static final String LEGACY_USER_DATA_FILE = "users.dat";
+    private static final String KEY_STORE_FILE = "keys.log";
 
+    private static final Histogram REGISTER = Metrics.timer("user.register");
+    private static final Histogram LOGIN = Metrics.timer("user.login");
+    private static final Counter LOGIN_FAILURES = Metrics.counter("user.login.failures");
+
+    private final Path baseDirectory;
+    private final UserStore userStore;
+    private final UserKeyStore keyStore;
+    private final PublicKeyCache publicKeys;
+    private final Set<String> registering = ConcurrentHashMap.newKeySet();
+    private volatile KeyScheme keyScheme = KeyScheme.forName(System.getProperty("cryptomessenger.keyScheme", "RSA"));
+    private volatile KeyPairPool keyPairPool;
+    private volatile PasswordHashing passwordHashing = PasswordHashing.withDefaults();
+
+    /**
+     * Creates a user service storing users and keys under the configured storage root
+     * (see {@link StorageLayout#defaultRoot()}).
+     */
     public UserService() {
-        loadUsers();
+        this(StorageLayout.defaultRoot());
+    }
+
+    /**
+     * Creates a user service storing users and keys in the given directory.
+     * Only the user and key indexes are loaded; a legacy {@code users.dat} file and legacy
+     * per-user key files are migrated on first use.
+     *
+     * @param baseDirectory the storage directory
+     */
+    public UserService(Path baseDirectory) {
+        this.baseDirectory = baseDirectory;
+        this.userStore = loadUsers();
+        this.keyStore = loadKeys();
+        this.publicKeys = new PublicKeyCache(keyStore, PublicKeyCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Sets the key scheme used for the key pairs of newly registered users.
+     * Existing users keep their keys; messages between users of different schemes work.
+     *
+     * @param keyScheme the key scheme; defaults to the {@code cryptomessenger.keyScheme}
+     *                  system property, or {@link KeyScheme#RSA}
+     */
+    public void setKeyScheme(KeyScheme keyScheme) {
+        this.keyScheme = keyScheme;
+    }
+
+    /**
+     * Sets a pool of pre-generated key pairs for new users, or {@code null} to generate
+     * each key pair during registration. The pool is only used while its scheme matches
+     * the configured key scheme. The caller keeps ownership of the pool and closes it.
+     *
+     * @param keyPairPool the key pair pool
+     */
+    public void setKeyPairPool(KeyPairPool keyPairPool) {
+        this.keyPairPool = keyPairPool;
+    }
+
+    /**
+     * Sets the password hashing service used to hash and verify passwords. Stored hashes the
+     * service considers outdated, including legacy SHA-256 hashes, are replaced on the next
+     * successful login. The caller keeps ownership of the service and closes it.
+     *
+     * @param passwordHashing the password hashing service; defaults to
+     *                        {@link PasswordHashing#withDefaults()}
+     */
+    public void setPasswordHashing(PasswordHashing passwordHashing) {
+        this.passwordHashing = passwordHashing;
+    }
+
+    /**
+     * Returns the password hashing service, e.g. to read its latency and rejection counts.
+     *
+     * @return the password hashing service
+     */
+    public PasswordHashing getPasswordHashing() {
+        return passwordHashing;
     }
 
     /**
      * Registers a new user with the given username and password.
-     * Generates RSA key pair and saves user data.
+     * Generates a key pair with the configured key scheme and appends the user to the store.
+     * Safe to call concurrently: of several registrations of one username exactly one succeeds,
+     * and only that one stores keys. The keys are stored before the user record, so a failed or
+     * interrupted registration leaves no account without keys and the name can be registered again.
      *
      * @param username the username
      * @param password the password
      * @return the registered User object
+     * @throws IllegalArgumentException if the username is invalid (see {@link User#checkUsername}) or taken
      * @throws Exception if registration fails
      */
     public User register(String username, String password) throws Exception {
-        if (userStore.containsKey(username)) {
+        long start = Metrics.start();
+        try {
+            return registerUser(username, password);
+        } finally {
+            REGISTER.recordSince(start);
+        }
+    }
+
+    private User registerUser(String username, String password) throws Exception {
+        User.checkUsername(username);
+        // Reserve the name in memory while the keys are written, so a concurrent registration
+        // of the same name cannot replace them. The store is checked only once the name is
+        // reserved: checked before, a registration that just finished could be missed.
+        if (!registering.add(username)) {
             throw new IllegalArgumentException("Username already exists.");
         }
+        try {
+            if (userStore.contains(username)) {
+                throw new IllegalArgumentException("Username already exists.");
+            }
+            return registerReserved(username, password);
+        } finally {
+            registering.remove(username);
+        }
+    }
 
-        String passwordHash = hashPassword(password);
+    private User registerReserved(String username, String password) throws Exception {
+
+        String passwordHash = passwordHashing.hash(password);
         User user = new User(username, passwordHash);
 
-        // Generate RSA key pair
-        KeyPair keyPair = KeyUtil.generateRSAKeyPair();
+        // Take a pre-generated key pair if a pool is set, otherwise generate one
+        KeyPairPool pool = keyPairPool;
+        KeyScheme scheme = keyScheme;
+        KeyPair keyPair = pool != null && pool.getScheme() == scheme
+                ? pool.take()
+                : scheme.generateKeyPair();
         user.setPrivateKey(keyPair.getPrivate());
         user.setPublicKey(keyPair.getPublic());
 
-        // Save keys to file
-        KeyUtil.saveKeyToFile(user.getPublicKey(), username + "_public.key");
-        KeyUtil.saveKeyToFile(user.getPrivateKey(), username + "_private.key");
-
-        userStore.put(username, user);
-        saveUsers();
+        // Keys first: until the user record is written the name is free, and keys left behind
+        // by a failed registration are replaced by the next one
+        if (!keyStore.putUnlessRegistered(username, keyPair, userStore) || !userStore.putIfAbsent(user)) {
+            throw new IllegalArgumentException("Username already exists.");
+        }
+        publicKeys.put(username, user.getPublicKey());
 
         return user;
     }
 
     /**
      * Logs in a user with the given username and password.
-     * Loads user's key pair from files.
+     * Loads the user's key pair from the key store. A legacy or outdated password hash is replaced
+     * with one from the current hasher.
      *
      * @param username the username
      * @param password the password
@@ -62,59 +178,100 @@ public class UserService {
      * @throws Exception if login fails
      */
     public User login(String username, String password) throws Exception {
-        User user = userStore.get(username);
+        long start = Metrics.start();
+        try {
+            return loginUser(username, password);
+        } catch (IllegalArgumentException e) {
+            LOGIN_FAILURES.increment();
+            throw e;
+        } finally {
+            LOGIN.recordSince(start);
+        }
+    }
 
-        if (user == null || !user.getPasswordHash().equals(hashPassword(password))) {
+    private User loginUser(String username, String password) throws Exception {
+        User user = username == null ? null : userStore.get(username);
+        PasswordHashing hashing = passwordHashing;
+
+        if (user == null || !hashing.verify(password, user.getPasswordHash())) {
             throw new IllegalArgumentException("Invalid username or password.");
         }
 
-        // Load user's key pair from files
-        user.setPublicKey((java.security.PublicKey) KeyUtil.loadKeyFromFile(username + "_public.key"));
-        user.setPrivateKey((java.security.PrivateKey) KeyUtil.loadKeyFromFile(username + "_private.key"));
+        // Upgrade the stored hash while the password is at hand
+        if (hashing.needsRehash(user.getPasswordHash())) {
+            user = rehash(user, password, hashing);
+        }
+
+        KeyPair keyPair = keyStore.getKeyPair(username);
+        if (keyPair == null) {
+            throw new IOException("Keys not found for user: " + username);
+        }
+        user.setPublicKey(keyPair.getPublic());
+        user.setPrivateKey(keyPair.getPrivate());
 
         return user;
     }
 
-    private String hashPassword(String password) throws Exception {
-        java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-256");
-        byte[] hash = digest.digest(password.getBytes());
-        StringBuilder hex = new StringBuilder();
-        for (byte b : hash) {
-            hex.append(String.format("%02x", b));
+    private User rehash(User user, String password, PasswordHashing hashing) throws Exception {
+        User rehashed = new User(user.getUsername(), hashing.hash(password));
+        try {
+            userStore.put(rehashed);
+            return rehashed;
+        } catch (IOException e) {
+            // The old hash still works; try again on the next login
+            System.err.println("Failed to update password hash: " + e.getMessage());
+            return user;
         }
-        return hex.toString();
     }
 
-    private void saveUsers() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USER_DATA_FILE))) {
-            oos.writeObject(userStore);
+
+    private UserStore loadUsers() {
+        try {
+            return UserStore.open(baseDirectory.resolve(USER_STORE_FILE), baseDirectory.resolve(LEGACY_USER_DATA_FILE));
         } catch (IOException e) {
-            System.err.println("Failed to save users: " + e.getMessage());
+            System.err.println("Failed to load users: " + e.getMessage());
+            throw new UncheckedIOException(e);
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private void loadUsers() {
-        File file = new File(USER_DATA_FILE);
-        if (!file.exists()) return;
-
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-            Map<String, User> loaded = (Map<String, User>) ois.readObject();
-            userStore.putAll(loaded);
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Failed to load users: " + e.getMessage());
+    private UserKeyStore loadKeys() {
+        try {
+            return UserKeyStore.open(baseDirectory.resolve(KEY_STORE_FILE), baseDirectory);
+        } catch (IOException e) {
+            System.err.println("Failed to load keys: " + e.getMessage());
+            throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Checks whether a username is registered.
+     *
+     * @param username the username
+     * @return {@code true} if the user exists
+     */
+    public boolean userExists(String username) {
+        return userStore.contains(username);
+    }
+
     /**
      * Gets the public key of a user by username.
+     * Decoded keys are cached and reloaded only when the user's keys are replaced.
      *
      * @param username the username
      * @return the public key
      * @throws Exception if the key cannot be loaded
      */
     public PublicKey getUserPublicKey(String username) throws Exception {
-        return (PublicKey) KeyUtil.loadKeyFromFile(username + "_public.key");
+        return publicKeys.get(username);
+    }
+
+    /**
+     * Returns the cache behind {@link #getUserPublicKey}, e.g. to read its hit and miss counts.
+     *
+     * @return the public key cache
+     */
+    public PublicKeyCache getPublicKeyCache() {
+        return publicKeys;
     }
 
 }
\ No newline at end of file
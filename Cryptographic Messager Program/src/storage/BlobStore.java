@@ -0,0 +1,168 @@
+package storage;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Stores large opaque payloads (such as encrypted attachments) as individual files,
+ * outside the inbox logs. Blobs are written to a temporary file and only become visible
+ * under their id once fully written and synced, and {@link #write} returns only once the
+ * blob's directory entry is durable too, so a record referring to the id survives a crash
+ * only together with the blob. Files are spread over 256 subdirectories
+ * named after the first two hex digits of their id; blobs written before that are still
+ * read from the top-level directory.
+ */
+public class BlobStore {
+
+    private static final String SUFFIX = ".blob";
+
+    private final Path directory;
+
+    /**
+     * Writes blob content to a stream.
+     */
+    public interface BlobWriter {
+        /**
+         * Writes the blob content. The stream may be closed by the writer.
+         *
+         * @param out the blob stream
+         * @throws Exception if producing the content fails
+         */
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    /**
+     * Creates a blob store in the given directory.
+     *
+     * @param directory the blob directory
+     */
+    public BlobStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Writes a new blob.
+     *
+     * @param writer produces the content
+     * @return the new blob's id
+     * @throws Exception if writing fails; no blob is left behind
+     */
+    public String write(BlobWriter writer) throws Exception {
+        String id = UUID.randomUUID().toString().replace("-", "");
+        Path path = path(id);
+        boolean newRoot = !Files.isDirectory(directory);
+        boolean newDirectory = !Files.isDirectory(path.getParent());
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(id + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            writer.writeTo(new NonClosingOutputStream(out));
+            out.flush();
+            channel.force(true);
+        } catch (Exception e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+        InboxLog.forceDirectory(path.getParent());
+        // Newly created directories need their own entries made durable
+        if (newDirectory) {
+            InboxLog.forceDirectory(directory);
+        }
+        if (newRoot && directory.toAbsolutePath().getParent() != null) {
+            InboxLog.forceDirectory(directory.toAbsolutePath().getParent());
+        }
+        return id;
+    }
+
+    /**
+     * Opens a blob for reading.
+     *
+     * @param id the blob id
+     * @return the blob content
+     * @throws IOException if the blob does not exist
+     */
+    public InputStream open(String id) throws IOException {
+        return Files.newInputStream(existingPath(id));
+    }
+
+    /**
+     * Reads a whole blob into memory. Only suitable for small blobs.
+     *
+     * @param id the blob id
+     * @return the blob content
+     * @throws IOException if the blob does not exist
+     */
+    public byte[] readAll(String id) throws IOException {
+        return Files.readAllBytes(existingPath(id));
+    }
+
+    /**
+     * Returns the size of a blob in bytes.
+     *
+     * @param id the blob id
+     * @return the size
+     * @throws IOException if the blob does not exist
+     */
+    public long size(String id) throws IOException {
+        return Files.size(existingPath(id));
+    }
+
+    /**
+     * Deletes a blob if it exists.
+     *
+     * @param id the blob id
+     * @throws IOException if deletion fails
+     */
+    public void delete(String id) throws IOException {
+        if (!Files.deleteIfExists(path(id))) {
+            Files.deleteIfExists(directory.resolve(id + SUFFIX));
+        }
+    }
+
+    private Path path(String id) {
+        if (!id.matches("[0-9a-f]{32}")) {
+            throw new IllegalArgumentException("Invalid blob id: " + id);
+        }
+        return directory.resolve(id.substring(0, 2)).resolve(id + SUFFIX);
+    }
+
+    // Falls back to the unsharded location of blobs written by older versions
+    private Path existingPath(String id) {
+        Path path = path(id);
+        if (!Files.exists(path)) {
+            Path unsharded = directory.resolve(id + SUFFIX);
+            if (Files.exists(unsharded)) {
+                return unsharded;
+            }
+        }
+        return path;
+    }
+
+    // The writer may close its stream (e.g. to finish an encrypted stream) without closing the file
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
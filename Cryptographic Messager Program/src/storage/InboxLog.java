@@ -0,0 +1,1372 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented record log backing a single user's inbox.
+ * <p>
+ * Each record is framed as {@code [int length][int crc32][long sequence][payload]}, where the
+ * CRC covers the sequence number and the payload. Records are appended to the newest
+ * ("active") segment; once it reaches the configured size a new segment is started. Older,
+ * sealed segments are never modified in place and can be merged by {@link #compact(long)}.
+ * <p>
+ * A log opened with a {@link RecordKey} also keeps a {@link SegmentIndex} of every record's key
+ * and position, stored next to each sealed segment, so {@link #forEachByKey} reads only the
+ * records it returns.
+ * <p>
+ * Old records are expired by moving the log's start sequence forward with {@link #retain}: records
+ * before it are no longer visited, and {@link #reclaim} later frees their space.
+ * <p>
+ * Readers scan segment files without holding the log lock, so segment files are only replaced or
+ * deleted under the write side of a separate file lock, which scans hold for reading until they
+ * finish, and every such change bumps the log's generation. The file lock is always taken before
+ * the log lock. Compaction and reclaiming run one at a time per log.
+ */
+public class InboxLog {
+
+    /** Size of the per-record frame header in bytes. */
+    public static final int HEADER_SIZE = 16;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACTING_SUFFIX = ".compacting";
+    private static final String COMPACTED_SUFFIX = ".compacted";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String INDEX_TMP_SUFFIX = INDEX_SUFFIX + ".tmp";
+    private static final String START_FILE = "start";
+    private static final String REWRITE_DIRECTORY = "rewrite";
+    private static final String REWRITE_DELETED_MARKER = "deleted";
+    // Record positions in a segment index are ints
+    private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+    private static final long RECLAIM_MIN_ACTIVE_BYTES = 64 * 1024;
+
+    private static final Comparator<Hit> BY_KEY =
+            Comparator.<Hit>comparingLong(hit -> hit.key).thenComparingLong(hit -> hit.sequence);
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final RecordKey recordKey;
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextSequence;
+    private long startSequence;
+    private long generation;
+    private final Set<Path> unsynced = new LinkedHashSet<>();
+    private boolean directoryUnsynced;
+    private final ReadWriteLock files = new ReentrantReadWriteLock();
+    private final Object maintenance = new Object();
+
+    /**
+     * A single segment file, named after the sequence number of its first record.
+     */
+    static final class Segment {
+        final long baseSequence;
+        final Path path;
+        long size;
+        SegmentIndex index;
+
+        Segment(long baseSequence, Path path, long size) {
+            this.baseSequence = baseSequence;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Extracts the key a log is indexed by from a record payload.
+     */
+    public interface RecordKey {
+        /**
+         * Returns the key of a record.
+         *
+         * @param payload the record payload, positioned at its first byte; may be consumed
+         * @return the key
+         * @throws IOException if the payload is malformed
+         */
+        long keyOf(ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * A record selected by {@link #forEachByKey}.
+     */
+    private static final class Hit {
+        final long key;
+        final long sequence;
+        final Segment segment;
+        final int position;
+
+        Hit(long key, long sequence, Segment segment, int position) {
+            this.key = key;
+            this.sequence = sequence;
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Callback used when scanning records.
+     */
+    public interface RecordVisitor {
+        /**
+         * Called once per valid record, in append order.
+         *
+         * @param sequence the record's sequence number
+         * @param payload  the record payload, positioned at its first byte
+         * @throws IOException if the visitor fails
+         */
+        void visit(long sequence, ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * Writes a record payload directly into the framed record buffer.
+     */
+    public interface PayloadWriter {
+        /**
+         * Writes exactly the announced number of payload bytes.
+         *
+         * @param dst the destination buffer, positioned after the frame header
+         */
+        void write(ByteBuffer dst);
+    }
+
+    private InboxLog(Path directory, long maxSegmentBytes, RecordKey recordKey) {
+        this.directory = directory;
+        this.maxSegmentBytes = Math.min(maxSegmentBytes, MAX_SEGMENT_BYTES);
+        this.recordKey = recordKey;
+    }
+
+    /**
+     * Opens (or creates) the log stored in the given directory.
+     * Finishes any interrupted compaction and truncates a torn tail left by a crash.
+     *
+     * @param directory       the log directory
+     * @param maxSegmentBytes the size at which the active segment is rolled, at most 2 GiB
+     * @return the opened log
+     * @throws IOException if the directory cannot be read
+     */
+    public static InboxLog open(Path directory, long maxSegmentBytes) throws IOException {
+        return open(directory, maxSegmentBytes, null);
+    }
+
+    /**
+     * Opens (or creates) a log indexed by the given record key.
+     * Indexes of sealed segments are loaded from disk and rebuilt if missing or stale;
+     * the active segment's index is rebuilt while its tail is recovered.
+     *
+     * @param directory       the log directory
+     * @param maxSegmentBytes the size at which the active segment is rolled, at most 2 GiB
+     * @param recordKey       extracts the key of each record, or {@code null} for no index
+     * @return the opened log
+     * @throws IOException if the directory cannot be read
+     */
+    public static InboxLog open(Path directory, long maxSegmentBytes, RecordKey recordKey) throws IOException {
+        Files.createDirectories(directory);
+        InboxLog log = new InboxLog(directory, maxSegmentBytes, recordKey);
+        log.recover();
+        return log;
+    }
+
+    private void recover() throws IOException {
+        // A rewrite is staged in a directory; finish it once the directory was committed
+        deleteStaged(directory.resolve(REWRITE_DIRECTORY + COMPACTING_SUFFIX));
+        Path rewritten = directory.resolve(REWRITE_DIRECTORY + COMPACTED_SUFFIX);
+        if (Files.isDirectory(rewritten)) {
+            writeStart(0);
+            finishRewrite(rewritten);
+        }
+
+        List<Path> compacted = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(COMPACTING_SUFFIX) || name.endsWith(INDEX_TMP_SUFFIX)) {
+                    Files.delete(file); // Incomplete compaction output or index
+                } else if (name.endsWith(COMPACTED_SUFFIX)) {
+                    compacted.add(file);
+                }
+            }
+        }
+
+        // A ".compacted" file is complete; finish replacing the segments it covers
+        for (Path file : compacted) {
+            String name = file.getFileName().toString();
+            String[] range = name.substring(0, name.length() - COMPACTED_SUFFIX.length()).split("-");
+            long from = Long.parseLong(range[0]);
+            long to = Long.parseLong(range[1]);
+            for (Segment segment : listSegments()) {
+                if (segment.baseSequence >= from && segment.baseSequence < to) {
+                    Files.delete(segment.path);
+                    Files.deleteIfExists(indexPath(segment.baseSequence));
+                }
+            }
+            forceDirectory(directory);
+            Files.move(file, segmentPath(from), StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(directory);
+            if (to == Long.MAX_VALUE) {
+                writeStart(0); // A rewrite restarted the sequence numbers
+            }
+        }
+
+        segments.addAll(listSegments());
+        if (segments.isEmpty()) {
+            segments.add(newSegment(0));
+            nextSequence = 0;
+            loadStart();
+            return;
+        }
+        if (recordKey != null) {
+            for (Segment segment : segments.subList(0, segments.size() - 1)) {
+                loadIndex(segment);
+            }
+        }
+
+        // Only the active segment can have a partially written record
+        Segment active = segments.get(segments.size() - 1);
+        long[] last = {active.baseSequence - 1};
+        RecordVisitor visitor = (sequence, payload) -> last[0] = sequence;
+        if (recordKey != null) {
+            active.index = new SegmentIndex();
+            visitor = indexing(active.index, visitor);
+        }
+        long validBytes = scan(active, visitor);
+        if (validBytes < active.size) {
+            try (FileChannel channel = FileChannel.open(active.path, StandardOpenOption.WRITE)) {
+                channel.truncate(validBytes);
+            }
+            active.size = validBytes;
+        }
+        nextSequence = last[0] + 1;
+        loadStart();
+    }
+
+    // The start is not forced to disk; if it was lost, the first segment's records show again
+    private void loadStart() throws IOException {
+        long start = segments.get(0).baseSequence;
+        Path file = directory.resolve(START_FILE);
+        if (Files.exists(file)) {
+            byte[] bytes = Files.readAllBytes(file);
+            if (bytes.length == Long.BYTES) {
+                start = Math.max(start, ByteBuffer.wrap(bytes).getLong());
+            }
+        }
+        startSequence = Math.min(start, nextSequence);
+    }
+
+    private void writeStart(long sequence) throws IOException {
+        Path file = directory.resolve(START_FILE);
+        Path tmp = file.resolveSibling(START_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(0, sequence);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        startSequence = sequence;
+    }
+
+    private List<Segment> listSegments() throws IOException {
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                found.add(new Segment(base, file, Files.size(file)));
+            }
+        }
+        found.sort((a, b) -> Long.compare(a.baseSequence, b.baseSequence));
+        return found;
+    }
+
+    private Path segmentPath(long baseSequence) {
+        return directory.resolve(String.format("%020d", baseSequence) + SEGMENT_SUFFIX);
+    }
+
+    private Path indexPath(long baseSequence) {
+        return directory.resolve(String.format("%020d", baseSequence) + INDEX_SUFFIX);
+    }
+
+    private Segment newSegment(long baseSequence) {
+        Segment segment = new Segment(baseSequence, segmentPath(baseSequence), 0);
+        if (recordKey != null) {
+            segment.index = new SegmentIndex();
+        }
+        return segment;
+    }
+
+    // Seals the active segment, storing its index, and starts a new one
+    private Segment roll() throws IOException {
+        Segment sealed = segments.get(segments.size() - 1);
+        if (sealed.index != null) {
+            sealed.index.write(indexPath(sealed.baseSequence));
+        }
+        Segment active = newSegment(nextSequence);
+        segments.add(active);
+        return active;
+    }
+
+    // Records whose key cannot be read sort before every other record
+    private long keyOf(ByteBuffer payload) {
+        try {
+            return recordKey.keyOf(payload.duplicate());
+        } catch (IOException | RuntimeException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private RecordVisitor indexing(SegmentIndex index, RecordVisitor next) {
+        int[] position = {0};
+        return (sequence, payload) -> {
+            int length = payload.remaining();
+            index.add(keyOf(payload), sequence, position[0]);
+            position[0] += HEADER_SIZE + length;
+            next.visit(sequence, payload);
+        };
+    }
+
+    private void loadIndex(Segment segment) throws IOException {
+        Path file = indexPath(segment.baseSequence);
+        SegmentIndex index = SegmentIndex.read(file);
+        if (index == null || !covers(index, segment)) {
+            index = new SegmentIndex();
+            scan(segment, indexing(index, (sequence, payload) -> { }));
+            index.write(file);
+        }
+        segment.index = index;
+    }
+
+    // An index is current if its last entry is the segment's last record
+    private static boolean covers(SegmentIndex index, Segment segment) throws IOException {
+        if (index.size() == 0) {
+            return segment.size == 0;
+        }
+        int last = index.size() - 1;
+        long position = index.position(last);
+        if (position + HEADER_SIZE > segment.size) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            readFully(channel, header, position);
+        }
+        header.flip();
+        int length = header.getInt();
+        header.getInt(); // crc
+        long sequence = header.getLong();
+        return sequence == index.sequence(last) && position + HEADER_SIZE + length == segment.size;
+    }
+
+    /**
+     * Appends a record to the end of the log. Only the new record is written.
+     *
+     * @param payload the record payload
+     * @return the sequence number assigned to the record
+     * @throws IOException if writing fails
+     */
+    public long append(ByteBuffer payload) throws IOException {
+        return append(payload.remaining(), dst -> dst.put(payload));
+    }
+
+    /**
+     * Appends a record whose payload is written in place by the caller,
+     * avoiding a separate payload buffer.
+     *
+     * @param length the payload length
+     * @param writer writes the payload
+     * @return the sequence number assigned to the record
+     * @throws IOException if writing fails
+     */
+    public synchronized long append(int length, PayloadWriter writer) throws IOException {
+        Segment active = segments.get(segments.size() - 1);
+        if (active.size > 0 && active.size + HEADER_SIZE + length > maxSegmentBytes) {
+            active = roll();
+        }
+
+        long sequence = nextSequence;
+        ByteBuffer record = frame(sequence, length, writer);
+        long key = recordKey != null ? keyOf(record.duplicate().position(HEADER_SIZE)) : 0;
+        if (active.size == 0) {
+            directoryUnsynced = true; // The segment file is created by this write
+        }
+        try (FileChannel channel = FileChannel.open(active.path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        }
+        if (active.index != null) {
+            active.index.add(key, sequence, (int) active.size);
+        }
+        active.size += HEADER_SIZE + length;
+        nextSequence++;
+        return sequence;
+    }
+
+    /**
+     * Appends several records, writing each segment they land in with a single gathering write.
+     * The records are not forced to disk; call {@link #sync()} for that.
+     *
+     * @param payloads the record payloads, in order
+     * @return the sequence number assigned to the first record
+     * @throws IOException if writing fails
+     */
+    public synchronized long appendAll(List<ByteBuffer> payloads) throws IOException {
+        long first = nextSequence;
+        long[] keys = new long[payloads.size()];
+        if (recordKey != null) {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = keyOf(payloads.get(i));
+            }
+        }
+
+        int next = 0;
+        while (next < payloads.size()) {
+            Segment active = segments.get(segments.size() - 1);
+            List<ByteBuffer> records = new ArrayList<>();
+            long bytes = 0;
+            while (next < payloads.size()) {
+                int length = payloads.get(next).remaining();
+                long size = active.size + bytes;
+                if (size > 0 && size + HEADER_SIZE + length > maxSegmentBytes) {
+                    if (!records.isEmpty()) {
+                        break; // Write what fits, then roll on the next pass
+                    }
+                    active = roll();
+                    continue;
+                }
+                records.add(frame(nextSequence + records.size(), payloads.get(next++)));
+                bytes += HEADER_SIZE + length;
+            }
+
+            ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+            if (active.size == 0) {
+                directoryUnsynced = true; // The segment file is created by this write
+            }
+            try (FileChannel channel = FileChannel.open(active.path,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long written = 0;
+                while (written < bytes) {
+                    written += channel.write(buffers);
+                }
+            }
+            if (active.index != null) {
+                long position = active.size;
+                int firstRecord = next - records.size();
+                for (ByteBuffer record : records) {
+                    active.index.add(keys[firstRecord++], nextSequence++, (int) position);
+                    position += record.limit();
+                }
+            } else {
+                nextSequence += records.size();
+            }
+            active.size += bytes;
+            unsynced.add(active.path);
+        }
+        return first;
+    }
+
+    /**
+     * Forces every segment written by {@link #appendAll} since the last sync to disk, and the log
+     * directory if any append created a segment file since, so a new segment cannot be lost in a
+     * crash. Appends may continue while the sync is in progress.
+     *
+     * @throws IOException if a segment or the directory cannot be forced
+     */
+    public void sync() throws IOException {
+        List<Path> paths;
+        boolean forceDirectory;
+        synchronized (this) {
+            paths = new ArrayList<>(unsynced);
+            unsynced.clear();
+            forceDirectory = directoryUnsynced;
+            directoryUnsynced = false;
+        }
+        files.readLock().lock();
+        try {
+            for (Path path : paths) {
+                // A segment merged away by compaction was forced as part of the compacted file
+                if (!Files.exists(path)) {
+                    continue;
+                }
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        unsynced.add(path);
+                    }
+                    throw e;
+                }
+            }
+            if (forceDirectory) {
+                try {
+                    forceDirectory(directory);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        directoryUnsynced = true;
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            files.readLock().unlock();
+        }
+    }
+
+    // Makes the directory entries of new, renamed or deleted files durable
+    static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return; // Some platforms, such as Windows, cannot open a directory; their entries need no force
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    private static ByteBuffer frame(long sequence, ByteBuffer payload) {
+        return frame(sequence, payload.remaining(), dst -> dst.put(payload));
+    }
+
+    private static ByteBuffer frame(long sequence, int length, PayloadWriter writer) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        record.putInt(length);
+        record.putInt(0); // CRC placeholder
+        record.putLong(sequence);
+        writer.write(record);
+        if (record.position() != HEADER_SIZE + length) {
+            throw new IllegalStateException("Payload writer wrote " + (record.position() - HEADER_SIZE)
+                    + " bytes, expected " + length);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, 8 + length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Replaces the entire content of the log with the given payloads.
+     * Intended for bulk rewrites; normal delivery should use {@link #append(ByteBuffer)}.
+     *
+     * @param payloads the payloads, in order
+     * @throws IOException if writing fails
+     */
+    public void rewrite(List<ByteBuffer> payloads) throws IOException {
+        files.writeLock().lock();
+        try {
+            synchronized (this) {
+                rewriteLocked(payloads);
+            }
+        } finally {
+            files.writeLock().unlock();
+        }
+    }
+
+    private void rewriteLocked(List<ByteBuffer> payloads) throws IOException {
+        // The new segments are written to a staging directory, rolled like appended ones
+        Path staging = directory.resolve(REWRITE_DIRECTORY + COMPACTING_SUFFIX);
+        deleteStaged(staging);
+        Files.createDirectories(staging);
+        List<Segment> rewritten = new ArrayList<>();
+        Segment current = null;
+        FileChannel channel = null;
+        try {
+            long sequence = 0;
+            for (ByteBuffer payload : payloads) {
+                if (current == null || current.size > 0
+                        && current.size + HEADER_SIZE + payload.remaining() > maxSegmentBytes) {
+                    if (channel != null) {
+                        sealStaged(current, channel, staging);
+                    }
+                    current = newSegment(sequence);
+                    rewritten.add(current);
+                    channel = FileChannel.open(staging.resolve(current.path.getFileName()), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                }
+                if (current.index != null) {
+                    current.index.add(keyOf(payload), sequence, (int) current.size);
+                }
+                ByteBuffer record = frame(sequence++, payload);
+                current.size += record.remaining();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+            if (channel != null) {
+                channel.force(true);
+            } else {
+                // Sequence numbers are recovered from the segment names, so keep an empty segment
+                rewritten.add(newSegment(0));
+                Files.createFile(staging.resolve(segmentPath(0).getFileName()));
+            }
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        forceDirectory(staging);
+
+        // Committing is renaming the staging directory; recovery finishes the rest.
+        // Sequence numbers restart at zero, so the start is reset once the new records are
+        // committed; recovery resets it again if the rewrite is finished there.
+        Path done = directory.resolve(REWRITE_DIRECTORY + COMPACTED_SUFFIX);
+        Files.move(staging, done, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(directory);
+        writeStart(0);
+        finishRewrite(done);
+
+        segments.clear();
+        segments.addAll(rewritten);
+        nextSequence = payloads.size();
+        generation++;
+    }
+
+    // Forces a full staged segment and stores its index beside it
+    private void sealStaged(Segment segment, FileChannel channel, Path staging) throws IOException {
+        channel.force(true);
+        channel.close();
+        if (segment.index != null) {
+            segment.index.write(staging.resolve(indexPath(segment.baseSequence).getFileName()));
+        }
+    }
+
+    // Replaces the log's segments with those of a committed rewrite. Every old segment is deleted
+    // before the first new one is moved in, and a marker records that, so an interrupted call
+    // can be repeated: without the marker nothing was moved yet, with it every segment left in
+    // the log directory is already a new one.
+    private void finishRewrite(Path done) throws IOException {
+        Path deleted = done.resolve(REWRITE_DELETED_MARKER);
+        if (!Files.exists(deleted)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(SEGMENT_SUFFIX) || name.endsWith(INDEX_SUFFIX)) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            forceDirectory(directory);
+            Files.createFile(deleted);
+            forceDirectory(done);
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(done)) {
+            for (Path file : files) {
+                if (!file.equals(deleted)) {
+                    Files.move(file, directory.resolve(file.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        }
+        forceDirectory(directory);
+        Files.delete(deleted);
+        Files.delete(done);
+        forceDirectory(directory);
+    }
+
+    // Deletes an uncommitted staging directory and its files
+    private static void deleteStaged(Path staging) throws IOException {
+        if (!Files.isDirectory(staging)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(staging)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(staging);
+    }
+
+    /**
+     * Visits every valid record in the log from the start sequence on, oldest first.
+     *
+     * @param visitor the record visitor
+     * @throws IOException if reading fails or a record is corrupt
+     */
+    public void forEach(RecordVisitor visitor) throws IOException {
+        files.readLock().lock();
+        try {
+            forEachLocked(visitor);
+        } finally {
+            files.readLock().unlock();
+        }
+    }
+
+    private void forEachLocked(RecordVisitor visitor) throws IOException {
+        List<Segment> current;
+        long[] positions;
+        long start;
+        synchronized (this) {
+            current = snapshot();
+            start = startSequence;
+            // The active segment's index grows with appends, so only search it under the lock
+            positions = new long[current.size()];
+            for (int i = 0; i < positions.length; i++) {
+                Segment segment = current.get(i);
+                positions[i] = segment.index != null ? startPosition(segment, start - 1) : 0;
+            }
+        }
+        for (int i = 0; i < current.size(); i++) {
+            read(current.get(i), positions[i], null, (sequence, payload) -> {
+                if (sequence >= start) {
+                    visitor.visit(sequence, payload);
+                }
+            });
+        }
+    }
+
+    /**
+     * Visits the records whose key is in {@code [fromKey, toKey)}, highest key first (newest first
+     * among equal keys), skipping the first {@code offset} of them and stopping after {@code limit}.
+     * Only the segment indexes and the returned records are read.
+     *
+     * @param fromKey the lowest key, inclusive
+     * @param toKey   the highest key, exclusive
+     * @param offset  the number of matching records to skip
+     * @param limit   the maximum number of records to visit
+     * @param visitor the record visitor
+     * @throws IOException if reading fails or a selected record is corrupt
+     * @throws IllegalArgumentException if offset or limit is negative
+     * @throws IllegalStateException if the log was opened without a record key
+     */
+    public void forEachByKey(long fromKey, long toKey, int offset, int limit, RecordVisitor visitor)
+            throws IOException {
+        if (recordKey == null) {
+            throw new IllegalStateException("Log is not indexed");
+        }
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit must not be negative.");
+        }
+        List<ByteBuffer> payloads = new ArrayList<>();
+        List<Hit> page;
+        synchronized (this) {
+            page = selectByKey(fromKey, toKey, offset, limit);
+            // Read under the lock so compaction cannot move the records in the meantime
+            Map<Path, FileChannel> channels = new HashMap<>();
+            try {
+                for (Hit hit : page) {
+                    FileChannel channel = channels.get(hit.segment.path);
+                    if (channel == null) {
+                        channel = FileChannel.open(hit.segment.path, StandardOpenOption.READ);
+                        channels.put(hit.segment.path, channel);
+                    }
+                    payloads.add(readRecord(channel, hit));
+                }
+            } finally {
+                for (FileChannel channel : channels.values()) {
+                    channel.close();
+                }
+            }
+        }
+        for (int i = 0; i < page.size(); i++) {
+            visitor.visit(page.get(i).sequence, payloads.get(i));
+        }
+    }
+
+    // Keeps the offset + limit highest keys in a min-heap; segments and blocks are visited newest
+    // first, so one whose largest key cannot beat the heap's smallest is skipped entry by entry
+    private List<Hit> selectByKey(long fromKey, long toKey, int offset, int limit) {
+        int wanted = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+        if (limit <= 0 || fromKey >= toKey) {
+            return new ArrayList<>();
+        }
+        PriorityQueue<Hit> best = new PriorityQueue<>(BY_KEY);
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            Segment segment = segments.get(s);
+            SegmentIndex index = segment.index;
+            if (index.size() == 0 || index.maxKey() < fromKey || index.minKey() >= toKey) {
+                continue;
+            }
+            if (best.size() == wanted && index.maxKey() <= best.peek().key) {
+                continue;
+            }
+            for (int block = index.blockCount() - 1; block >= 0; block--) {
+                if (index.blockMaxKey(block) < fromKey || index.blockMinKey(block) >= toKey
+                        || best.size() == wanted && index.blockMaxKey(block) <= best.peek().key) {
+                    continue;
+                }
+                // Later records have higher sequences, so an equal key never displaces a kept record
+                int end = Math.min(index.size(), (block + 1) * SegmentIndex.BLOCK_SIZE);
+                for (int i = end - 1; i >= block * SegmentIndex.BLOCK_SIZE; i--) {
+                    long key = index.key(i);
+                    if (key < fromKey || key >= toKey || index.sequence(i) < startSequence) {
+                        continue;
+                    }
+                    if (best.size() < wanted) {
+                        best.add(new Hit(key, index.sequence(i), segment, index.position(i)));
+                    } else if (key > best.peek().key) {
+                        best.poll();
+                        best.add(new Hit(key, index.sequence(i), segment, index.position(i)));
+                    }
+                }
+            }
+        }
+
+        List<Hit> sorted = new ArrayList<>(best);
+        sorted.sort(BY_KEY.reversed());
+        return sorted.subList(Math.min(offset, sorted.size()), sorted.size());
+    }
+
+    private static ByteBuffer readRecord(FileChannel channel, Hit hit) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, hit.position);
+        header.flip();
+        int length = header.getInt();
+        int expectedCrc = header.getInt();
+        long sequence = header.getLong();
+        if (length < 0 || sequence != hit.sequence || hit.position + HEADER_SIZE + (long) length > hit.segment.size) {
+            throw new IOException("Corrupt inbox record in " + hit.segment.path + " at " + hit.position);
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, hit.position + HEADER_SIZE);
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 8, 8);
+        crc.update(payload.array(), 0, length);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Corrupt inbox record in " + hit.segment.path + " at " + hit.position);
+        }
+        return payload;
+    }
+
+    /**
+     * Visits the records after a sequence number, oldest first, stopping after {@code limit}.
+     * Segments that end before the sequence number are skipped, and in an indexed log the scan of
+     * the first segment starts at the first record to visit.
+     *
+     * @param afterSequence visit records with a higher sequence number than this
+     * @param limit         the maximum number of records to visit
+     * @param visitor       the record visitor
+     * @throws IOException if reading fails or a record is corrupt
+     */
+    public void forEachAfter(long afterSequence, int limit, RecordVisitor visitor) throws IOException {
+        files.readLock().lock();
+        try {
+            forEachAfterLocked(afterSequence, limit, visitor);
+        } finally {
+            files.readLock().unlock();
+        }
+    }
+
+    private void forEachAfterLocked(long afterSequence, int limit, RecordVisitor visitor) throws IOException {
+        List<Segment> tail = new ArrayList<>();
+        List<Long> starts = new ArrayList<>();
+        long after;
+        synchronized (this) {
+            after = Math.max(afterSequence, startSequence - 1);
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                if (i + 1 < segments.size() && segments.get(i + 1).baseSequence <= after + 1) {
+                    continue; // Every record here is at or before the sequence to start after
+                }
+                tail.add(new Segment(segment.baseSequence, segment.path, segment.size));
+                starts.add(segment.index != null ? startPosition(segment, after) : 0L);
+            }
+        }
+
+        int[] remaining = {limit};
+        for (int i = 0; i < tail.size() && remaining[0] > 0; i++) {
+            read(tail.get(i), starts.get(i), remaining, (sequence, payload) -> {
+                if (sequence > after) {
+                    remaining[0]--;
+                    visitor.visit(sequence, payload);
+                }
+            });
+        }
+    }
+
+    // Position of the first indexed record after the given sequence, or the end of the segment
+    private static long startPosition(Segment segment, long afterSequence) {
+        SegmentIndex index = segment.index;
+        int low = 0;
+        int high = index.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (index.sequence(mid) <= afterSequence) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < index.size() ? index.position(low) : segment.size;
+    }
+
+    /**
+     * Action run by {@link #withSegments} on a consistent view of the log.
+     *
+     * @param <T> the result type
+     */
+    interface SegmentAction<T> {
+        T apply(List<Segment> segments, long startSequence) throws IOException;
+    }
+
+    /**
+     * Runs an action on a copy of the segment list and the start sequence. No segment file is
+     * replaced or deleted until the action returns, so it may open and map the files.
+     *
+     * @param action the action
+     * @param <T>    the result type
+     * @return the action's result
+     * @throws IOException if the action fails
+     */
+    <T> T withSegments(SegmentAction<T> action) throws IOException {
+        files.readLock().lock();
+        try {
+            List<Segment> current;
+            long start;
+            synchronized (this) {
+                current = snapshot();
+                start = startSequence;
+            }
+            return action.apply(current, start);
+        } finally {
+            files.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a consistent copy of the current segment list.
+     *
+     * @return the segments, oldest first
+     */
+    synchronized List<Segment> snapshot() {
+        List<Segment> copy = new ArrayList<>(segments.size());
+        for (Segment segment : segments) {
+            Segment view = new Segment(segment.baseSequence, segment.path, segment.size);
+            view.index = segment.index;
+            copy.add(view);
+        }
+        return copy;
+    }
+
+    /**
+     * Scans a segment during recovery, verifying each record's CRC. Stops at the first invalid
+     * record, which is where a torn write ends the segment.
+     *
+     * @return the number of bytes occupied by valid records
+     */
+    private static long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        if (!Files.exists(segment.path)) {
+            return 0;
+        }
+        return scan(segment, 0, null, false, visitor);
+    }
+
+    /**
+     * Reads a segment's records from a record boundary up to its known size, stopping early once
+     * {@code remaining[0]} drops to zero if {@code remaining} is given. The caller holds the file
+     * lock, so every record up to the size must be intact.
+     *
+     * @throws IOException if the segment is missing or a record is corrupt
+     */
+    private static void read(Segment segment, long start, int[] remaining, RecordVisitor visitor) throws IOException {
+        if (segment.size == 0) {
+            return; // The active segment's file is created by the first append
+        }
+        scan(segment, start, remaining, true, visitor);
+    }
+
+    private static long scan(Segment segment, long start, int[] remaining, boolean strict, RecordVisitor visitor)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            long limit = Math.min(segment.size, channel.size());
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long position = start;
+            while (position + HEADER_SIZE <= limit && (remaining == null || remaining[0] > 0)) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int length = header.getInt();
+                int expectedCrc = header.getInt();
+                long sequence = header.getLong();
+                if (length < 0 || position + HEADER_SIZE + length > limit) {
+                    break;
+                }
+
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, position + HEADER_SIZE);
+                payload.flip();
+
+                CRC32 crc = new CRC32();
+                crc.update(header.array(), 8, 8);
+                crc.update(payload.array(), 0, length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+
+                visitor.visit(sequence, payload);
+                position += HEADER_SIZE + length;
+            }
+            boolean stoppedEarly = remaining != null && remaining[0] <= 0;
+            if (position < segment.size && !stoppedEarly) {
+                if (strict || position < channel.size()) {
+                    String error = "Corrupt inbox record in " + segment.path + " at " + position;
+                    if (strict) {
+                        throw new IOException(error);
+                    }
+                    System.err.println(error);
+                }
+            }
+            return position;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Returns the number of sealed (no longer written) segments.
+     *
+     * @return the sealed segment count
+     */
+    public synchronized int sealedSegmentCount() {
+        return segments.size() - 1;
+    }
+
+    /**
+     * Returns the total size of the log's segment files.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long sizeBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.size;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the sequence number the next appended record will receive.
+     *
+     * @return the next sequence number
+     */
+    public synchronized long nextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Returns the sequence number of the oldest record that is still visited.
+     *
+     * @return the start sequence, equal to {@link #nextSequence()} if every record has expired
+     */
+    public synchronized long startSequence() {
+        return startSequence;
+    }
+
+    /**
+     * Moves the start sequence forward past the oldest records until the rest fit the given
+     * limits. Records expire strictly oldest first, so one older than {@code minKey} is kept while
+     * a newer record before it is. Only the in-memory indexes are consulted; the start is written
+     * to disk but not forced, and the space of expired records is freed by {@link #reclaim}.
+     *
+     * @param minKey     expire the records before the first one with at least this key,
+     *                   or {@link Long#MIN_VALUE} for no key limit
+     * @param maxRecords the most records to keep, or {@code 0} for no limit
+     * @param maxBytes   the most bytes of records, frame headers included, to keep, or {@code 0} for no limit
+     * @return the number of records that expired
+     * @throws IOException if the start cannot be written
+     * @throws IllegalStateException if the log was opened without a record key
+     */
+    public synchronized long retain(long minKey, long maxRecords, long maxBytes) throws IOException {
+        if (recordKey == null) {
+            throw new IllegalStateException("Log is not indexed");
+        }
+        long start = startSequence;
+        if (maxRecords > 0) {
+            start = Math.max(start, nextSequence - maxRecords);
+        }
+        if (maxBytes > 0) {
+            start = Math.max(start, firstWithinBytes(maxBytes));
+        }
+        if (minKey != Long.MIN_VALUE) {
+            start = firstWithKeyAtLeast(minKey, start);
+        }
+        if (start <= startSequence) {
+            return 0;
+        }
+        long expired = start - startSequence;
+        writeStart(start);
+        return expired;
+    }
+
+    // Sequence of the first record from the given one on whose key is at least minKey
+    private long firstWithKeyAtLeast(long minKey, long from) {
+        for (Segment segment : segments) {
+            SegmentIndex index = segment.index;
+            if (index.size() == 0 || index.sequence(index.size() - 1) < from) {
+                continue;
+            }
+            for (int block = 0; block < index.blockCount(); block++) {
+                int begin = block * SegmentIndex.BLOCK_SIZE;
+                int end = Math.min(index.size(), begin + SegmentIndex.BLOCK_SIZE);
+                // A block whose keys are all below minKey expires as a whole
+                if (index.sequence(end - 1) < from || index.blockMaxKey(block) < minKey) {
+                    continue;
+                }
+                for (int i = begin; i < end; i++) {
+                    if (index.sequence(i) >= from && index.key(i) >= minKey) {
+                        return index.sequence(i);
+                    }
+                }
+            }
+        }
+        return Math.max(from, nextSequence);
+    }
+
+    // Sequence of the oldest record such that it and every newer record take at most maxBytes
+    private long firstWithinBytes(long maxBytes) {
+        long budget = maxBytes;
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            Segment segment = segments.get(s);
+            if (segment.size <= budget) {
+                budget -= segment.size;
+                continue;
+            }
+            // Bytes from a record to the segment end shrink with each later record
+            SegmentIndex index = segment.index;
+            int low = 0;
+            int high = index.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (segment.size - index.position(mid) > budget) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low < index.size() ? index.sequence(low) : index.sequence(index.size() - 1) + 1;
+        }
+        return segments.get(0).baseSequence;
+    }
+
+    // Bytes of a segment taken by records before the start sequence, or 0 if it is not indexed
+    private long expiredBytes(Segment segment, long start) {
+        return segment.index != null ? startPosition(segment, start - 1) : 0;
+    }
+
+    /**
+     * Frees the space of records before the start sequence: deletes sealed segments that only
+     * hold expired records and rewrites at least half-expired segments without them, one per call
+     * so each call is short. The active segment is sealed first once enough of it has expired.
+     * Like {@link #compact}, records are copied without holding the log lock.
+     *
+     * @return the number of bytes freed
+     * @throws IOException if a segment cannot be deleted or rewritten
+     */
+    public long reclaim() throws IOException {
+        synchronized (maintenance) {
+            return reclaimExpired();
+        }
+    }
+
+    private long reclaimExpired() throws IOException {
+        long freed = 0;
+        Segment partial = null;
+        long start;
+        long startGeneration;
+        files.writeLock().lock();
+        try {
+            synchronized (this) {
+                start = startSequence;
+                Segment active = segments.get(segments.size() - 1);
+                if (active.size > 0 && start > active.baseSequence) {
+                    long expired = expiredBytes(active, start);
+                    if (start >= nextSequence || expired >= RECLAIM_MIN_ACTIVE_BYTES && expired * 2 >= active.size) {
+                        roll();
+                    }
+                }
+
+                List<Segment> expired = new ArrayList<>();
+                for (int i = 0; i < segments.size() - 1; i++) {
+                    Segment segment = segments.get(i);
+                    if (segments.get(i + 1).baseSequence <= start) {
+                        expired.add(segment);
+                        continue;
+                    }
+                    long expiredBytes = expiredBytes(segment, start);
+                    if (expiredBytes > 0 && expiredBytes * 2 >= segment.size) {
+                        partial = new Segment(segment.baseSequence, segment.path, segment.size);
+                        partial.index = segment.index;
+                    }
+                    break;
+                }
+                if (!expired.isEmpty() && !Files.exists(segments.get(segments.size() - 1).path)) {
+                    // Sequence numbers are recovered from the segment names, so keep an empty active segment
+                    Files.createFile(segments.get(segments.size() - 1).path);
+                }
+                for (Segment segment : expired) {
+                    Files.deleteIfExists(segment.path);
+                    Files.deleteIfExists(indexPath(segment.baseSequence));
+                    freed += segment.size;
+                }
+                if (!expired.isEmpty()) {
+                    forceDirectory(directory);
+                    segments.removeAll(expired);
+                    generation++;
+                }
+                startGeneration = generation;
+            }
+        } finally {
+            files.writeLock().unlock();
+        }
+
+        if (partial != null) {
+            long merged = merge(List.of(partial), startGeneration, start);
+            if (merged >= 0) {
+                freed += partial.size - merged;
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Merges runs of small sealed segments into larger ones.
+     * Sealed segments are immutable, so records are copied without holding the log lock;
+     * the lock is only taken to swap the merged segment in.
+     *
+     * @param maxCompactedBytes the maximum size of a merged segment; capped at 2 GiB
+     * @throws IOException if compaction fails
+     */
+    public void compact(long maxCompactedBytes) throws IOException {
+        synchronized (maintenance) {
+            compactSealed(maxCompactedBytes);
+        }
+    }
+
+    private void compactSealed(long maxCompactedBytes) throws IOException {
+        List<Segment> sealed;
+        long startGeneration;
+        long keepFrom;
+        synchronized (this) {
+            sealed = snapshot();
+            startGeneration = generation;
+            keepFrom = startSequence;
+        }
+        sealed.remove(sealed.size() - 1);
+
+        long maxBytes = Math.min(maxCompactedBytes, MAX_SEGMENT_BYTES);
+        int start = 0;
+        while (start < sealed.size()) {
+            int end = start;
+            long total = sealed.get(start).size;
+            while (end + 1 < sealed.size() && total + sealed.get(end + 1).size <= maxBytes) {
+                end++;
+                total += sealed.get(end).size;
+            }
+            if (end > start) {
+                if (merge(sealed.subList(start, end + 1), startGeneration, keepFrom) < 0) {
+                    return;
+                }
+                startGeneration++; // Our own merge; the other runs are unchanged
+            }
+            start = end + 1;
+        }
+    }
+
+    // Copies the records of a run of sealed segments from keepFrom on into one segment;
+    // returns its size, or -1 if the segment files changed in the meantime
+    private long merge(List<Segment> run, long startGeneration, long keepFrom) throws IOException {
+        long from = run.get(0).baseSequence;
+        long to = run.get(run.size() - 1).baseSequence + 1;
+        Path tmp = directory.resolve(from + "-" + to + COMPACTING_SUFFIX);
+
+        Segment merged = newSegment(from);
+        long[] size = {0};
+        files.readLock().lock();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The generation check below catches a run replaced before this read lock was taken
+            for (Segment segment : run) {
+                long start = segment.index != null ? startPosition(segment, keepFrom - 1) : 0;
+                read(segment, start, null, (sequence, payload) -> {
+                    if (sequence < keepFrom) {
+                        return;
+                    }
+                    if (merged.index != null) {
+                        merged.index.add(keyOf(payload), sequence, (int) size[0]);
+                    }
+                    ByteBuffer record = frame(sequence, payload);
+                    size[0] += record.remaining();
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                });
+            }
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        } finally {
+            files.readLock().unlock();
+        }
+
+        files.writeLock().lock();
+        try {
+            synchronized (this) {
+                return commitMerge(run, merged, size[0], tmp, startGeneration);
+            }
+        } finally {
+            files.writeLock().unlock();
+        }
+    }
+
+    // Swaps a merged segment in for the run it was copied from; called holding both locks
+    private long commitMerge(List<Segment> run, Segment merged, long size, Path tmp, long startGeneration)
+            throws IOException {
+        // The log may have been rewritten or reclaimed while we were copying
+        if (generation != startGeneration) {
+            Files.deleteIfExists(tmp);
+            return -1;
+        }
+        long from = merged.baseSequence;
+        long to = run.get(run.size() - 1).baseSequence + 1;
+        // Each step is made durable before the next, so recovery always sees a consistent state
+        Path done = directory.resolve(from + "-" + to + COMPACTED_SUFFIX);
+        Files.move(tmp, done, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(directory);
+        for (Segment segment : run) {
+            Files.delete(segment.path);
+            Files.deleteIfExists(indexPath(segment.baseSequence));
+        }
+        forceDirectory(directory);
+        Files.move(done, segmentPath(from), StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(directory);
+
+        merged.size = size;
+        if (merged.index != null) {
+            merged.index.write(indexPath(from));
+        }
+        segments.removeIf(segment -> segment.baseSequence >= from && segment.baseSequence < to);
+        segments.add(0, merged);
+        segments.sort((a, b) -> Long.compare(a.baseSequence, b.baseSequence));
+        generation++;
+        return size;
+    }
+}
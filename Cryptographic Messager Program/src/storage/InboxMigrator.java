@@ -0,0 +1,117 @@
+package storage;
+
+import model.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One-shot migrator from the legacy {@code inbox_<user>.dat} files (a single serialized
+ * {@code List<Message>}) to the segmented inbox log.
+ * <p>
+ * Migrated files are renamed to {@code inbox_<user>.dat.migrated} rather than deleted. Until then
+ * the log holds nothing but records copied from the legacy file, in order, so an interrupted
+ * migration resumes after the last record that reached the log.
+ */
+public class InboxMigrator {
+
+    private static final String LEGACY_PREFIX = "inbox_";
+    private static final String LEGACY_SUFFIX = ".dat";
+
+    private InboxMigrator() {
+    }
+
+    /**
+     * Returns the legacy inbox file for a user.
+     *
+     * @param baseDirectory the storage directory
+     * @param username      the username
+     * @return the legacy file path, or {@code null} if the username cannot name a file
+     */
+    public static Path legacyFile(Path baseDirectory, String username) {
+        return StorageLayout.resolvePlain(baseDirectory, LEGACY_PREFIX + username + LEGACY_SUFFIX);
+    }
+
+    /**
+     * Copies every message of a legacy inbox file into the log, then renames the legacy file.
+     * Messages an interrupted migration already copied are skipped.
+     *
+     * @param legacyFile the legacy inbox file
+     * @param log        the target log, empty or holding only the records of an interrupted migration
+     * @param senders    the target log's sender table
+     * @return the number of migrated messages
+     * @throws IOException if the legacy file cannot be read or the log cannot be written
+     */
+    @SuppressWarnings("unchecked")
+    public static int migrate(Path legacyFile, InboxLog log, SenderTable senders) throws IOException {
+        List<Message> messages;
+        try (InputStream in = Files.newInputStream(legacyFile);
+             ObjectInputStream ois = new ObjectInputStream(in)) {
+            messages = (List<Message>) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unrecognised legacy inbox: " + legacyFile, e);
+        }
+
+        // Record n of the log is message n of the file
+        int copied = (int) Math.min(log.nextSequence(), messages.size());
+        List<ByteBuffer> payloads = new ArrayList<>(messages.size() - copied);
+        for (Message message : messages.subList(copied, messages.size())) {
+            int senderId = senders.idFor(message.getSenderUsername());
+            ByteBuffer payload = ByteBuffer.allocate(MessageCodec.encodedSize(message, senderId));
+            MessageCodec.encode(message, senderId, payload);
+            payloads.add(payload.flip());
+        }
+        log.appendAll(payloads);
+        // Rename the legacy file only once its messages are on disk
+        log.sync();
+        Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+        return messages.size();
+    }
+
+    /**
+     * Migrates every legacy inbox file found in the storage directory.
+     *
+     * @param store the inbox store to migrate into
+     * @return the number of migrated inboxes
+     * @throws IOException if listing the directory fails
+     */
+    public static int migrateAll(InboxStore store) throws IOException {
+        int migrated = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(store.getBaseDirectory(),
+                LEGACY_PREFIX + "*" + LEGACY_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String username = name.substring(LEGACY_PREFIX.length(), name.length() - LEGACY_SUFFIX.length());
+                store.log(username); // Opening a log migrates its legacy file
+                if (!Files.exists(file)) {
+                    migrated++;
+                }
+            }
+        }
+        return migrated;
+    }
+
+    /**
+     * Migrates all legacy inboxes in the given directory (default: the configured storage root).
+     *
+     * @param args optional storage directory
+     * @throws IOException if migration fails
+     */
+    public static void main(String[] args) throws IOException {
+        Path baseDirectory = args.length > 0 ? Paths.get(args[0]) : StorageLayout.defaultRoot();
+        try (InboxStore store = new InboxStore(baseDirectory)) {
+            int migrated = migrateAll(store);
+            System.out.println("Migrated " + migrated + " inbox file(s).");
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package storage;
+
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
+import model.Message;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the per-user inbox logs under a storage directory and maintains them in the background:
+ * expiring messages beyond the retention limits and compacting small segments.
+ * Each user's inbox lives in its own {@code inbox_<user>} directory, indexed by message timestamp,
+ * inside the user's shard directory (see {@link StorageLayout}).
+ */
+public class InboxStore implements AutoCloseable {
+
+    /** Default size at which an inbox segment is rolled. */
+    public static final long DEFAULT_SEGMENT_BYTES = 4L * 1024 * 1024;
+
+    private static final long COMPACTED_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int COMPACTION_THRESHOLD = 4;
+    private static final long COMPACTION_INTERVAL_SECONDS = 30;
+
+    private static final Counter MESSAGES_EXPIRED = Metrics.counter("retention.messages_expired");
+    private static final Counter BYTES_RECLAIMED = Metrics.counter("retention.bytes_reclaimed");
+    private static final Histogram RETENTION_TIME = Metrics.timer("retention.pass");
+
+    private final StorageLayout layout;
+    private final long segmentBytes;
+    private volatile boolean layoutChecked;
+    private final ConcurrentMap<String, Inbox> inboxes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService compactor;
+    private final AtomicInteger nextSweepShard = new AtomicInteger();
+    private volatile Retention retention;
+
+    /**
+     * A user's inbox log together with its sender dictionary, session key table and read cursor.
+     */
+    static final class Inbox {
+        final InboxLog log;
+        final SenderTable senders;
+        final SessionKeyTable sessionKeys;
+        final ReadCursor readCursor;
+
+        Inbox(InboxLog log, SenderTable senders, SessionKeyTable sessionKeys, ReadCursor readCursor) {
+            this.log = log;
+            this.senders = senders;
+            this.sessionKeys = sessionKeys;
+            this.readCursor = readCursor;
+        }
+    }
+
+    /**
+     * How much of each inbox is kept; a {@code null} age or a zero limit does not apply.
+     */
+    private static final class Retention {
+        final Duration maxAge;
+        final long maxMessages;
+        final long maxBytes;
+
+        Retention(Duration maxAge, long maxMessages, long maxBytes) {
+            this.maxAge = maxAge;
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    /**
+     * Creates a store in the given directory with the default segment size and shard count.
+     *
+     * @param baseDirectory the storage directory
+     */
+    public InboxStore(Path baseDirectory) {
+        this(new StorageLayout(baseDirectory), DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Creates a store in the given directory with the default shard count.
+     *
+     * @param baseDirectory the storage directory
+     * @param segmentBytes  the size at which inbox segments are rolled
+     */
+    public InboxStore(Path baseDirectory, long segmentBytes) {
+        this(new StorageLayout(baseDirectory), segmentBytes);
+    }
+
+    /**
+     * Creates a store with the given layout.
+     *
+     * @param layout       the storage layout
+     * @param segmentBytes the size at which inbox segments are rolled
+     */
+    public InboxStore(StorageLayout layout, long segmentBytes) {
+        this.layout = layout;
+        this.segmentBytes = segmentBytes;
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inbox-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::maintain,
+                COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Gets the storage directory.
+     * @return the storage directory
+     */
+    public Path getBaseDirectory() {
+        return layout.getRoot();
+    }
+
+    /**
+     * Gets the storage layout.
+     * @return the storage layout
+     */
+    public StorageLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Returns the log for a user, opening it (and migrating a legacy inbox file) on first use.
+     *
+     * @param username the username
+     * @return the user's inbox log
+     * @throws IOException if the log cannot be opened
+     */
+    public InboxLog log(String username) throws IOException {
+        return inbox(username).log;
+    }
+
+    Inbox inbox(String username) throws IOException {
+        Inbox open = inboxes.get(username);
+        if (open != null) {
+            return open;
+        }
+        checkLayout();
+        try {
+            return inboxes.computeIfAbsent(username, name -> {
+                try {
+                    Path directory = inboxDirectory(name);
+                    InboxLog log = InboxLog.open(directory, segmentBytes, MessageCodec::timestampMillis);
+                    SenderTable senders = SenderTable.open(directory.resolve("senders"));
+                    Path legacy = InboxMigrator.legacyFile(layout.getRoot(), name);
+                    if (legacy != null && Files.exists(legacy)) {
+                        InboxMigrator.migrate(legacy, log, senders);
+                    }
+                    SessionKeyTable sessionKeys = SessionKeyTable.open(directory.resolve("sessions"));
+                    ReadCursor readCursor = ReadCursor.open(directory.resolve("cursor"));
+                    return new Inbox(log, senders, sessionKeys, readCursor);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void checkLayout() throws IOException {
+        if (!layoutChecked) {
+            synchronized (this) {
+                if (!layoutChecked) {
+                    layout.checkShardCount();
+                    layoutChecked = true;
+                }
+            }
+        }
+    }
+
+    // Returns the inbox's shard directory, first moving an inbox from the unsharded layout there
+    private Path inboxDirectory(String username) throws IOException {
+        Path directory = layout.inboxDirectory(username);
+        Path unsharded = layout.unshardedInboxDirectory(username);
+        if (Files.isDirectory(unsharded) && !Files.exists(directory)) {
+            Files.createDirectories(directory.getParent());
+            try {
+                Files.move(unsharded, directory, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // E.g. the shard is on another file system: keep using the old location
+                System.err.println("Failed to move inbox of " + username + " to its shard: " + e.getMessage());
+                return unsharded;
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Returns the shard a user's inbox belongs to.
+     *
+     * @param username the username
+     * @return the shard
+     */
+    public int shardOf(String username) {
+        return layout.shardOf(username);
+    }
+
+    /**
+     * Appends a message to a user's inbox log, encoding it directly into the record.
+     *
+     * @param log     the target log
+     * @param senders the log's sender table
+     * @param message the message
+     * @throws IOException if writing fails
+     */
+    static void append(InboxLog log, SenderTable senders, Message message) throws IOException {
+        int senderId = senders.idFor(message.getSenderUsername());
+        message.setSequence(log.append(MessageCodec.encodedSize(message, senderId),
+                dst -> MessageCodec.encode(message, senderId, dst)));
+    }
+
+    /**
+     * Appends a message to a user's inbox and sets its sequence number.
+     *
+     * @param username the recipient's username
+     * @param message  the message
+     * @throws IOException if writing fails
+     */
+    public void append(String username, Message message) throws IOException {
+        Inbox inbox = inbox(username);
+        append(inbox.log, inbox.senders, message);
+    }
+
+    /**
+     * Appends several messages to a user's inbox with one write per segment and sets their
+     * sequence numbers. The messages are not durable until {@link #sync(String)} returns.
+     *
+     * @param username the recipient's username
+     * @param messages the messages, in order
+     * @throws IOException if writing fails
+     */
+    public void appendAll(String username, List<Message> messages) throws IOException {
+        Inbox inbox = inbox(username);
+        List<ByteBuffer> payloads = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            int senderId = inbox.senders.idFor(message.getSenderUsername());
+            ByteBuffer payload = ByteBuffer.allocate(MessageCodec.encodedSize(message, senderId));
+            MessageCodec.encode(message, senderId, payload);
+            payloads.add(payload.flip());
+        }
+        long sequence = inbox.log.appendAll(payloads);
+        for (Message message : messages) {
+            message.setSequence(sequence++);
+        }
+    }
+
+    /**
+     * Forces the messages appended to a user's inbox with {@link #appendAll} to disk.
+     *
+     * @param username the username
+     * @throws IOException if syncing fails
+     */
+    public void sync(String username) throws IOException {
+        inbox(username).log.sync();
+    }
+
+    /**
+     * Stores a wrapped session key for a recipient's inbox.
+     *
+     * @param username the recipient's username
+     * @param keyId    the session key id
+     * @param wrapped  the session key wrapped with the recipient's public key
+     * @throws IOException if writing fails
+     */
+    public void putSessionKey(String username, long keyId, byte[] wrapped) throws IOException {
+        inbox(username).sessionKeys.put(keyId, wrapped);
+    }
+
+    /**
+     * Returns a wrapped session key from a user's inbox.
+     *
+     * @param username the username
+     * @param keyId    the session key id
+     * @return the wrapped session key
+     * @throws IOException if the key is unknown
+     */
+    public byte[] getSessionKey(String username, long keyId) throws IOException {
+        return inbox(username).sessionKeys.get(keyId);
+    }
+
+    /**
+     * Reads every message in a user's inbox, oldest first.
+     *
+     * @param username the username
+     * @return the messages
+     * @throws IOException if reading fails
+     */
+    public List<Message> readAll(String username) throws IOException {
+        Inbox inbox = inbox(username);
+        List<Message> messages = new ArrayList<>();
+        inbox.log.forEach((sequence, payload) -> messages.add(decode(sequence, payload, inbox.senders)));
+        return messages;
+    }
+
+    /**
+     * Reads the messages in a user's inbox sent in {@code [fromMillis, toMillis)}, newest first.
+     * Only the inbox's timestamp index and the returned records are read.
+     *
+     * @param username   the username
+     * @param fromMillis the earliest timestamp in epoch milliseconds, inclusive
+     * @param toMillis   the latest timestamp in epoch milliseconds, exclusive
+     * @param offset     the number of matching messages to skip
+     * @param limit      the maximum number of messages to return
+     * @return the messages, newest first
+     * @throws IOException if reading fails
+     */
+    public List<Message> query(String username, long fromMillis, long toMillis, int offset, int limit)
+            throws IOException {
+        Inbox inbox = inbox(username);
+        List<Message> messages = new ArrayList<>();
+        inbox.log.forEachByKey(fromMillis, toMillis, offset, limit,
+                (sequence, payload) -> messages.add(decode(sequence, payload, inbox.senders)));
+        return messages;
+    }
+
+    /**
+     * Reads the messages in a user's inbox after a sequence number, oldest first.
+     *
+     * @param username      the username
+     * @param afterSequence return messages with a higher sequence number than this
+     * @param limit         the maximum number of messages to return
+     * @return the messages, with their sequence numbers set
+     * @throws IOException if reading fails
+     */
+    public List<Message> readAfter(String username, long afterSequence, int limit) throws IOException {
+        Inbox inbox = inbox(username);
+        List<Message> messages = new ArrayList<>();
+        inbox.log.forEachAfter(afterSequence, limit,
+                (sequence, payload) -> messages.add(decode(sequence, payload, inbox.senders)));
+        return messages;
+    }
+
+    /**
+     * Reads a page of a user's inbox, oldest first. Sequence numbers are consecutive from the
+     * log's start, so the page is found without reading the messages before it.
+     *
+     * @param username the username
+     * @param offset   the number of messages to skip, counted from the oldest
+     * @param limit    the maximum number of messages to return
+     * @return the messages, with their sequence numbers set
+     * @throws IOException if reading fails
+     */
+    public List<Message> readPage(String username, long offset, int limit) throws IOException {
+        return readAfter(username, inbox(username).log.startSequence() - 1 + offset, limit);
+    }
+
+    /**
+     * Returns how many messages a user's inbox holds, without reading them.
+     *
+     * @param username the username
+     * @return the message count
+     * @throws IOException if the inbox cannot be opened
+     */
+    public long messageCount(String username) throws IOException {
+        InboxLog log = inbox(username).log;
+        synchronized (log) {
+            return log.nextSequence() - log.startSequence();
+        }
+    }
+
+    private static Message decode(long sequence, ByteBuffer payload, SenderTable senders) throws IOException {
+        Message message = MessageCodec.decode(payload, senders);
+        message.setSequence(sequence);
+        return message;
+    }
+
+    /**
+     * Returns the sequence number of the newest message a user has read.
+     *
+     * @param username the username
+     * @return the sequence number, or {@link ReadCursor#NONE}
+     * @throws IOException if the inbox cannot be opened
+     */
+    public long getReadCursor(String username) throws IOException {
+        return inbox(username).readCursor.get();
+    }
+
+    /**
+     * Moves a user's read cursor forward to the given message.
+     *
+     * @param username the username
+     * @param sequence the sequence number of the newest read message
+     * @throws IOException if writing fails
+     */
+    public void advanceReadCursor(String username, long sequence) throws IOException {
+        inbox(username).readCursor.advance(sequence);
+    }
+
+    /**
+     * Returns how many messages in a user's inbox are after the read cursor, without reading them.
+     *
+     * @param username the username
+     * @return the unread message count
+     * @throws IOException if the inbox cannot be opened
+     */
+    public long unreadCount(String username) throws IOException {
+        Inbox inbox = inbox(username);
+        // Messages that expired unread no longer count
+        long read = Math.max(inbox.readCursor.get(), inbox.log.startSequence() - 1);
+        return Math.max(0, inbox.log.nextSequence() - 1 - read);
+    }
+
+    /**
+     * Returns the size of a user's inbox log on disk.
+     *
+     * @param username the username
+     * @return the size in bytes
+     * @throws IOException if the inbox cannot be opened
+     */
+    public long sizeBytes(String username) throws IOException {
+        return inbox(username).log.sizeBytes();
+    }
+
+    /**
+     * Opens a memory-mapped view of a user's inbox that decodes messages on access.
+     *
+     * @param username the username
+     * @return the mapped inbox
+     * @throws IOException if the inbox cannot be mapped
+     */
+    public MappedInbox openMapped(String username) throws IOException {
+        Inbox inbox = inbox(username);
+        return MappedInbox.open(inbox.log, inbox.senders);
+    }
+
+    /**
+     * Replaces a user's inbox with the given messages.
+     * Sequence numbers restart at zero, so the read cursor is reset as well.
+     *
+     * @param username the username
+     * @param messages the messages, oldest first
+     * @throws IOException if writing fails
+     */
+    public void rewrite(String username, List<Message> messages) throws IOException {
+        Inbox inbox = inbox(username);
+        List<ByteBuffer> payloads = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            int senderId = inbox.senders.idFor(message.getSenderUsername());
+            ByteBuffer payload = ByteBuffer.allocate(MessageCodec.encodedSize(message, senderId));
+            MessageCodec.encode(message, senderId, payload);
+            payloads.add(payload.flip());
+        }
+        inbox.log.rewrite(payloads);
+        inbox.readCursor.reset();
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).setSequence(i);
+        }
+    }
+
+    /**
+     * Sets how much of each inbox is kept. Messages beyond any of the limits expire oldest first:
+     * they are no longer read, and their space is freed in the background. Expiry never removes a
+     * message while an older one is kept. Disabled by default.
+     * <p>
+     * Only inbox records expire; the blobs of shared messages and attachments are kept.
+     *
+     * @param maxAge      how long a message is kept, by its timestamp, or {@code null} for no limit
+     * @param maxMessages the most messages kept per inbox, or {@code 0} for no limit
+     * @param maxBytes    the most bytes of records kept per inbox, or {@code 0} for no limit
+     * @throws IllegalArgumentException if a limit is negative, or the age is zero
+     */
+    public void setRetention(Duration maxAge, long maxMessages, long maxBytes) {
+        if (maxAge != null && (maxAge.isNegative() || maxAge.isZero())) {
+            throw new IllegalArgumentException("Retention age must be positive");
+        }
+        if (maxMessages < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Retention limits must not be negative");
+        }
+        boolean none = maxAge == null && maxMessages == 0 && maxBytes == 0;
+        this.retention = none ? null : new Retention(maxAge, maxMessages, maxBytes);
+    }
+
+    /**
+     * Expires messages beyond the retention limits in every open inbox and frees the space they
+     * took. Each pass also opens the inboxes of one more shard, so inboxes that nobody has used
+     * since startup expire as well. Called periodically by the background maintenance task.
+     *
+     * @return the number of messages that expired
+     */
+    public long enforceRetention() {
+        Retention retention = this.retention;
+        if (retention == null) {
+            return 0;
+        }
+        long start = Metrics.start();
+        // Message timestamps are local times stored as if they were UTC; compare like with like
+        long minKey = retention.maxAge == null ? Long.MIN_VALUE
+                : LocalDateTime.now().minus(retention.maxAge).toInstant(ZoneOffset.UTC).toEpochMilli();
+        sweepShard();
+
+        long expired = 0;
+        for (Map.Entry<String, Inbox> entry : inboxes.entrySet()) {
+            InboxLog log = entry.getValue().log;
+            try {
+                expired += log.retain(minKey, retention.maxMessages, retention.maxBytes);
+                BYTES_RECLAIMED.add(log.reclaim());
+            } catch (IOException e) {
+                System.err.println("Failed to expire messages of " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+        MESSAGES_EXPIRED.add(expired);
+        RETENTION_TIME.recordSince(start);
+        return expired;
+    }
+
+    // Opens the inboxes in the next shard directory, one shard per call
+    private void sweepShard() {
+        int shard = Math.floorMod(nextSweepShard.getAndIncrement(), layout.getShardCount());
+        Path directory = layout.shardDirectory(shard);
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, StorageLayout.INBOX_PREFIX + "*")) {
+            for (Path inbox : stream) {
+                String name = inbox.getFileName().toString().substring(StorageLayout.INBOX_PREFIX.length());
+                try {
+                    inbox(StorageLayout.username(name));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Failed to open inbox " + inbox + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to open inboxes in " + directory + ": " + e.getMessage());
+        }
+    }
+
+    // The background task: expiry first, so compaction does not copy records about to expire
+    private void maintain() {
+        enforceRetention();
+        compactAll();
+    }
+
+    /**
+     * Compacts every open log that has accumulated enough sealed segments.
+     */
+    public void compactAll() {
+        for (Inbox inbox : inboxes.values()) {
+            if (inbox.log.sealedSegmentCount() < COMPACTION_THRESHOLD) {
+                continue;
+            }
+            try {
+                inbox.log.compact(COMPACTED_SEGMENT_BYTES);
+            } catch (IOException e) {
+                System.err.println("Failed to compact inbox: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops background maintenance.
+     */
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+    }
+}
@@ -0,0 +1,171 @@
+package storage;
+
+import model.Message;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only, memory-mapped view of an inbox log.
+ * <p>
+ * Opening the view maps each segment and records the offset of every record; a record is only
+ * verified and decoded into a {@link Message} when it is accessed. The view is a snapshot of the
+ * log at the time it was opened, without the records before its start sequence. Messages added
+ * through {@link #add(Message)} are kept in memory after the mapped records so the list stays
+ * usable for the rest of a session.
+ */
+public class MappedInbox extends AbstractList<Message> implements RandomAccess {
+
+    private final SenderTable senders;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private final List<Message> appended = new ArrayList<>();
+    private int[] recordSegment = new int[64];
+    private int[] recordPosition = new int[64];
+    private int recordCount;
+
+    private MappedInbox(SenderTable senders) {
+        this.senders = senders;
+    }
+
+    /**
+     * Maps the current segments of a log and builds the record offset index.
+     *
+     * @param log     the inbox log
+     * @param senders the log's sender table
+     * @return the mapped view
+     * @throws IOException if a segment cannot be mapped or its record frames are corrupt
+     */
+    public static MappedInbox open(InboxLog log, SenderTable senders) throws IOException {
+        MappedInbox inbox = new MappedInbox(senders);
+        // Map while the log pins its files; a mapping stays valid after the file is replaced
+        log.withSegments((segments, start) -> {
+            for (InboxLog.Segment segment : segments) {
+                if (segment.size == 0) {
+                    continue; // The active segment's file is created by the first append
+                }
+                try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                    if (channel.size() < segment.size) {
+                        throw new IOException("Inbox segment " + segment.path + " is shorter than expected");
+                    }
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+                    inbox.index(buffer, start, segment.path);
+                }
+            }
+            return null;
+        });
+        return inbox;
+    }
+
+    private void index(ByteBuffer buffer, long start, Path path) throws IOException {
+        int segment = segments.size();
+        segments.add(buffer);
+
+        // Only the length field is read here; the CRC is verified when the record is decoded
+        int position = 0;
+        int limit = buffer.limit();
+        while (position + InboxLog.HEADER_SIZE <= limit) {
+            int length = buffer.getInt(position);
+            if (length < 0 || position + InboxLog.HEADER_SIZE + length > limit) {
+                throw new IOException("Corrupt inbox record in " + path + " at " + position);
+            }
+            if (buffer.getLong(position + 8) < start) {
+                position += InboxLog.HEADER_SIZE + length; // Expired by retention
+                continue;
+            }
+            if (recordCount == recordPosition.length) {
+                recordSegment = Arrays.copyOf(recordSegment, recordCount * 2);
+                recordPosition = Arrays.copyOf(recordPosition, recordCount * 2);
+            }
+            recordSegment[recordCount] = segment;
+            recordPosition[recordCount] = position;
+            recordCount++;
+            position += InboxLog.HEADER_SIZE + length;
+        }
+        if (position != limit) {
+            throw new IOException("Corrupt inbox record in " + path + " at " + position);
+        }
+    }
+
+    /**
+     * Decodes the message at the given index.
+     *
+     * @param index the message index, oldest first
+     * @return the message
+     * @throws UncheckedIOException if the stored record is corrupt
+     */
+    @Override
+    public Message get(int index) {
+        if (index >= recordCount) {
+            return appended.get(index - recordCount);
+        }
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+
+        ByteBuffer segment = segments.get(recordSegment[index]);
+        int position = recordPosition[index];
+        int length = segment.getInt(position);
+        int expectedCrc = segment.getInt(position + 4);
+
+        ByteBuffer record = segment.duplicate();
+        record.limit(position + InboxLog.HEADER_SIZE + length).position(position + 8);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new UncheckedIOException(new IOException("Corrupt inbox record " + index));
+        }
+
+        record.position(position + InboxLog.HEADER_SIZE);
+        try {
+            Message message = MessageCodec.decode(record, senders);
+            message.setSequence(segment.getLong(position + 8));
+            return message;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the number of messages in the view.
+     *
+     * @return the message count
+     */
+    @Override
+    public int size() {
+        return recordCount + appended.size();
+    }
+
+    /**
+     * Adds a message after the mapped records. The log itself is not modified.
+     *
+     * @param message the message
+     * @return {@code true}
+     */
+    @Override
+    public boolean add(Message message) {
+        modCount++;
+        return appended.add(message);
+    }
+
+    /**
+     * Drops every message from the view.
+     */
+    @Override
+    public void clear() {
+        modCount++;
+        segments.clear();
+        appended.clear();
+        recordCount = 0;
+    }
+}
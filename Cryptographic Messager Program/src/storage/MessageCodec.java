@@ -0,0 +1,255 @@
+package storage;
+
+import model.Message;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Compact, versioned binary encoding of {@link Message} used for inbox records.
+ * <p>
+ * Layout (versions 1 and 2):
+ * <pre>
+ * byte    version
+ * byte    flags
+ * varint  sender id      (index into the inbox's {@link SenderTable})
+ * long    timestamp      (epoch milliseconds, UTC)
+ * [long   session key id]                 if FLAG_SESSION_KEY is set
+ * varint  key length,     wrapped AES key bytes (empty for session messages)
+ * varint  content length, IV + ciphertext bytes
+ * [varint length, ASCII attachment id]   if FLAG_ATTACHMENT is set
+ * [varint length, ASCII content blob id] if FLAG_SHARED_CONTENT is set (content is then empty)
+ * </pre>
+ * If FLAG_COMPRESSED is set, the plaintext under the content (inline or in the shared blob) is
+ * deflate-compressed; see {@link util.Compression}. Such records are written as version 2, which
+ * readers that predate compression reject instead of showing the deflate bytes as text; all other
+ * records stay version 1. A record with a flag bit its version does not define is rejected.
+ * Values are written straight into and read straight out of the caller's buffers.
+ */
+public final class MessageCodec {
+
+    /** Current format version. */
+    public static final byte VERSION = 2;
+
+    // Version written for records that use no version 2 feature, so older readers can read them
+    private static final byte VERSION_1 = 1;
+
+    /** Flag: the record references an encrypted attachment blob. */
+    public static final int FLAG_ATTACHMENT = 0x01;
+
+    /** Flag: the record is encrypted with a session key and carries its id. */
+    public static final int FLAG_SESSION_KEY = 0x02;
+
+    /** Flag: the encrypted content is stored in a blob shared by several inboxes. */
+    public static final int FLAG_SHARED_CONTENT = 0x04;
+
+    /** Flag: the content was compressed before it was encrypted. */
+    public static final int FLAG_COMPRESSED = 0x08;
+
+    // Flags each version defines
+    private static final int VERSION_1_FLAGS = FLAG_ATTACHMENT | FLAG_SESSION_KEY | FLAG_SHARED_CONTENT;
+    private static final int VERSION_2_FLAGS = VERSION_1_FLAGS | FLAG_COMPRESSED;
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Returns the exact number of bytes {@link #encode} will write.
+     *
+     * @param message  the message
+     * @param senderId the interned sender id
+     * @return the encoded size
+     */
+    public static int encodedSize(Message message, int senderId) {
+        int keyLength = message.getEncryptedAESKey().length;
+        int contentLength = message.getEncryptedContent().length;
+        int size = 2 + varIntSize(senderId) + 8 + (message.usesSessionKey() ? 8 : 0)
+                + varIntSize(keyLength) + keyLength
+                + varIntSize(contentLength) + contentLength;
+        if (message.hasAttachment()) {
+            int idLength = message.getAttachmentId().length();
+            size += varIntSize(idLength) + idLength;
+        }
+        if (message.hasSharedContent()) {
+            int idLength = message.getContentBlobId().length();
+            size += varIntSize(idLength) + idLength;
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a message into the buffer at its current position.
+     *
+     * @param message  the message
+     * @param senderId the interned sender id
+     * @param dst      the destination buffer, with at least {@link #encodedSize} bytes remaining
+     */
+    public static void encode(Message message, int senderId, ByteBuffer dst) {
+        int flags = (message.hasAttachment() ? FLAG_ATTACHMENT : 0)
+                | (message.usesSessionKey() ? FLAG_SESSION_KEY : 0)
+                | (message.hasSharedContent() ? FLAG_SHARED_CONTENT : 0)
+                | (message.isCompressed() ? FLAG_COMPRESSED : 0);
+        dst.put(message.isCompressed() ? VERSION : VERSION_1);
+        dst.put((byte) flags);
+        putVarInt(dst, senderId);
+        dst.putLong(message.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli());
+        if (message.usesSessionKey()) {
+            dst.putLong(message.getSessionKeyId());
+        }
+
+        byte[] key = message.getEncryptedAESKey();
+        putVarInt(dst, key.length);
+        dst.put(key);
+
+        byte[] content = message.getEncryptedContent();
+        putVarInt(dst, content.length);
+        dst.put(content);
+
+        if (message.hasAttachment()) {
+            putAscii(dst, message.getAttachmentId());
+        }
+        if (message.hasSharedContent()) {
+            putAscii(dst, message.getContentBlobId());
+        }
+    }
+
+    /**
+     * Decodes a message from the buffer's remaining bytes.
+     *
+     * @param src     the source buffer
+     * @param senders the sender table of the inbox the record belongs to
+     * @return the message
+     * @throws IOException if the record is malformed or has an unknown version
+     */
+    public static Message decode(ByteBuffer src, SenderTable senders) throws IOException {
+        byte version = src.get(src.position());
+        checkVersion(version);
+
+        try {
+            src.get(); // version
+            int flags = checkFlags(version, src.get());
+            String sender = senders.name(getVarInt(src));
+            LocalDateTime timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(src.getLong()), ZoneOffset.UTC);
+            long sessionKeyId = (flags & FLAG_SESSION_KEY) != 0 ? src.getLong() : 0;
+
+            byte[] key = new byte[getVarInt(src)];
+            src.get(key);
+            byte[] content = new byte[getVarInt(src)];
+            src.get(content);
+
+            Message message = new Message(content, key, sender, timestamp);
+            message.setSessionKeyId(sessionKeyId);
+            message.setCompressed((flags & FLAG_COMPRESSED) != 0);
+            if ((flags & FLAG_ATTACHMENT) != 0) {
+                message.setAttachmentId(getAscii(src));
+            }
+            if ((flags & FLAG_SHARED_CONTENT) != 0) {
+                message.setContentBlobId(getAscii(src));
+            }
+            return message;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Truncated message record", e);
+        }
+    }
+
+    /**
+     * Reads a record's timestamp without decoding the rest of the record.
+     *
+     * @param src the source buffer, positioned at the record's first byte
+     * @return the timestamp in epoch milliseconds, UTC
+     * @throws IOException if the record is malformed or has an unknown version
+     */
+    public static long timestampMillis(ByteBuffer src) throws IOException {
+        byte version = src.get(src.position());
+        checkVersion(version);
+        try {
+            checkFlags(version, src.get(src.position() + 1));
+            src.position(src.position() + 2); // version, flags
+            getVarInt(src); // sender id
+            return src.getLong();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Truncated message record", e);
+        }
+    }
+
+    private static void checkVersion(byte version) throws IOException {
+        if (version != VERSION_1 && version != VERSION) {
+            throw new IOException("Unsupported message format version " + version);
+        }
+    }
+
+    private static int checkFlags(byte version, byte flags) throws IOException {
+        int known = version == VERSION_1 ? VERSION_1_FLAGS : VERSION_2_FLAGS;
+        if ((flags & ~known) != 0) {
+            throw new IOException("Unknown message flags 0x" + Integer.toHexString(flags & 0xFF)
+                    + " for format version " + version);
+        }
+        return flags;
+    }
+
+    private static void putAscii(ByteBuffer dst, String value) {
+        putVarInt(dst, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            dst.put((byte) value.charAt(i));
+        }
+    }
+
+    private static String getAscii(ByteBuffer src) throws IOException {
+        byte[] bytes = new byte[getVarInt(src)];
+        src.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint.
+     *
+     * @param dst   the destination buffer
+     * @param value the non-negative value
+     */
+    public static void putVarInt(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint.
+     *
+     * @param src the source buffer
+     * @return the value
+     * @throws IOException if the varint is longer than five bytes
+     */
+    public static int getVarInt(ByteBuffer src) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = src.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Returns the encoded size of a varint.
+     *
+     * @param value the non-negative value
+     * @return the number of bytes
+     */
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+}
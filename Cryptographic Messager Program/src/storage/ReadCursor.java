@@ -0,0 +1,91 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read high-water mark of one inbox: the sequence number of the newest message its owner has
+ * read. Messages with a higher sequence number are unread.
+ * <p>
+ * Stored as a single long, replaced atomically on each change. It is not forced to disk;
+ * losing the last update after a crash only shows a few messages as unread again.
+ */
+public class ReadCursor {
+
+    /** Cursor value before any message has been read. */
+    public static final long NONE = -1;
+
+    private final Path file;
+    private long sequence;
+
+    private ReadCursor(Path file, long sequence) {
+        this.file = file;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Loads the cursor from a file.
+     *
+     * @param file the cursor file
+     * @return the cursor, at {@link #NONE} if the file is missing or malformed
+     * @throws IOException if the file cannot be read
+     */
+    public static ReadCursor open(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return new ReadCursor(file, NONE);
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        return new ReadCursor(file, bytes.length == Long.BYTES ? ByteBuffer.wrap(bytes).getLong() : NONE);
+    }
+
+    /**
+     * Returns the sequence number of the newest read message.
+     *
+     * @return the sequence number, or {@link #NONE}
+     */
+    public synchronized long get() {
+        return sequence;
+    }
+
+    /**
+     * Moves the cursor forward. A sequence number at or below the current one is ignored.
+     *
+     * @param sequence the sequence number of the newest read message
+     * @return {@code true} if the cursor moved
+     * @throws IOException if writing fails
+     */
+    public synchronized boolean advance(long sequence) throws IOException {
+        if (sequence <= this.sequence) {
+            return false;
+        }
+        write(sequence);
+        return true;
+    }
+
+    /**
+     * Moves the cursor back to {@link #NONE}, e.g. after the log's sequence numbers restart.
+     *
+     * @throws IOException if writing fails
+     */
+    public synchronized void reset() throws IOException {
+        write(NONE);
+    }
+
+    private void write(long sequence) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(0, sequence);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        this.sequence = sequence;
+    }
+}
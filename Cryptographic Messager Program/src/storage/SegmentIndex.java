@@ -0,0 +1,166 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Key index of one inbox log segment: for each record, in log order, its key (the message
+ * timestamp for inboxes), sequence number and byte position in the segment.
+ * <p>
+ * Stored next to the segment as {@code <base>.idx}, a flat array of
+ * {@code [long key][long sequence][int position]} entries. The index is derived data: it is
+ * written when its segment is sealed, and a missing or stale index is rebuilt from the segment.
+ * <p>
+ * In memory the entries are also grouped into blocks of {@value #BLOCK_SIZE} with their smallest
+ * and largest keys. Messages arrive in roughly timestamp order, so a range or newest-first search
+ * can skip most blocks without looking at their entries.
+ */
+final class SegmentIndex {
+
+    /** Size of one stored entry in bytes. */
+    static final int ENTRY_SIZE = 20;
+
+    /** Number of entries summarized by one block. */
+    static final int BLOCK_SIZE = 256;
+
+    private long[] keys = new long[64];
+    private long[] sequences = new long[64];
+    private int[] positions = new int[64];
+    private int count;
+    private long[] blockMin = new long[4];
+    private long[] blockMax = new long[4];
+    private long minKey = Long.MAX_VALUE;
+    private long maxKey = Long.MIN_VALUE;
+
+    /**
+     * Adds the entry for the next record of the segment.
+     *
+     * @param key      the record key
+     * @param sequence the record sequence number
+     * @param position the record's byte position in the segment
+     */
+    void add(long key, long sequence, int position) {
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            sequences = Arrays.copyOf(sequences, count * 2);
+            positions = Arrays.copyOf(positions, count * 2);
+        }
+        int block = count / BLOCK_SIZE;
+        if (count % BLOCK_SIZE == 0) {
+            if (block == blockMin.length) {
+                blockMin = Arrays.copyOf(blockMin, block * 2);
+                blockMax = Arrays.copyOf(blockMax, block * 2);
+            }
+            blockMin[block] = key;
+            blockMax[block] = key;
+        } else {
+            blockMin[block] = Math.min(blockMin[block], key);
+            blockMax[block] = Math.max(blockMax[block], key);
+        }
+        keys[count] = key;
+        sequences[count] = sequence;
+        positions[count] = position;
+        count++;
+        minKey = Math.min(minKey, key);
+        maxKey = Math.max(maxKey, key);
+    }
+
+    int size() {
+        return count;
+    }
+
+    long key(int index) {
+        return keys[index];
+    }
+
+    long sequence(int index) {
+        return sequences[index];
+    }
+
+    int position(int index) {
+        return positions[index];
+    }
+
+    int blockCount() {
+        return (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    long blockMinKey(int block) {
+        return blockMin[block];
+    }
+
+    long blockMaxKey(int block) {
+        return blockMax[block];
+    }
+
+    /** @return the smallest key, or {@link Long#MAX_VALUE} if the index is empty */
+    long minKey() {
+        return minKey;
+    }
+
+    /** @return the largest key, or {@link Long#MIN_VALUE} if the index is empty */
+    long maxKey() {
+        return maxKey;
+    }
+
+    /**
+     * Reads a stored index.
+     *
+     * @param file the index file
+     * @return the index, or {@code null} if the file is missing or not a whole number of entries
+     * @throws IOException if reading fails
+     */
+    static SegmentIndex read(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size % ENTRY_SIZE != 0 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+            buffer.flip();
+
+            SegmentIndex index = new SegmentIndex();
+            while (buffer.hasRemaining()) {
+                index.add(buffer.getLong(), buffer.getLong(), buffer.getInt());
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Writes the index, replacing the file atomically.
+     *
+     * @param file the index file
+     * @throws IOException if writing fails
+     */
+    void write(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * ENTRY_SIZE);
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(keys[i]).putLong(sequences[i]).putInt(positions[i]);
+        }
+        buffer.flip();
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
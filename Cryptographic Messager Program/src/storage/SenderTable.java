@@ -0,0 +1,115 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only dictionary of sender usernames for one inbox.
+ * Records refer to senders by their index in this table, and every decoded message from the
+ * same sender shares one interned {@code String}.
+ */
+public class SenderTable {
+
+    private final Path file;
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private SenderTable(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the table from a file, ignoring a torn last entry.
+     *
+     * @param file the table file
+     * @return the table
+     * @throws IOException if the file cannot be read
+     */
+    public static SenderTable open(Path file) throws IOException {
+        SenderTable table = new SenderTable(file);
+        if (!Files.exists(file)) {
+            return table;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        int valid = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                int length = MessageCodec.getVarInt(buffer);
+                if (length > buffer.remaining()) {
+                    break;
+                }
+                String name = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8).intern();
+                buffer.position(buffer.position() + length);
+                table.ids.put(name, table.names.size());
+                table.names.add(name);
+                valid = buffer.position();
+            }
+        } catch (BufferUnderflowException | IOException e) {
+            // Torn varint at the end of the file
+        }
+
+        if (valid < buffer.limit()) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Returns the id of a sender, appending it to the table if it is new.
+     * The entry is written and forced to disk before any record can refer to it.
+     *
+     * @param name the sender's username
+     * @return the sender id
+     * @throws IOException if the new entry cannot be written
+     */
+    public synchronized int idFor(String name) throws IOException {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(MessageCodec.varIntSize(bytes.length) + bytes.length);
+        MessageCodec.putVarInt(entry, bytes.length);
+        entry.put(bytes).flip();
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (entry.hasRemaining()) {
+                channel.write(entry);
+            }
+            channel.force(false);
+        }
+
+        String interned = name.intern();
+        ids.put(interned, names.size());
+        names.add(interned);
+        return names.size() - 1;
+    }
+
+    /**
+     * Returns the sender name for an id.
+     *
+     * @param id the sender id
+     * @return the interned username
+     * @throws IOException if the id is unknown
+     */
+    public synchronized String name(int id) throws IOException {
+        if (id < 0 || id >= names.size()) {
+            throw new IOException("Unknown sender id " + id);
+        }
+        return names.get(id);
+    }
+}
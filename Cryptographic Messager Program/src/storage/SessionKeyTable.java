@@ -0,0 +1,105 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only table of wrapped session keys for one inbox.
+ * Messages sent in session mode only carry a key id; the session key itself,
+ * wrapped with the recipient's public key, is stored here once per session.
+ */
+public class SessionKeyTable {
+
+    private final Path file;
+    private final Map<Long, byte[]> wrappedKeys = new HashMap<>();
+
+    private SessionKeyTable(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the table from a file, ignoring a torn last entry.
+     *
+     * @param file the table file
+     * @return the table
+     * @throws IOException if the file cannot be read
+     */
+    public static SessionKeyTable open(Path file) throws IOException {
+        SessionKeyTable table = new SessionKeyTable(file);
+        if (!Files.exists(file)) {
+            return table;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        int valid = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                long keyId = buffer.getLong();
+                int length = MessageCodec.getVarInt(buffer);
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new IOException("Session key entry runs past the end of " + file);
+                }
+                byte[] wrapped = new byte[length];
+                buffer.get(wrapped);
+                table.wrappedKeys.put(keyId, wrapped);
+                valid = buffer.position();
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException | IOException e) {
+            // Torn entry at the end of the file
+        }
+
+        if (valid < buffer.limit()) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Stores a wrapped session key. It is written and forced to disk before any message can refer to it.
+     *
+     * @param keyId   the session key id
+     * @param wrapped the session key wrapped with the recipient's public key
+     * @throws IOException if the entry cannot be written
+     */
+    public synchronized void put(long keyId, byte[] wrapped) throws IOException {
+        if (wrappedKeys.containsKey(keyId)) {
+            throw new IllegalArgumentException("Duplicate session key id " + keyId);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(8 + MessageCodec.varIntSize(wrapped.length) + wrapped.length);
+        entry.putLong(keyId);
+        MessageCodec.putVarInt(entry, wrapped.length);
+        entry.put(wrapped).flip();
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (entry.hasRemaining()) {
+                channel.write(entry);
+            }
+            channel.force(false);
+        }
+        wrappedKeys.put(keyId, wrapped);
+    }
+
+    /**
+     * Returns a wrapped session key.
+     *
+     * @param keyId the session key id
+     * @return the wrapped key
+     * @throws IOException if the id is unknown
+     */
+    public synchronized byte[] get(long keyId) throws IOException {
+        byte[] wrapped = wrappedKeys.get(keyId);
+        if (wrapped == null) {
+            throw new IOException("Unknown session key id " + keyId);
+        }
+        return wrapped;
+    }
+}
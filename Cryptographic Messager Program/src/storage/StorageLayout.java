@@ -0,0 +1,233 @@
+package storage;
+
+import model.User;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Where the stores keep their files below a storage root.
+ * <p>
+ * Inboxes are spread over a fixed number of shard directories by a hash of the username, as
+ * {@code <root>/inboxes/<shard>/inbox_<user>}, so no directory grows with the user count and a
+ * shard directory can be a mount point of its own. The shard count is recorded in
+ * {@code <root>/inboxes/layout} the first time an inbox is opened and cannot change afterwards.
+ * The user and key stores are single files directly in the root.
+ * <p>
+ * The root defaults to the {@code cryptomessenger.storage.root} system property, or the working
+ * directory, and the shard count to {@code cryptomessenger.storage.shards}, or {@value #DEFAULT_SHARDS}.
+ */
+public final class StorageLayout {
+
+    /** Default number of inbox shards. */
+    public static final int DEFAULT_SHARDS = 64;
+
+    /** Largest supported number of inbox shards. */
+    public static final int MAX_SHARDS = 4096;
+
+    private static final String INBOXES = "inboxes";
+    private static final String LAYOUT_FILE = "layout";
+    static final String INBOX_PREFIX = "inbox_";
+
+    private final Path root;
+    private final int shards;
+    private final String shardFormat;
+
+    /**
+     * Creates a layout with the configured shard count.
+     *
+     * @param root the storage root
+     */
+    public StorageLayout(Path root) {
+        this(root, Integer.getInteger("cryptomessenger.storage.shards", DEFAULT_SHARDS));
+    }
+
+    /**
+     * Creates a layout.
+     *
+     * @param root   the storage root
+     * @param shards the number of inbox shards, a power of two up to {@value #MAX_SHARDS}
+     * @throws IllegalArgumentException if the shard count is invalid
+     */
+    public StorageLayout(Path root, int shards) {
+        if (shards < 1 || shards > MAX_SHARDS || Integer.bitCount(shards) != 1) {
+            throw new IllegalArgumentException("Shard count must be a power of two up to " + MAX_SHARDS + ": " + shards);
+        }
+        this.root = root;
+        this.shards = shards;
+        this.shardFormat = "%0" + Math.max(2, (Integer.numberOfTrailingZeros(shards) + 3) / 4) + "x";
+    }
+
+    /**
+     * Returns the storage root configured by the {@code cryptomessenger.storage.root} system property.
+     *
+     * @return the storage root, the working directory by default
+     */
+    public static Path defaultRoot() {
+        return Paths.get(System.getProperty("cryptomessenger.storage.root", "."));
+    }
+
+    /**
+     * Gets the storage root.
+     * @return the storage root
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Gets the number of inbox shards.
+     * @return the shard count
+     */
+    public int getShardCount() {
+        return shards;
+    }
+
+    /**
+     * Returns the shard a user's inbox belongs to.
+     *
+     * @param username the username
+     * @return the shard, from {@code 0} to {@code getShardCount() - 1}
+     */
+    public int shardOf(String username) {
+        // Spread the bits of String.hashCode, which is fixed by its specification, so usernames
+        // that differ only at the end still land in different shards
+        int h = username.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & (shards - 1);
+    }
+
+    /**
+     * Returns the directory of a shard.
+     *
+     * @param shard the shard
+     * @return the shard directory
+     */
+    public Path shardDirectory(int shard) {
+        return root.resolve(INBOXES).resolve(String.format(shardFormat, shard));
+    }
+
+    /**
+     * Returns the directory of a user's inbox.
+     *
+     * @param username the username
+     * @return the inbox directory
+     */
+    public Path inboxDirectory(String username) {
+        return shardDirectory(shardOf(username)).resolve(INBOX_PREFIX + fileName(username));
+    }
+
+    /**
+     * Returns where a user's inbox directory was kept before inboxes were sharded.
+     *
+     * @param username the username
+     * @return the unsharded inbox directory
+     */
+    public Path unshardedInboxDirectory(String username) {
+        Path plain = resolvePlain(root, INBOX_PREFIX + username);
+        return plain != null ? plain : root.resolve(INBOX_PREFIX + fileName(username));
+    }
+
+    /**
+     * Returns the part of a file name that stands for a user. Valid usernames (see
+     * {@link User#isValidUsername}) stand for themselves; others, which accounts from before
+     * usernames were checked may have, are written as {@code ~} and the hex of their UTF-8 bytes,
+     * which no valid username can start with.
+     *
+     * @param username the username
+     * @return the file name part
+     */
+    static String fileName(String username) {
+        if (User.isValidUsername(username)) {
+            return username;
+        }
+        StringBuilder name = new StringBuilder("~");
+        for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.toString();
+    }
+
+    /**
+     * Returns the user a file name part from {@link #fileName} stands for.
+     *
+     * @param fileName the file name part
+     * @return the username
+     * @throws IllegalArgumentException if the part is not one {@link #fileName} returns
+     */
+    static String username(String fileName) {
+        if (!fileName.startsWith("~")) {
+            return User.checkUsername(fileName);
+        }
+        if (fileName.length() % 2 != 1) {
+            throw new IllegalArgumentException("Invalid escaped username: " + fileName);
+        }
+        byte[] bytes = new byte[fileName.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(fileName.charAt(1 + 2 * i), 16);
+            int low = Character.digit(fileName.charAt(2 + 2 * i), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid escaped username: " + fileName);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Resolves a name as a single file name in a directory, as it is.
+     *
+     * @param directory the directory
+     * @param name      the name
+     * @return the path, or {@code null} if the name is {@code .} or {@code ..}, holds path
+     *         separators or NUL, or cannot be encoded as a file name
+     */
+    static Path resolvePlain(Path directory, String name) {
+        if (name.isEmpty() || name.equals(".") || name.equals("..")
+                || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+            return null;
+        }
+        try {
+            return directory.resolve(name);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the directory of the blob store.
+     * @return the blob directory
+     */
+    public Path blobDirectory() {
+        return root.resolve("blobs");
+    }
+
+    /**
+     * Records the shard count under the root, or checks it against the recorded one.
+     *
+     * @throws IOException if the root was set up with a different shard count, or writing fails
+     */
+    void checkShardCount() throws IOException {
+        Path file = root.resolve(INBOXES).resolve(LAYOUT_FILE);
+        if (Files.exists(file)) {
+            String recorded = Files.readString(file, StandardCharsets.US_ASCII).trim();
+            if (!recorded.equals("shards=" + shards)) {
+                throw new IOException("Storage root " + root + " uses " + recorded + ", not shards=" + shards);
+            }
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(LAYOUT_FILE + ".tmp");
+        Files.writeString(tmp, "shards=" + shards + "\n", StandardCharsets.US_ASCII);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,82 @@
+package storage;
+
+import model.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reader for the legacy user registry ({@code users.dat}), kept so {@link UserStore} can
+ * migrate it.
+ * <p>
+ * Layout (version 1): {@code int magic, byte version, varint count}, then per user
+ * {@code varint length + UTF-8 username, varint length + UTF-8 password hash}.
+ * Keys are not stored here; they live in {@link UserKeyStore}.
+ */
+public final class UserCodec {
+
+    /** Current format version. */
+    public static final byte VERSION = 1;
+
+    private static final int MAGIC = 0x434D5553; // "CMUS"
+    private static final short SERIALIZATION_MAGIC = (short) 0xACED;
+
+    private UserCodec() {
+    }
+
+    /**
+     * Reads all users from a file. Files written with Java serialization by older versions
+     * are still accepted.
+     *
+     * @param file the source file
+     * @return the users by username, in file order
+     * @throws IOException if the file is malformed
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, User> read(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.remaining() >= 2 && buffer.getShort(0) == SERIALIZATION_MAGIC) {
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buffer.array()))) {
+                return (Map<String, User>) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unrecognised user file: " + file, e);
+            }
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a user file: " + file);
+            }
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported user file version " + version);
+            }
+
+            int count = MessageCodec.getVarInt(buffer);
+            Map<String, User> users = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String username = getString(buffer);
+                String passwordHash = getString(buffer);
+                users.put(username, new User(username, passwordHash));
+            }
+            return users;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated user file: " + file, e);
+        }
+    }
+
+    private static String getString(ByteBuffer src) throws IOException {
+        int length = MessageCodec.getVarInt(src);
+        String value = new String(src.array(), src.arrayOffset() + src.position(), length, StandardCharsets.UTF_8);
+        src.position(src.position() + length);
+        return value;
+    }
+}
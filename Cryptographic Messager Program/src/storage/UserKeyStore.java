@@ -0,0 +1,435 @@
+package storage;
+
+import util.KeyUtil;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of every user's key pair in one file, with an in-memory index of record
+ * offsets.
+ * <p>
+ * The file starts with {@code int magic, byte version}, followed by records framed as
+ * {@code [int length][int crc32][payload]}, where the payload is
+ * {@code varint length + UTF-8 username, varint length + UTF-8 key algorithm,
+ * varint length + X.509 public key, varint length + PKCS#8 private key}.
+ * A later record for the same username replaces the earlier one.
+ * <p>
+ * Lookups read the record straight from a read-only memory mapping of the file and decode the
+ * keys with a {@code KeyFactory}. Records appended after the mapping was made are read from the
+ * file until it has doubled in size, when it is mapped again.
+ * Looking up a public key does not decode the private key.
+ */
+public class UserKeyStore {
+
+    /** Current format version. */
+    public static final byte VERSION = 1;
+
+    private static final int MAGIC = 0x434D554B; // "CMUK"
+    private static final int FILE_HEADER_SIZE = 5;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final String LEGACY_PUBLIC_SUFFIX = "_public.key";
+    private static final String LEGACY_PRIVATE_SUFFIX = "_private.key";
+
+    private final Path file;
+    private final Map<String, Long> offsets = new ConcurrentHashMap<>();
+    private long size;
+    private volatile MappedByteBuffer mapping;
+
+    private UserKeyStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens a store, building its index and truncating a torn last record.
+     * If a directory is given, legacy {@code <username>_public.key} and
+     * {@code <username>_private.key} file pairs in it are copied into the store and renamed with
+     * a {@code .migrated} suffix. An interrupted migration therefore resumes on the next open.
+     *
+     * @param file            the store file
+     * @param legacyDirectory the directory holding legacy key files, or {@code null}
+     * @return the store
+     * @throws IOException if the file cannot be read or is not a key store
+     */
+    public static UserKeyStore open(Path file, Path legacyDirectory) throws IOException {
+        UserKeyStore store = new UserKeyStore(file);
+        if (Files.exists(file)) {
+            store.index();
+        } else {
+            store.create();
+        }
+        if (legacyDirectory != null && Files.isDirectory(legacyDirectory)) {
+            store.migrate(legacyDirectory);
+        }
+        return store;
+    }
+
+    private void create() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).put(VERSION);
+        header.flip();
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        size = FILE_HEADER_SIZE;
+    }
+
+    private void index() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            if (fileSize < FILE_HEADER_SIZE || !readFully(channel, header.limit(FILE_HEADER_SIZE), 0)
+                    || header.getInt(0) != MAGIC) {
+                throw new IOException("Not a key store: " + file);
+            }
+            if (header.get(4) != VERSION) {
+                throw new IOException("Unsupported key store version " + header.get(4));
+            }
+
+            long position = FILE_HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (position + RECORD_HEADER_SIZE <= fileSize) {
+                if (!readFully(channel, header.clear(), position)) {
+                    break;
+                }
+                int length = header.getInt(0);
+                if (length < 0 || position + RECORD_HEADER_SIZE + length > fileSize) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                if (!readFully(channel, payload, position + RECORD_HEADER_SIZE)) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != header.getInt(4)) {
+                    break;
+                }
+                try {
+                    offsets.put(getString(payload), position);
+                } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+
+            if (position < fileSize) {
+                channel.truncate(position);
+            }
+            size = position;
+        }
+    }
+
+    private void migrate(Path directory) throws IOException {
+        List<Path> migrated = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LEGACY_PUBLIC_SUFFIX)) {
+            for (Path publicFile : files) {
+                String name = publicFile.getFileName().toString();
+                String username = name.substring(0, name.length() - LEGACY_PUBLIC_SUFFIX.length());
+                Path privateFile = directory.resolve(username + LEGACY_PRIVATE_SUFFIX);
+                if (!Files.exists(privateFile)) {
+                    continue;
+                }
+                if (!contains(username)) {
+                    try {
+                        append(username, new KeyPair((PublicKey) KeyUtil.loadKeyFromFile(publicFile.toString()),
+                                (PrivateKey) KeyUtil.loadKeyFromFile(privateFile.toString())), false);
+                    } catch (ClassNotFoundException | ClassCastException e) {
+                        throw new IOException("Unrecognised legacy key file for " + username, e);
+                    }
+                }
+                migrated.add(publicFile);
+                migrated.add(privateFile);
+            }
+        }
+        if (migrated.isEmpty()) {
+            return;
+        }
+
+        // Rename the legacy files only once their keys are on disk
+        force();
+        for (Path legacyFile : migrated) {
+            Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".migrated"),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void force() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0) {
+                return false;
+            }
+        }
+        dst.flip();
+        return true;
+    }
+
+    /**
+     * Checks whether the store holds keys for a user.
+     *
+     * @param username the username
+     * @return {@code true} if the store holds the user's keys
+     */
+    public boolean contains(String username) {
+        return offsets.containsKey(username);
+    }
+
+    /**
+     * Returns the position of a user's current record. The position changes when the user's
+     * keys are replaced, so it can be used to validate cached keys.
+     *
+     * @param username the username
+     * @return the record position, or {@code -1} if the store holds no keys for the user
+     */
+    public long version(String username) {
+        Long offset = offsets.get(username);
+        return offset != null ? offset : -1;
+    }
+
+    /**
+     * Reads a user's public key.
+     *
+     * @param username the username
+     * @return the public key, or {@code null} if the store holds no keys for the user
+     * @throws IOException if the record cannot be read or decoded
+     */
+    public PublicKey getPublicKey(String username) throws IOException {
+        ByteBuffer payload = record(username);
+        if (payload == null) {
+            return null;
+        }
+        try {
+            getString(payload);
+            String algorithm = getString(payload);
+            return KeyUtil.decodePublicKey(algorithm, getBytes(payload));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated key record for " + username, e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Undecodable public key for " + username, e);
+        }
+    }
+
+    /**
+     * Reads a user's key pair.
+     *
+     * @param username the username
+     * @return the key pair, or {@code null} if the store holds no keys for the user
+     * @throws IOException if the record cannot be read or decoded
+     */
+    public KeyPair getKeyPair(String username) throws IOException {
+        ByteBuffer payload = record(username);
+        if (payload == null) {
+            return null;
+        }
+        try {
+            getString(payload);
+            String algorithm = getString(payload);
+            PublicKey publicKey = KeyUtil.decodePublicKey(algorithm, getBytes(payload));
+            PrivateKey privateKey = KeyUtil.decodePrivateKey(algorithm, getBytes(payload));
+            return new KeyPair(publicKey, privateKey);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated key record for " + username, e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Undecodable key pair for " + username, e);
+        }
+    }
+
+    // Returns the CRC-checked payload of a user's current record, positioned at its start
+    private ByteBuffer record(String username) throws IOException {
+        Long offset = offsets.get(username);
+        if (offset == null) {
+            return null;
+        }
+
+        ByteBuffer record = mappedRecord(offset, username);
+        if (record == null) {
+            record = readRecord(offset);
+        }
+
+        ByteBuffer payload = record.duplicate().position(RECORD_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != record.getInt(4)) {
+            throw new IOException("Corrupt key record for " + username);
+        }
+        return payload;
+    }
+
+    // Returns a view of a record in the mapping, or null if the mapping does not cover it
+    private ByteBuffer mappedRecord(long offset, String username) throws IOException {
+        if (offset + RECORD_HEADER_SIZE > Integer.MAX_VALUE) {
+            return null;
+        }
+        MappedByteBuffer view = mapped(offset + RECORD_HEADER_SIZE);
+        if (view == null) {
+            return null;
+        }
+        int length = view.getInt((int) offset);
+        if (length < 0) {
+            throw new IOException("Corrupt key record for " + username);
+        }
+        long end = offset + RECORD_HEADER_SIZE + length;
+        if (end > view.capacity()) {
+            return null;
+        }
+        return view.duplicate().limit((int) end).position((int) offset).slice();
+    }
+
+    // Returns a mapping covering at least the given length, or null if the record must be read.
+    // The file is remapped only once it has doubled since the last mapping, so a run of newly
+    // registered users costs a logarithmic number of remaps rather than one each.
+    private MappedByteBuffer mapped(long length) throws IOException {
+        MappedByteBuffer current = mapping;
+        if (current != null && current.capacity() >= length) {
+            return current;
+        }
+        synchronized (this) {
+            long target = Math.min(size, Integer.MAX_VALUE);
+            if (mapping == null || (mapping.capacity() < length && target >= 2L * mapping.capacity())) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, target);
+                }
+            }
+            return mapping.capacity() >= length ? mapping : null;
+        }
+    }
+
+    // Fallback for records the mapping does not reach: appended since it was made, or past 2 GB
+    private ByteBuffer readRecord(long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            if (!readFully(channel, header, offset)) {
+                throw new IOException("Unexpected end of key store");
+            }
+            int length = header.getInt(0);
+            if (length < 0 || offset + RECORD_HEADER_SIZE + length > size) {
+                throw new IOException("Corrupt key record at offset " + offset);
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length).put(header);
+            if (!readFully(channel, record, offset)) {
+                throw new IOException("Unexpected end of key store");
+            }
+            return record;
+        }
+    }
+
+    /**
+     * Appends a user's key pair, replacing any earlier record for the same username.
+     * The keys are stored in their standard encodings: X.509 for the public key and PKCS#8
+     * for the private key.
+     *
+     * The record is forced to disk before this returns, so a user record written afterwards
+     * can never refer to keys lost in a crash.
+     *
+     * @param username the username
+     * @param keyPair  the key pair
+     * @throws IOException if writing fails
+     */
+    public synchronized void put(String username, KeyPair keyPair) throws IOException {
+        append(username, keyPair, true);
+    }
+
+    /**
+     * Appends a user's key pair unless the username is already registered, so the keys of an
+     * existing account can never be replaced by a registration. The record is forced to disk
+     * before this returns.
+     *
+     * @param username the username
+     * @param keyPair  the key pair
+     * @param users    the user store the username is checked against
+     * @return {@code true} if the keys were stored
+     * @throws IOException if writing fails
+     */
+    public synchronized boolean putUnlessRegistered(String username, KeyPair keyPair, UserStore users)
+            throws IOException {
+        if (users.contains(username)) {
+            return false;
+        }
+        append(username, keyPair, true);
+        return true;
+    }
+
+    private synchronized void append(String username, KeyPair keyPair, boolean force) throws IOException {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] algorithm = keyPair.getPublic().getAlgorithm().getBytes(StandardCharsets.UTF_8);
+        byte[] publicKey = keyPair.getPublic().getEncoded();
+        byte[] privateKey = keyPair.getPrivate().getEncoded();
+        int length = MessageCodec.varIntSize(name.length) + name.length
+                + MessageCodec.varIntSize(algorithm.length) + algorithm.length
+                + MessageCodec.varIntSize(publicKey.length) + publicKey.length
+                + MessageCodec.varIntSize(privateKey.length) + privateKey.length;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.position(RECORD_HEADER_SIZE);
+        for (byte[] field : new byte[][] {name, algorithm, publicKey, privateKey}) {
+            MessageCodec.putVarInt(record, field.length);
+            record.put(field);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(0, length).putInt(4, (int) crc.getValue());
+        record.flip();
+
+        long offset = size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            if (force) {
+                channel.force(false);
+            }
+        }
+        size = offset + RECORD_HEADER_SIZE + length;
+        offsets.put(username, offset);
+    }
+
+    /**
+     * Returns the number of users with stored keys.
+     *
+     * @return the user count
+     */
+    public int size() {
+        return offsets.size();
+    }
+
+    private static String getString(ByteBuffer src) throws IOException {
+        return new String(getBytes(src), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer src) throws IOException {
+        byte[] bytes = new byte[MessageCodec.getVarInt(src)];
+        src.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,315 @@
+package storage;
+
+import model.User;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only user registry with an in-memory index of record offsets.
+ * <p>
+ * The file starts with {@code int magic, byte version}, followed by records framed as
+ * {@code [int length][int crc32][payload]}, where the payload is
+ * {@code varint length + UTF-8 username, varint length + UTF-8 password hash}.
+ * Registering a user appends one record; a later record for the same username replaces the
+ * earlier one. Opening the store only builds the username-to-offset index; a {@link User} is
+ * read from disk when it is looked up. Keys and inboxes are stored elsewhere.
+ */
+public class UserStore {
+
+    /** Current format version. */
+    public static final byte VERSION = 1;
+
+    private static final int MAGIC = 0x434D554C; // "CMUL"
+    private static final int FILE_HEADER_SIZE = 5;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final Map<String, Long> offsets = new ConcurrentHashMap<>();
+    private long size;
+
+    private UserStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens a store, building its index and truncating a torn last record. A damaged record
+     * anywhere else fails the open rather than silently dropping the users after it.
+     * If a legacy {@code users.dat} file is given and exists, users missing from the store are
+     * copied into it and the legacy file is renamed to {@code users.dat.migrated}. An
+     * interrupted migration therefore resumes on the next open.
+     *
+     * @param file       the store file
+     * @param legacyFile the legacy user file, or {@code null}
+     * @return the store
+     * @throws IOException if the file cannot be read or is not a user store
+     */
+    public static UserStore open(Path file, Path legacyFile) throws IOException {
+        UserStore store = new UserStore(file);
+        if (Files.exists(file)) {
+            store.index();
+        } else {
+            store.create();
+        }
+
+        if (legacyFile != null && Files.exists(legacyFile)) {
+            for (User user : UserCodec.read(legacyFile).values()) {
+                if (!store.contains(user.getUsername())) {
+                    store.append(user, false);
+                }
+            }
+            store.force();
+            Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".migrated"),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        return store;
+    }
+
+    private void create() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).put(VERSION);
+        header.flip();
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        size = FILE_HEADER_SIZE;
+    }
+
+    // Streams the file through a small buffer so only the index stays in memory
+    private void index() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            readFully(channel, buffer.limit(FILE_HEADER_SIZE), 0);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a user store: " + file);
+            }
+            if (buffer.get(4) != VERSION) {
+                throw new IOException("Unsupported user store version " + buffer.get(4));
+            }
+
+            long position = FILE_HEADER_SIZE;
+            long fileSize = channel.size();
+            CRC32 crc = new CRC32();
+            buffer.clear().limit(0);
+            while (position + RECORD_HEADER_SIZE <= fileSize) {
+                if (buffer.remaining() < RECORD_HEADER_SIZE && !fill(channel, buffer, position, RECORD_HEADER_SIZE)) {
+                    break;
+                }
+                int length = buffer.getInt(buffer.position());
+                if (length < 0) {
+                    throw new IOException("Corrupt user record at offset " + position + " in " + file);
+                }
+                if (position + RECORD_HEADER_SIZE + length > fileSize) {
+                    break;
+                }
+                int recordSize = RECORD_HEADER_SIZE + length;
+                if (buffer.remaining() < recordSize) {
+                    if (recordSize > buffer.capacity()) {
+                        buffer = ByteBuffer.allocate(recordSize);
+                    }
+                    if (!fill(channel, buffer, position, recordSize)) {
+                        break;
+                    }
+                }
+
+                // Only the last record can be torn by a crash; a bad record before it is corruption
+                boolean last = position + recordSize == fileSize;
+                int start = buffer.position();
+                ByteBuffer payload = buffer.duplicate();
+                payload.limit(start + recordSize).position(start + RECORD_HEADER_SIZE);
+                crc.reset();
+                crc.update(payload.duplicate());
+                try {
+                    if ((int) crc.getValue() != buffer.getInt(start + 4)) {
+                        throw new IOException("Checksum mismatch");
+                    }
+                    offsets.put(getString(payload), position);
+                } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+                    if (last) {
+                        break;
+                    }
+                    throw new IOException("Corrupt user record at offset " + position + " in " + file, e);
+                }
+                buffer.position(start + recordSize);
+                position += recordSize;
+            }
+
+            if (position < fileSize) {
+                channel.truncate(position);
+                channel.force(true);
+            }
+            size = position;
+        }
+    }
+
+    // Refills the buffer starting at the given file position; false if fewer than minimum bytes remain
+    private static boolean fill(FileChannel channel, ByteBuffer buffer, long position, int minimum) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() >= minimum;
+    }
+
+    /**
+     * Checks whether a user is registered.
+     *
+     * @param username the username
+     * @return {@code true} if the store holds the user
+     */
+    public boolean contains(String username) {
+        return offsets.containsKey(username);
+    }
+
+    /**
+     * Reads a user's credentials.
+     *
+     * @param username the username
+     * @return the user, without keys or inbox, or {@code null} if not registered
+     * @throws IOException if the record cannot be read
+     */
+    public User get(String username) throws IOException {
+        Long offset = offsets.get(username);
+        if (offset == null) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(channel, header, offset);
+            ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+            readFully(channel, payload, offset + RECORD_HEADER_SIZE);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != header.getInt(4)) {
+                throw new IOException("Corrupt user record for " + username);
+            }
+            try {
+                return new User(getString(payload), getString(payload));
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException("Truncated user record for " + username, e);
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0) {
+                throw new IOException("Unexpected end of user store");
+            }
+        }
+        dst.flip();
+    }
+
+    /**
+     * Appends a user's credentials, replacing any earlier record for the same username.
+     * The record is forced to disk before this returns.
+     *
+     * @param user the user
+     * @throws IOException if writing fails
+     */
+    public synchronized void put(User user) throws IOException {
+        append(user, true);
+    }
+
+    private synchronized void append(User user, boolean force) throws IOException {
+        byte[] username = user.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] passwordHash = user.getPasswordHash().getBytes(StandardCharsets.UTF_8);
+        int length = MessageCodec.varIntSize(username.length) + username.length
+                + MessageCodec.varIntSize(passwordHash.length) + passwordHash.length;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.position(RECORD_HEADER_SIZE);
+        MessageCodec.putVarInt(record, username.length);
+        record.put(username);
+        MessageCodec.putVarInt(record, passwordHash.length);
+        record.put(passwordHash);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(0, length).putInt(4, (int) crc.getValue());
+        record.flip();
+
+        long offset = size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            if (force) {
+                channel.force(false);
+            }
+        }
+        size = offset + RECORD_HEADER_SIZE + length;
+        offsets.put(user.getUsername(), offset);
+    }
+
+    private synchronized void force() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Appends a user's credentials unless the username is already registered.
+     * The check and the append are atomic, so concurrent registrations of one name have
+     * exactly one winner.
+     *
+     * @param user the user
+     * @return {@code true} if the user was added
+     * @throws IOException if writing fails
+     */
+    public synchronized boolean putIfAbsent(User user) throws IOException {
+        if (offsets.containsKey(user.getUsername())) {
+            return false;
+        }
+        put(user);
+        return true;
+    }
+
+    /**
+     * Returns the registered usernames.
+     *
+     * @return a live, unmodifiable view of the usernames
+     */
+    public Set<String> usernames() {
+        return Collections.unmodifiableSet(offsets.keySet());
+    }
+
+    /**
+     * Returns the number of registered users.
+     *
+     * @return the user count
+     */
+    public int size() {
+        return offsets.size();
+    }
+
+    private static String getString(ByteBuffer src) throws IOException {
+        byte[] bytes = new byte[MessageCodec.getVarInt(src)];
+        src.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,137 @@
+package util;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Decrypts a stream written by {@link AeadOutputStream}, one chunk at a time.
+ * Each chunk is authenticated before any of its plaintext is returned; a truncated,
+ * reordered or modified stream fails with an {@link IOException}.
+ */
+public class AeadInputStream extends InputStream {
+
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final InputStream in;
+    private final Cipher cipher;
+    private final SecretKey key;
+    private final byte[] header = new byte[AeadOutputStream.HEADER_LENGTH];
+    private byte[] sealed;
+    private byte[] plain;
+    private int sealedLength;
+    private int plainPosition;
+    private int plainLength;
+    private int chunkIndex;
+    private boolean finished;
+
+    /**
+     * Creates a decrypting stream.
+     *
+     * @param in  the encrypted source stream
+     * @param key the AES key
+     * @throws GeneralSecurityException if AES-GCM is unavailable
+     */
+    public AeadInputStream(InputStream in, SecretKey key) throws GeneralSecurityException {
+        this.in = in;
+        this.key = key;
+        this.cipher = Cipher.getInstance(CipherContext.AES_GCM);
+    }
+
+    private void readHeader() throws IOException {
+        if (readFully(header, 0, header.length) != header.length) {
+            throw new EOFException("Truncated stream header");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        byte version = buffer.get();
+        int chunkSize = buffer.getInt();
+        if (version != AeadOutputStream.VERSION) {
+            throw new IOException("Unsupported stream version " + version);
+        }
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk size " + chunkSize);
+        }
+        // One extra byte of look-ahead tells a full non-final chunk apart from the final one
+        sealed = new byte[chunkSize + AeadOutputStream.TAG_LENGTH + 1];
+        plain = new byte[chunkSize];
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (finished) {
+            return false;
+        }
+        if (sealed == null) {
+            readHeader();
+        }
+
+        sealedLength += readFully(sealed, sealedLength, sealed.length - sealedLength);
+        boolean last = sealedLength < sealed.length;
+        int chunkLength = last ? sealedLength : sealed.length - 1;
+        if (chunkLength < AeadOutputStream.TAG_LENGTH) {
+            throw new EOFException("Truncated stream at chunk " + chunkIndex);
+        }
+
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(AeadOutputStream.TAG_LENGTH * 8, AeadOutputStream.nonce(header, chunkIndex, last)));
+            cipher.updateAAD(header);
+            plainLength = cipher.doFinal(sealed, 0, chunkLength, plain, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Chunk " + chunkIndex + " failed authentication", e);
+        }
+        plainPosition = 0;
+        chunkIndex++;
+
+        if (last) {
+            finished = true;
+        } else {
+            sealed[0] = sealed[sealed.length - 1];
+            sealedLength = 1;
+        }
+        return true;
+    }
+
+    private int readFully(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(b, off + total, len - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (plainPosition == plainLength) {
+            if (!nextChunk()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, plainLength - plainPosition);
+        System.arraycopy(plain, plainPosition, b, off, n);
+        plainPosition += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
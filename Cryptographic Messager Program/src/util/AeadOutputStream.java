@@ -0,0 +1,165 @@
+package util;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Encrypts a stream of any length in constant memory using chunked AES-GCM.
+ * <p>
+ * The stream starts with a header {@code [byte version][int chunkSize][7-byte nonce prefix]},
+ * followed by chunks of {@code chunkSize} plaintext bytes, each sealed with its own GCM tag.
+ * Chunk {@code i} uses the nonce {@code prefix || int32(i) || lastFlag}, and the last chunk
+ * (possibly empty) sets the flag, so chunks cannot be reordered, dropped or truncated without
+ * decryption failing. The header is authenticated as associated data of every chunk.
+ * Closing the stream writes the final chunk.
+ *
+ * @see AeadInputStream
+ */
+public class AeadOutputStream extends FilterOutputStream {
+
+    /** Default plaintext bytes per chunk. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    static final byte VERSION = 1;
+    static final int PREFIX_LENGTH = 7;
+    static final int HEADER_LENGTH = 1 + 4 + PREFIX_LENGTH;
+    static final int TAG_LENGTH = 16;
+
+    private final Cipher cipher;
+    private final SecretKey key;
+    private final byte[] header;
+    private final byte[] buffer;
+    private final byte[] sealed;
+    private int buffered;
+    private int chunkIndex;
+    private boolean headerWritten;
+    private boolean closed;
+
+    /**
+     * Creates an encrypting stream with the default chunk size.
+     *
+     * @param out the destination stream
+     * @param key the AES key
+     * @throws GeneralSecurityException if AES-GCM is unavailable
+     */
+    public AeadOutputStream(OutputStream out, SecretKey key) throws GeneralSecurityException {
+        this(out, key, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates an encrypting stream.
+     *
+     * @param out       the destination stream
+     * @param key       the AES key
+     * @param chunkSize plaintext bytes per chunk
+     * @throws GeneralSecurityException if AES-GCM is unavailable
+     */
+    public AeadOutputStream(OutputStream out, SecretKey key, int chunkSize) throws GeneralSecurityException {
+        super(out);
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.cipher = Cipher.getInstance(CipherContext.AES_GCM);
+        this.key = key;
+        this.buffer = new byte[chunkSize];
+        this.sealed = new byte[chunkSize + TAG_LENGTH];
+
+        byte[] prefix = new byte[PREFIX_LENGTH];
+        CipherContext.random().nextBytes(prefix);
+        this.header = ByteBuffer.allocate(HEADER_LENGTH).put(VERSION).putInt(chunkSize).put(prefix).array();
+    }
+
+    /**
+     * Derives the nonce of a chunk.
+     *
+     * @param header the stream header
+     * @param index  the chunk index
+     * @param last   whether this is the final chunk
+     * @return the 12-byte nonce
+     */
+    static byte[] nonce(byte[] header, int index, boolean last) {
+        return ByteBuffer.allocate(PREFIX_LENGTH + 5)
+                .put(header, HEADER_LENGTH - PREFIX_LENGTH, PREFIX_LENGTH)
+                .putInt(index)
+                .put((byte) (last ? 1 : 0))
+                .array();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            // A full chunk is only sealed once more data arrives, so the last chunk is never sealed as non-final
+            if (buffered == buffer.length) {
+                sealChunk(false);
+            }
+            int n = Math.min(len, buffer.length - buffered);
+            System.arraycopy(b, off, buffer, buffered, n);
+            buffered += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void sealChunk(boolean last) throws IOException {
+        if (!headerWritten) {
+            out.write(header);
+            headerWritten = true;
+        }
+        if (chunkIndex == Integer.MAX_VALUE) {
+            throw new IOException("Stream too long");
+        }
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce(header, chunkIndex, last)));
+            cipher.updateAAD(header);
+            int n = cipher.doFinal(buffer, 0, buffered, sealed, 0);
+            out.write(sealed, 0, n);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt chunk " + chunkIndex, e);
+        }
+        chunkIndex++;
+        buffered = 0;
+    }
+
+    /**
+     * Flushes the underlying stream. Buffered plaintext stays buffered until its chunk is full.
+     *
+     * @throws IOException if flushing fails
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Seals the final chunk and closes the underlying stream.
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            sealChunk(true);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
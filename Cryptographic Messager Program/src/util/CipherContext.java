@@ -0,0 +1,91 @@
+package util;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Per-thread reusable {@link Cipher} instances and a shared random source for IVs and keys.
+ * <p>
+ * {@code Cipher.getInstance} performs a provider lookup and allocates a new cipher on every
+ * call; reusing one instance per thread avoids that. Each use re-initialises the cipher with a
+ * fresh key and IV, so no state carries over between operations. IVs are drawn from a single,
+ * self-seeded {@link SecureRandom}, keeping GCM IVs unique with overwhelming probability.
+ */
+public final class CipherContext {
+
+    /** AES-GCM transformation used for message content. */
+    public static final String AES_GCM = "AES/GCM/NoPadding";
+
+    /** RSA-OAEP transformation used to wrap AES keys. */
+    public static final String RSA_OAEP = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> AES_GCM_CIPHER = ThreadLocal.withInitial(() -> newCipher(AES_GCM));
+    private static final ThreadLocal<Cipher> RSA_OAEP_CIPHER = ThreadLocal.withInitial(() -> newCipher(RSA_OAEP));
+    private static final ThreadLocal<KeyGenerator> AES_KEY_GENERATOR = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyGenerator.getInstance("AES");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("AES is not supported", e);
+        }
+    });
+
+    private CipherContext() {
+    }
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException(transformation + " is not supported", e);
+        }
+    }
+
+    /**
+     * Returns this thread's AES-GCM cipher. Callers must initialise it before use.
+     * @return the cipher
+     */
+    public static Cipher aesGcm() {
+        return AES_GCM_CIPHER.get();
+    }
+
+    /**
+     * Returns this thread's RSA-OAEP cipher. Callers must initialise it before use.
+     * @return the cipher
+     */
+    public static Cipher rsaOaep() {
+        return RSA_OAEP_CIPHER.get();
+    }
+
+    /**
+     * Returns this thread's AES key generator, initialised for the given key size.
+     *
+     * @param keySize the key size in bits
+     * @return the key generator
+     */
+    public static KeyGenerator aesKeyGenerator(int keySize) {
+        KeyGenerator keyGen = AES_KEY_GENERATOR.get();
+        keyGen.init(keySize, RANDOM);
+        return keyGen;
+    }
+
+    /**
+     * Fills the array with a fresh random IV.
+     * @param iv the IV buffer
+     */
+    public static void nextIv(byte[] iv) {
+        RANDOM.nextBytes(iv);
+    }
+
+    /**
+     * Returns the shared random source.
+     * @return the random source
+     */
+    public static SecureRandom random() {
+        return RANDOM;
+    }
+}
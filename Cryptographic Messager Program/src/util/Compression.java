@@ -0,0 +1,156 @@
+package util;
+
+import metrics.Counter;
+import metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of message content before it is encrypted.
+ * <p>
+ * Compressed content is {@code [varint original length][raw deflate data]}. The length lets the
+ * reader allocate the output once and refuse oversized content before inflating anything. No
+ * checksum is added; the AES-GCM tag around the content already authenticates it. Like the
+ * ciphers in {@link CipherContext}, one {@link Deflater} and {@link Inflater} are kept per thread.
+ */
+public final class Compression {
+
+    /** Largest content, in bytes, that {@link #inflate} will produce. */
+    public static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+
+    private static final Counter BYTES_IN = Metrics.counter("compression.bytes_in");
+    private static final Counter BYTES_OUT = Metrics.counter("compression.bytes_out");
+
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private Compression() {
+    }
+
+    /**
+     * Compresses data if that makes it smaller.
+     *
+     * @param data the data
+     * @return the compressed form, or {@code null} if it would not be smaller than {@code data}
+     */
+    public static byte[] deflate(byte[] data) {
+        if (data.length > MAX_INFLATED_SIZE) {
+            return null;
+        }
+        int headerLength = varIntSize(data.length);
+        // Output that reaches the input's size is of no use, so stop there
+        byte[] out = new byte[data.length];
+        if (headerLength >= out.length) {
+            return null;
+        }
+        int position = putVarInt(out, data.length);
+
+        Deflater deflater = DEFLATER.get();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            while (!deflater.finished() && position < out.length) {
+                position += deflater.deflate(out, position, out.length - position);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+        } finally {
+            deflater.reset();
+        }
+        BYTES_IN.add(data.length);
+        BYTES_OUT.add(position);
+        return Arrays.copyOf(out, position);
+    }
+
+    /**
+     * Restores data compressed by {@link #deflate}.
+     *
+     * @param compressed the buffer holding the compressed data
+     * @param offset     the offset of the compressed data
+     * @param length     the length of the compressed data
+     * @return the original data
+     * @throws IOException if the data is corrupt or would exceed {@link #MAX_INFLATED_SIZE}
+     */
+    public static byte[] inflate(byte[] compressed, int offset, int length) throws IOException {
+        int end = offset + length;
+        int originalLength = 0;
+        int position = offset;
+        for (int shift = 0; ; shift += 7) {
+            if (position == end || shift == 35) {
+                throw new IOException("Corrupt compressed content");
+            }
+            byte b = compressed[position++];
+            originalLength |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (originalLength < 0 || originalLength > MAX_INFLATED_SIZE) {
+            throw new IOException("Compressed content too large: " + originalLength + " bytes");
+        }
+
+        byte[] out = new byte[originalLength];
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(compressed, position, end - position);
+            int written = 0;
+            while (written < out.length && !inflater.finished()) {
+                int n = inflater.inflate(out, written, out.length - written);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                written += n;
+            }
+            if (written != out.length) {
+                throw new IOException("Corrupt compressed content");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed content", e);
+        } finally {
+            inflater.reset();
+        }
+        return out;
+    }
+
+    /**
+     * Turns decrypted message bytes into text, inflating them first if they were compressed.
+     *
+     * @param plain      the decrypted bytes
+     * @param length     the number of decrypted bytes
+     * @param compressed whether the bytes are compressed
+     * @return the text
+     * @throws IOException if compressed bytes are corrupt
+     */
+    public static String toText(byte[] plain, int length, boolean compressed) throws IOException {
+        if (!compressed) {
+            return new String(plain, 0, length, StandardCharsets.UTF_8);
+        }
+        return new String(inflate(plain, 0, length), StandardCharsets.UTF_8);
+    }
+
+    private static int putVarInt(byte[] dst, int value) {
+        int position = 0;
+        while ((value & ~0x7F) != 0) {
+            dst[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[position++] = (byte) value;
+        return position;
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+}
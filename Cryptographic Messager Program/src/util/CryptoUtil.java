@@ -1,22 +1,32 @@
 package util;
 
+import metrics.Counter;
+import metrics.Metrics;
+
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 
 /**
- * Utility class for cryptographic operations (AES and RSA).
+ * Utility class for cryptographic operations (AES, RSA and key wrapping).
+ * Ciphers are reused per thread through {@link CipherContext}.
  */
 public class CryptoUtil {
 
     private static final int AES_KEY_SIZE = 192;
     private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 16;
+
+    private static final Counter AES_BYTES_ENCRYPTED = Metrics.counter("crypto.aes.bytes_encrypted");
+    private static final Counter AES_BYTES_DECRYPTED = Metrics.counter("crypto.aes.bytes_decrypted");
+    private static final Counter RSA_ENCRYPTS = Metrics.counter("crypto.rsa.encrypt");
+    private static final Counter RSA_DECRYPTS = Metrics.counter("crypto.rsa.decrypt");
 
     /**
      * Generates a new AES key.
@@ -24,9 +34,7 @@ public class CryptoUtil {
      * @throws java.security.NoSuchAlgorithmException if AES is not supported
      */
     public static SecretKey generateAESKey() throws NoSuchAlgorithmException {
-        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-        keyGen.init(AES_KEY_SIZE);
-        return keyGen.generateKey();
+        return CipherContext.aesKeyGenerator(AES_KEY_SIZE).generateKey();
     }
 
     /**
@@ -37,24 +45,36 @@ public class CryptoUtil {
      * @throws Exception if encryption fails
      */
     public static byte[] encryptAES(String plainText, SecretKey key) throws Exception {
+        byte[] plainBytes = plainText.getBytes(StandardCharsets.UTF_8);
+        byte[] encrypted = new byte[encryptedSize(plainBytes.length)];
+        encryptAES(ByteBuffer.wrap(plainBytes), ByteBuffer.wrap(encrypted), key);
+        return encrypted;
+    }
 
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    /**
+     * Encrypts the remaining bytes of {@code plain} into {@code out} using AES-GCM.
+     * The IV is written at the output position, immediately followed by the ciphertext and tag.
+     * Both buffers may be direct; no intermediate arrays are allocated for the data.
+     *
+     * @param plain the plaintext; its position is advanced to its limit
+     * @param out the destination, with at least {@link #encryptedSize} bytes remaining
+     * @param key the AES key
+     * @return the number of bytes written (IV + ciphertext)
+     * @throws Exception if encryption fails
+     */
+    public static int encryptAES(ByteBuffer plain, ByteBuffer out, SecretKey key) throws Exception {
 
-        byte[] iv = new byte[12];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(iv);
+        Cipher cipher = CipherContext.aesGcm();
 
-        GCMParameterSpec spec = new GCMParameterSpec(128,iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, spec);
-
-        byte[] cipherText = cipher.doFinal(plainText.getBytes());
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        CipherContext.nextIv(iv);
 
-        // Combine IV and ciphertext
-        byte[] encrypted = new byte[iv.length + cipherText.length];
-        System.arraycopy(iv, 0, encrypted, 0, iv.length);
-        System.arraycopy(cipherText, 0, encrypted, iv.length, cipherText.length);
+        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
+        cipher.init(Cipher.ENCRYPT_MODE, key, spec);
 
-        return encrypted;
+        out.put(iv);
+        AES_BYTES_ENCRYPTED.add(plain.remaining());
+        return GCM_IV_LENGTH + cipher.doFinal(plain, out);
     }
 
     /**
@@ -65,20 +85,52 @@ public class CryptoUtil {
      * @throws Exception if decryption fails
      */
     public static String decryptAES(byte[] encrypted, SecretKey key) throws Exception {
+        byte[] plainBytes = new byte[decryptedSize(encrypted.length)];
+        decryptAES(ByteBuffer.wrap(encrypted), ByteBuffer.wrap(plainBytes), key);
+        return new String(plainBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code encrypted} (IV + ciphertext) into {@code out}.
+     * The ciphertext is passed to the cipher in place rather than copied out first.
+     *
+     * @param encrypted the encrypted data; its position is advanced to its limit
+     * @param out the destination, with at least {@link #decryptedSize} bytes remaining
+     * @param key the AES key
+     * @return the number of plaintext bytes written
+     * @throws Exception if decryption or authentication fails
+     */
+    public static int decryptAES(ByteBuffer encrypted, ByteBuffer out, SecretKey key) throws Exception {
 
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher cipher = CipherContext.aesGcm();
 
         byte[] iv = new byte[GCM_IV_LENGTH];
-        byte[] cipherText = new byte[encrypted.length - 12];
-        System.arraycopy(encrypted, 0, iv, 0, GCM_IV_LENGTH);
-        System.arraycopy(encrypted, GCM_IV_LENGTH , cipherText, 0, cipherText.length);
+        encrypted.get(iv);
 
-        GCMParameterSpec spec = new GCMParameterSpec(128,iv);
+        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
         cipher.init(Cipher.DECRYPT_MODE, key, spec);
 
-        byte[] plainBytes = cipher.doFinal(cipherText);
-        return new String(plainBytes);
+        int length = cipher.doFinal(encrypted, out);
+        AES_BYTES_DECRYPTED.add(length);
+        return length;
+    }
 
+    /**
+     * Returns the size of the AES-GCM output (IV + ciphertext + tag) for a plaintext length.
+     * @param plainLength the plaintext length in bytes
+     * @return the encrypted length in bytes
+     */
+    public static int encryptedSize(int plainLength) {
+        return GCM_IV_LENGTH + plainLength + GCM_TAG_LENGTH;
+    }
+
+    /**
+     * Returns the plaintext length for an AES-GCM output (IV + ciphertext + tag) length.
+     * @param encryptedLength the encrypted length in bytes
+     * @return the plaintext length in bytes
+     */
+    public static int decryptedSize(int encryptedLength) {
+        return encryptedLength - GCM_IV_LENGTH - GCM_TAG_LENGTH;
     }
 
     /**
@@ -90,8 +142,9 @@ public class CryptoUtil {
      */
     public static byte[] encryptRSA(byte[] data, PublicKey publicKey) throws Exception {
 
-        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        Cipher cipher = CipherContext.rsaOaep();
         cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+        RSA_ENCRYPTS.increment();
         return cipher.doFinal(data);
 
     }
@@ -105,12 +158,35 @@ public class CryptoUtil {
      */
     public static byte[] decryptRSA(byte[] encrypted, PrivateKey privateKey) throws Exception {
 
-        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        Cipher cipher = CipherContext.rsaOaep();
         cipher.init(Cipher.DECRYPT_MODE, privateKey);
+        RSA_DECRYPTS.increment();
         return cipher.doFinal(encrypted);
 
     }
 
+    /**
+     * Wraps an AES key for the owner of a public key, using the key's {@link KeyScheme}.
+     * @param key the AES key
+     * @param publicKey the recipient's RSA or X25519 public key
+     * @return the wrapped key
+     * @throws Exception if wrapping fails
+     */
+    public static byte[] wrapKey(SecretKey key, PublicKey publicKey) throws Exception {
+        return KeyScheme.forKey(publicKey).wrap(key, publicKey);
+    }
+
+    /**
+     * Unwraps an AES key with a private key, using the key's {@link KeyScheme}.
+     * @param wrapped the wrapped key
+     * @param privateKey the recipient's RSA or X25519 private key
+     * @return the AES key
+     * @throws Exception if unwrapping fails
+     */
+    public static SecretKey unwrapKey(byte[] wrapped, PrivateKey privateKey) throws Exception {
+        return KeyScheme.forKey(privateKey).unwrap(wrapped, privateKey);
+    }
+
     /**
      * Restores an AES key from its byte array representation.
      * @param keyBytes the key bytes
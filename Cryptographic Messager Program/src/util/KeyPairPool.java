@@ -0,0 +1,189 @@
+package util;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of pre-generated key pairs, refilled by background worker threads.
+ * <p>
+ * When a {@link #take()} leaves the pool at or below the low watermark, the workers generate
+ * key pairs until it reaches the high watermark again. If the pool is empty, {@link #take()}
+ * generates a key pair on the calling thread instead of waiting.
+ */
+public class KeyPairPool implements AutoCloseable {
+
+    private final KeyScheme scheme;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final BlockingQueue<KeyPair> pairs;
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder generated = new LongAdder();
+
+    // Guarded by this
+    private boolean refilling;
+    private boolean closed;
+    private long refillStartedAt;
+    private long refillNanos;
+    private long refillGenerated;
+
+    /**
+     * Creates a pool and starts filling it to the high watermark.
+     *
+     * @param scheme        the key scheme to generate pairs for
+     * @param lowWatermark  the depth at or below which a refill starts
+     * @param highWatermark the depth a refill stops at, and the pool's capacity
+     * @param workerCount   the number of background worker threads
+     */
+    public KeyPairPool(KeyScheme scheme, int lowWatermark, int highWatermark, int workerCount) {
+        if (lowWatermark < 0 || highWatermark <= lowWatermark || workerCount <= 0) {
+            throw new IllegalArgumentException("Require 0 <= low < high and at least one worker.");
+        }
+        this.scheme = scheme;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.pairs = new ArrayBlockingQueue<>(highWatermark);
+
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::refillLoop, "keypair-pool-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            workers.add(worker);
+        }
+        startRefill();
+        workers.forEach(Thread::start);
+    }
+
+    /**
+     * Returns the key scheme of the pooled pairs.
+     * @return the key scheme
+     */
+    public KeyScheme getScheme() {
+        return scheme;
+    }
+
+    /**
+     * Takes a pre-generated key pair, or generates one inline if the pool is empty.
+     * Each pair is handed out at most once.
+     *
+     * @return a fresh key pair
+     * @throws Exception if inline generation fails
+     */
+    public KeyPair take() throws Exception {
+        KeyPair pair = pairs.poll();
+        if (pairs.size() <= lowWatermark) {
+            startRefill();
+        }
+        if (pair != null) {
+            hits.increment();
+            return pair;
+        }
+        misses.increment();
+        return scheme.generateKeyPair();
+    }
+
+    private synchronized void startRefill() {
+        if (!refilling && !closed) {
+            refilling = true;
+            refillStartedAt = System.nanoTime();
+            notifyAll();
+        }
+    }
+
+    private synchronized void stopRefill(long count) {
+        refillGenerated += count;
+        if (refilling) {
+            refilling = false;
+            refillNanos += System.nanoTime() - refillStartedAt;
+        }
+    }
+
+    private synchronized boolean awaitRefill() throws InterruptedException {
+        while (!refilling && !closed) {
+            wait();
+        }
+        return !closed;
+    }
+
+    private void refillLoop() {
+        try {
+            while (awaitRefill()) {
+                long count = 0;
+                try {
+                    while (pairs.size() < highWatermark && !Thread.currentThread().isInterrupted()) {
+                        if (!pairs.offer(scheme.generateKeyPair())) {
+                            break;
+                        }
+                        generated.increment();
+                        count++;
+                    }
+                } catch (Exception e) {
+                    // Keep the worker alive; the next refill request retries
+                    System.err.println("Failed to generate pooled key pair: " + e.getMessage());
+                }
+                stopRefill(count);
+            }
+        } catch (InterruptedException e) {
+            // Pool closed
+        }
+    }
+
+    /**
+     * Returns the number of key pairs ready to be taken.
+     * @return the pool depth
+     */
+    public int depth() {
+        return pairs.size();
+    }
+
+    /**
+     * Returns how many {@link #take()} calls were served from the pool.
+     * @return the hit count
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns how many {@link #take()} calls found the pool empty and generated inline.
+     * @return the miss count
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns how many key pairs the workers have generated.
+     * @return the generated count
+     */
+    public long generated() {
+        return generated.sum();
+    }
+
+    /**
+     * Returns the average number of key pairs added per second during completed refills.
+     * @return the refill rate, or {@code 0} before the first refill completes
+     */
+    public synchronized double refillRate() {
+        return refillNanos == 0 ? 0 : refillGenerated * 1e9 / refillNanos;
+    }
+
+    /**
+     * Stops the workers and discards the pooled key pairs.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        workers.forEach(Thread::interrupt);
+        pairs.clear();
+    }
+}
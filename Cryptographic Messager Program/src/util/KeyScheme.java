@@ -0,0 +1,92 @@
+package util;
+
+import javax.crypto.SecretKey;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * Asymmetric scheme used to protect per-message AES keys.
+ * <p>
+ * A scheme generates user key pairs and wraps AES keys for a recipient. The scheme of an
+ * existing key is recognised from its algorithm, so users with RSA and X25519 keys can
+ * exchange messages with each other.
+ */
+public interface KeyScheme {
+
+    /** RSA-2048 key pairs; AES keys are wrapped with RSA-OAEP (SHA-256). */
+    KeyScheme RSA = new RsaKeyScheme();
+
+    /** X25519 key pairs; AES keys are wrapped under an ephemeral ECDH + HKDF-SHA256 key. */
+    KeyScheme X25519 = new X25519KeyScheme();
+
+    /**
+     * Returns the scheme's name.
+     * @return the name, e.g. {@code "RSA"}
+     */
+    String name();
+
+    /**
+     * Generates a new key pair for a user.
+     * @return the key pair
+     * @throws Exception if generation fails
+     */
+    KeyPair generateKeyPair() throws Exception;
+
+    /**
+     * Wraps an AES key for the owner of a public key.
+     *
+     * @param key       the AES key
+     * @param publicKey the recipient's public key
+     * @return the wrapped key
+     * @throws Exception if wrapping fails
+     */
+    byte[] wrap(SecretKey key, PublicKey publicKey) throws Exception;
+
+    /**
+     * Unwraps an AES key with the recipient's private key.
+     *
+     * @param wrapped    the wrapped key
+     * @param privateKey the recipient's private key
+     * @return the AES key
+     * @throws Exception if the key cannot be unwrapped
+     */
+    SecretKey unwrap(byte[] wrapped, PrivateKey privateKey) throws Exception;
+
+    /**
+     * Returns the scheme a key belongs to.
+     *
+     * @param key a public or private key
+     * @return the scheme
+     * @throws IllegalArgumentException if no scheme supports the key's algorithm
+     */
+    static KeyScheme forKey(Key key) {
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                return RSA;
+            case "XDH":
+            case "X25519":
+                return X25519;
+            default:
+                throw new IllegalArgumentException("Unsupported key algorithm: " + key.getAlgorithm());
+        }
+    }
+
+    /**
+     * Returns a scheme by name, ignoring case.
+     *
+     * @param name the scheme name
+     * @return the scheme
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static KeyScheme forName(String name) {
+        if (RSA.name().equalsIgnoreCase(name)) {
+            return RSA;
+        }
+        if (X25519.name().equalsIgnoreCase(name)) {
+            return X25519;
+        }
+        throw new IllegalArgumentException("Unknown key scheme: " + name);
+    }
+}
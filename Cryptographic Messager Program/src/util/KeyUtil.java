@@ -1,10 +1,16 @@
 package util;
 
 import java.io.*;
+import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
 
 /**
  * Utility class for generating, saving, and loading cryptographic keys.
@@ -25,7 +31,31 @@ public class KeyUtil {
     }
 
     /**
-     * Saves a key to a file.
+     * Decodes a public key from its X.509 {@code SubjectPublicKeyInfo} encoding,
+     * as returned by {@link PublicKey#getEncoded()}.
+     * @param algorithm the key algorithm, e.g. {@code "RSA"} or {@code "XDH"}
+     * @param encoded the encoded key
+     * @return the public key
+     * @throws GeneralSecurityException if the algorithm is unsupported or the encoding is invalid
+     */
+    public static PublicKey decodePublicKey(String algorithm, byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    /**
+     * Decodes a private key from its PKCS#8 encoding, as returned by {@link PrivateKey#getEncoded()}.
+     * @param algorithm the key algorithm, e.g. {@code "RSA"} or {@code "XDH"}
+     * @param encoded the encoded key
+     * @return the private key
+     * @throws GeneralSecurityException if the algorithm is unsupported or the encoding is invalid
+     */
+    public static PrivateKey decodePrivateKey(String algorithm, byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(encoded));
+    }
+
+    /**
+     * Saves a key to a file with Java serialization, the format of key files before the
+     * key store. Kept for reading and migrating such files.
      * @param key the key to save
      * @param filePath the file path
      * @throws java.io.IOException if saving fails
@@ -38,7 +68,7 @@ public class KeyUtil {
     }
 
     /**
-     * Loads a key from a file.
+     * Loads a key saved with {@link #saveKeyToFile}.
      * @param filePath the file path
      * @return the loaded Key
      * @throws IOException if loading fails
@@ -0,0 +1,46 @@
+package util;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+/**
+ * {@link PasswordHasher} for the unsalted, lowercase hex SHA-256 hashes of earlier releases.
+ */
+final class LegacySha256PasswordHasher implements PasswordHasher {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    @Override
+    public boolean recognizes(String encoded) {
+        if (encoded.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < encoded.length(); i++) {
+            if (Character.digit(encoded.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String hash(String password) throws GeneralSecurityException {
+        return HEX.formatHex(digest(password));
+    }
+
+    @Override
+    public boolean verify(String password, String encoded) throws GeneralSecurityException {
+        return recognizes(encoded) && MessageDigest.isEqual(digest(password), HEX.parseHex(encoded));
+    }
+
+    @Override
+    public boolean needsRehash(String encoded) {
+        return !recognizes(encoded);
+    }
+
+    private static byte[] digest(String password) throws GeneralSecurityException {
+        // Default charset, as the hashes were created with
+        return MessageDigest.getInstance("SHA-256").digest(password.getBytes());
+    }
+}
@@ -0,0 +1,67 @@
+package util;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Password hashing scheme producing self-describing encoded hashes.
+ * <p>
+ * An encoded hash carries everything needed to verify it: the scheme, its format version and
+ * its parameters. A scheme recognises its own hashes, so hashes of several schemes can be
+ * verified side by side while a store is upgraded to the current one.
+ */
+public interface PasswordHasher {
+
+    /**
+     * Unsalted SHA-256 as hex, as stored by earlier releases. Only used to verify and then
+     * replace existing hashes.
+     */
+    PasswordHasher LEGACY_SHA256 = new LegacySha256PasswordHasher();
+
+    /**
+     * Returns a salted PBKDF2-HMAC-SHA256 hasher, encoding hashes as
+     * {@code $pbkdf2-sha256$v=1$i=<iterations>$<salt>$<hash>} with unpadded Base64 salt and hash.
+     *
+     * @param iterations the iteration count for new hashes
+     * @return the hasher
+     * @throws IllegalArgumentException if the iteration count is out of range
+     */
+    static PasswordHasher pbkdf2(int iterations) {
+        return new Pbkdf2PasswordHasher(iterations);
+    }
+
+    /**
+     * Checks whether an encoded hash was produced by this scheme.
+     *
+     * @param encoded the encoded hash
+     * @return {@code true} if this hasher can verify it
+     */
+    boolean recognizes(String encoded);
+
+    /**
+     * Hashes a password with a fresh salt and the hasher's current parameters.
+     *
+     * @param password the password
+     * @return the encoded hash
+     * @throws GeneralSecurityException if hashing fails
+     */
+    String hash(String password) throws GeneralSecurityException;
+
+    /**
+     * Verifies a password against an encoded hash of this scheme in constant time.
+     *
+     * @param password the password
+     * @param encoded  the encoded hash
+     * @return {@code true} if the password matches; {@code false} also for malformed hashes
+     * @throws GeneralSecurityException if hashing fails
+     */
+    boolean verify(String password, String encoded) throws GeneralSecurityException;
+
+    /**
+     * Checks whether an encoded hash should be replaced by one from this hasher: it is of another
+     * scheme, an older format version, or weaker parameters.
+     *
+     * @param encoded the encoded hash
+     * @return {@code true} if the hash should be replaced
+     */
+    boolean needsRehash(String encoded);
+}
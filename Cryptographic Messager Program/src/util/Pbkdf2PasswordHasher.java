@@ -0,0 +1,119 @@
+package util;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * {@link PasswordHasher} using PBKDF2-HMAC-SHA256 with a 16-byte random salt and a 32-byte hash.
+ * <p>
+ * Encoded as {@code $pbkdf2-sha256$v=1$i=<iterations>$<salt>$<hash>}. Verification takes the
+ * iteration count from the encoded hash, so raising the configured count keeps existing hashes
+ * valid and only marks them for rehashing.
+ */
+final class Pbkdf2PasswordHasher implements PasswordHasher {
+
+    private static final String PREFIX = "$pbkdf2-sha256$";
+    private static final int VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final int MAX_ITERATIONS = 10_000_000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getDecoder();
+
+    private final int iterations;
+
+    Pbkdf2PasswordHasher(int iterations) {
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Iterations must be between 1 and " + MAX_ITERATIONS + ".");
+        }
+        this.iterations = iterations;
+    }
+
+    @Override
+    public boolean recognizes(String encoded) {
+        return encoded.startsWith(PREFIX);
+    }
+
+    @Override
+    public String hash(String password) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        byte[] hash = derive(password, salt, iterations, HASH_LENGTH);
+        return PREFIX + "v=" + VERSION + "$i=" + iterations + "$" + ENCODER.encodeToString(salt)
+                + "$" + ENCODER.encodeToString(hash);
+    }
+
+    @Override
+    public boolean verify(String password, String encoded) throws GeneralSecurityException {
+        Parsed parsed = parse(encoded);
+        if (parsed == null) {
+            return false;
+        }
+        byte[] actual = derive(password, parsed.salt, parsed.iterations, parsed.hash.length);
+        return MessageDigest.isEqual(actual, parsed.hash);
+    }
+
+    @Override
+    public boolean needsRehash(String encoded) {
+        Parsed parsed = parse(encoded);
+        return parsed == null
+                || parsed.iterations < iterations
+                || parsed.salt.length < SALT_LENGTH
+                || parsed.hash.length < HASH_LENGTH;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations, int length)
+            throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Splits an encoded hash into its parameters.
+     *
+     * @return the parameters, or {@code null} if the hash is malformed or of another version
+     */
+    private static Parsed parse(String encoded) {
+        if (!encoded.startsWith(PREFIX)) {
+            return null;
+        }
+        String[] fields = encoded.substring(PREFIX.length()).split("\\$", -1);
+        if (fields.length != 4 || !fields[0].equals("v=" + VERSION) || !fields[1].startsWith("i=")) {
+            return null;
+        }
+        try {
+            int iterations = Integer.parseInt(fields[1].substring(2));
+            byte[] salt = DECODER.decode(fields[2]);
+            byte[] hash = DECODER.decode(fields[3]);
+            if (iterations < 1 || iterations > MAX_ITERATIONS || salt.length == 0
+                    || hash.length == 0 || hash.length > 2 * HASH_LENGTH) {
+                return null;
+            }
+            return new Parsed(iterations, salt, hash);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static final class Parsed {
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Parsed(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package util;
+
+import javax.crypto.SecretKey;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * {@link KeyScheme} wrapping AES keys with RSA-OAEP, as used since the first release.
+ */
+final class RsaKeyScheme implements KeyScheme {
+
+    @Override
+    public String name() {
+        return "RSA";
+    }
+
+    @Override
+    public KeyPair generateKeyPair() throws Exception {
+        return KeyUtil.generateRSAKeyPair();
+    }
+
+    @Override
+    public byte[] wrap(SecretKey key, PublicKey publicKey) throws Exception {
+        return CryptoUtil.encryptRSA(key.getEncoded(), publicKey);
+    }
+
+    @Override
+    public SecretKey unwrap(byte[] wrapped, PrivateKey privateKey) throws Exception {
+        return CryptoUtil.restoreAESKey(CryptoUtil.decryptRSA(wrapped, privateKey));
+    }
+}
@@ -0,0 +1,139 @@
+package util;
+
+import metrics.Counter;
+import metrics.Metrics;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * {@link KeyScheme} based on X25519 key agreement.
+ * <p>
+ * Each wrap generates an ephemeral X25519 key pair, agrees a shared secret with the recipient's
+ * public key and derives a single-use AES-256 key from it with HKDF-SHA256. The AES key is
+ * encrypted under that key with AES-GCM. Because the derived key is never reused, a fixed zero
+ * nonce is safe. Wrapped layout: 32-byte ephemeral public key, then the encrypted key and tag.
+ */
+final class X25519KeyScheme implements KeyScheme {
+
+    private static final String ALGORITHM = "X25519";
+    private static final int PUBLIC_KEY_LENGTH = 32;
+    private static final int TAG_LENGTH = 16;
+    private static final byte[] INFO = "CryptoMessenger X25519 key wrap v1".getBytes(StandardCharsets.US_ASCII);
+
+    // DER prefix of an X.509 SubjectPublicKeyInfo for X25519; the raw key follows it
+    private static final byte[] X509_PREFIX = {
+            0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00
+    };
+
+    private static final ThreadLocal<KeyPairGenerator> KEY_PAIR_GENERATOR = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyPairGenerator.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported", e);
+        }
+    });
+    private static final ThreadLocal<KeyAgreement> KEY_AGREEMENT = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyAgreement.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported", e);
+        }
+    });
+    private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not supported", e);
+        }
+    });
+
+    private static final Counter WRAPS = Metrics.counter("crypto.x25519.wrap");
+    private static final Counter UNWRAPS = Metrics.counter("crypto.x25519.unwrap");
+
+    @Override
+    public String name() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public KeyPair generateKeyPair() {
+        return KEY_PAIR_GENERATOR.get().generateKeyPair();
+    }
+
+    @Override
+    public byte[] wrap(SecretKey key, PublicKey publicKey) throws Exception {
+        WRAPS.increment();
+        KeyPair ephemeral = generateKeyPair();
+        byte[] ephemeralPublic = rawPublicKey(ephemeral.getPublic());
+        SecretKey kek = deriveKey(ephemeral.getPrivate(), publicKey, ephemeralPublic);
+
+        byte[] keyBytes = key.getEncoded();
+        byte[] wrapped = Arrays.copyOf(ephemeralPublic, PUBLIC_KEY_LENGTH + keyBytes.length + TAG_LENGTH);
+        Cipher cipher = CipherContext.aesGcm();
+        cipher.init(Cipher.ENCRYPT_MODE, kek, zeroNonce());
+        cipher.updateAAD(ephemeralPublic);
+        cipher.doFinal(keyBytes, 0, keyBytes.length, wrapped, PUBLIC_KEY_LENGTH);
+        return wrapped;
+    }
+
+    @Override
+    public SecretKey unwrap(byte[] wrapped, PrivateKey privateKey) throws Exception {
+        if (wrapped.length <= PUBLIC_KEY_LENGTH + TAG_LENGTH) {
+            throw new IllegalArgumentException("Wrapped key is too short.");
+        }
+        UNWRAPS.increment();
+        byte[] ephemeralPublic = Arrays.copyOf(wrapped, PUBLIC_KEY_LENGTH);
+        SecretKey kek = deriveKey(privateKey, publicKey(ephemeralPublic), ephemeralPublic);
+
+        Cipher cipher = CipherContext.aesGcm();
+        cipher.init(Cipher.DECRYPT_MODE, kek, zeroNonce());
+        cipher.updateAAD(ephemeralPublic);
+        byte[] keyBytes = cipher.doFinal(wrapped, PUBLIC_KEY_LENGTH, wrapped.length - PUBLIC_KEY_LENGTH);
+        return CryptoUtil.restoreAESKey(keyBytes);
+    }
+
+    private static SecretKey deriveKey(PrivateKey privateKey, PublicKey publicKey, byte[] salt) throws Exception {
+        KeyAgreement agreement = KEY_AGREEMENT.get();
+        agreement.init(privateKey);
+        agreement.doPhase(publicKey, true);
+        byte[] shared = agreement.generateSecret();
+
+        // HKDF-SHA256 (RFC 5869) with a single expand block, giving a 32-byte key
+        Mac mac = HMAC.get();
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] prk = mac.doFinal(shared);
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        mac.update(INFO);
+        mac.update((byte) 1);
+        return new SecretKeySpec(mac.doFinal(), "AES");
+    }
+
+    private static GCMParameterSpec zeroNonce() {
+        return new GCMParameterSpec(TAG_LENGTH * 8, new byte[12]);
+    }
+
+    private static byte[] rawPublicKey(PublicKey publicKey) {
+        byte[] encoded = publicKey.getEncoded();
+        return Arrays.copyOfRange(encoded, encoded.length - PUBLIC_KEY_LENGTH, encoded.length);
+    }
+
+    private static PublicKey publicKey(byte[] raw) throws GeneralSecurityException {
+        byte[] encoded = Arrays.copyOf(X509_PREFIX, X509_PREFIX.length + raw.length);
+        System.arraycopy(raw, 0, encoded, X509_PREFIX.length, raw.length);
+        return KeyFactory.getInstance(ALGORITHM).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+}
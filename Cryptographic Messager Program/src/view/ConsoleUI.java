@@ -5,7 +5,11 @@ import model.User;
 import service.MessageService;
 import service.UserService;
 
-import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.PublicKey;
 import java.util.List;
 import java.util.Scanner;
@@ -16,6 +20,8 @@ import java.util.Scanner;
  */
 public class ConsoleUI {
 
+    private static final int INBOX_PAGE_SIZE = 20;
+
     private final UserService userService;
     private final MessageService messageService = new MessageService();
     private final Scanner scanner;
@@ -85,7 +91,10 @@ public class ConsoleUI {
         User user = userService.login(username, password);
         this.currentUser = user;
         System.out.println("✅ Login successful. Welcome, " + user.getUsername() + "!");
-        messageService.loadMessages(user);
+        long unread = messageService.unreadCount(user);
+        if (unread > 0) {
+            System.out.println("📬 You have " + unread + " new message" + (unread == 1 ? "" : "s") + ".");
+        }
 
         userDashboard(); // Next screen
 
@@ -97,7 +106,9 @@ public class ConsoleUI {
             System.out.println("\n=== Dashboard ===");
             System.out.println("1. Send Message");
             System.out.println("2. View Inbox");
-            System.out.println("3. Logout");
+            System.out.println("3. Send Attachment");
+            System.out.println("4. Save Attachment");
+            System.out.println("5. Logout");
             System.out.print("Select option: ");
             String input = scanner.nextLine();
 
@@ -110,7 +121,14 @@ public class ConsoleUI {
                         handleInbox();
                         break;
                     case "3":
+                        handleSendAttachment();
+                        break;
+                    case "4":
+                        handleSaveAttachment();
+                        break;
+                    case "5":
                         System.out.println("Logging out...");
+                        messageService.endSession(currentUser);
                         return; // go back to main menu
                     default:
                         System.out.println("Invalid option. Please try again.");
@@ -131,6 +149,10 @@ public class ConsoleUI {
             System.out.println("❌ You cannot send a message to yourself.");
             return;
         }
+        if (!userService.userExists(recipientName)) {
+            System.out.println("❌ Recipient not found.");
+            return;
+        }
 
         try {
             PublicKey recipientKey = userService.getUserPublicKey(recipientName);
@@ -139,37 +161,123 @@ public class ConsoleUI {
             User recipient = new User(recipientName, null);
             recipient.setPublicKey(recipientKey);
 
-            messageService.loadMessages(recipient); // Load recipient's inbox
-
             String messageText = prompt("Message: ");
-            messageService.sendMessage(currentUser, recipient, messageText);
-            messageService.saveMessages(recipient); // Save recipient's inbox
+            messageService.sendMessage(currentUser, recipient, messageText); // Appends to recipient's inbox
 
             System.out.println("✅ Message sent to " + recipientName + "!");
-        } catch (FileNotFoundException e) {
-            System.out.println("❌ Recipient not found.");
         } catch (Exception e) {
             System.out.println("❌ Error: " + e.getMessage());
         }
     }
 
     private void handleInbox() throws Exception {
-        System.out.println("\n--- Inbox ---");
-        List<Message> inbox = messageService.getInbox(currentUser);
-
-        if (inbox.isEmpty()) {
-            System.out.println("📭 Inbox is empty.");
-            return;
+        System.out.println("\n--- Inbox (newest first) ---");
+        long readCursor = messageService.getReadCursor(currentUser);
+        long newest = readCursor;
+        int offset = 0;
+        while (true) {
+            // Only this page is read from disk, and messages seen before come from the session cache
+            List<Message> page = messageService.getInbox(currentUser, null, null, offset, INBOX_PAGE_SIZE);
+            if (page.isEmpty()) {
+                System.out.println(offset == 0 ? "📭 Inbox is empty." : "No older messages.");
+                messageService.markRead(currentUser, newest);
+                return;
+            }
+            printMessages(page, offset, readCursor);
+            newest = Math.max(newest, page.stream().mapToLong(Message::getSequence).max().getAsLong());
+            // Pages go newest first, so the cursor may only move once every unread message was shown
+            long lowest = page.stream().mapToLong(Message::getSequence).min().getAsLong();
+            if (lowest <= readCursor + 1 || page.size() < INBOX_PAGE_SIZE) {
+                messageService.markRead(currentUser, newest);
+            }
+            offset += page.size();
+            if (page.size() < INBOX_PAGE_SIZE || !prompt("\nShow older messages? (y/n): ").trim().equalsIgnoreCase("y")) {
+                return;
+            }
         }
+    }
 
-        for (int i = 0; i < inbox.size(); i++) {
-            Message msg = inbox.get(i);
-            String decrypted = msg.decrypt(currentUser.getPrivateKey());
-            System.out.println("\nMessage #" + (i + 1));
+    private void printMessages(List<Message> page, int offset, long readCursor) throws InterruptedException {
+        // Messages are decrypted in parallel and printed in order as they become ready
+        messageService.decryptMessages(currentUser, page, result -> {
+            Message msg = result.getMessage();
+            System.out.println("\nMessage #" + (offset + result.getIndex() + 1)
+                    + (msg.getSequence() > readCursor ? " (new)" : ""));
             System.out.println("From: " + msg.getSenderUsername());
             System.out.println("Time: " + msg.getTimestamp());
-            System.out.println("Content: " + decrypted);
+            if (!result.isDecrypted()) {
+                System.out.println("❌ Could not decrypt: " + result.getError().getMessage());
+            } else if (msg.hasAttachment()) {
+                System.out.println("Attachment: " + result.getContent());
+            } else {
+                System.out.println("Content: " + result.getContent());
+            }
+        });
+    }
+
+    private void handleSendAttachment() {
+        System.out.println("\n--- Send Attachment ---");
+
+        String recipientName = prompt("Recipient username: ");
+        if (recipientName.equals(currentUser.getUsername())) {
+            System.out.println("❌ You cannot send a message to yourself.");
+            return;
+        }
+        if (!userService.userExists(recipientName)) {
+            System.out.println("❌ Recipient not found.");
+            return;
+        }
+
+        try {
+            PublicKey recipientKey = userService.getUserPublicKey(recipientName);
+            User recipient = new User(recipientName, null);
+            recipient.setPublicKey(recipientKey);
+
+            Path file = Paths.get(prompt("File path: "));
+            if (!Files.isRegularFile(file)) {
+                System.out.println("❌ File not found.");
+                return;
+            }
+
+            try (InputStream data = Files.newInputStream(file)) {
+                messageService.sendAttachment(currentUser, recipient, file.getFileName().toString(), data);
+            }
+            System.out.println("✅ Attachment sent to " + recipientName + "!");
+        } catch (Exception e) {
+            System.out.println("❌ Error: " + e.getMessage());
+        }
+    }
+
+    private void handleSaveAttachment() throws Exception {
+        System.out.println("\n--- Save Attachment ---");
+
+        int number;
+        try {
+            number = Integer.parseInt(prompt("Message #: ").trim());
+        } catch (NumberFormatException e) {
+            System.out.println("❌ Invalid message number.");
+            return;
+        }
+        // Numbered as in the inbox view, newest first
+        List<Message> match = number < 1 ? List.of() : messageService.getInbox(currentUser, null, null, number - 1, 1);
+        if (match.isEmpty() || !match.get(0).hasAttachment()) {
+            System.out.println("❌ That message has no attachment.");
+            return;
+        }
+
+        Path target = Paths.get(prompt("Save to: ")).toAbsolutePath();
+        try (InputStream data = messageService.openAttachment(currentUser, match.get(0))) {
+            // Write beside the target and swap it in, so a failure never touches an existing file
+            Path tmp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".part");
+            try {
+                Files.copy(data, tmp, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (Exception e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
         }
+        System.out.println("✅ Attachment saved to " + target + ".");
     }
 
     private String prompt(String message) {
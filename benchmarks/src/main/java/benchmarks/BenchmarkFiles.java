@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Temporary storage directories for benchmarks that touch the file system.
+ */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * Creates a fresh temporary directory.
+     *
+     * @return the directory
+     * @throws IOException if it cannot be created
+     */
+    static Path createTempDirectory() throws IOException {
+        return Files.createTempDirectory("messenger-bench");
+    }
+
+    /**
+     * Deletes a directory and everything below it.
+     *
+     * @param directory the directory
+     * @throws IOException if deletion fails
+     */
+    static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Builds a printable text payload of the given size in bytes.
+     *
+     * @param size the size in bytes
+     * @return the text
+     */
+    static String text(int size) {
+        StringBuilder text = new StringBuilder(size);
+        String words = "the quick brown fox jumps over the lazy dog ";
+        while (text.length() < size) {
+            text.append(words, 0, Math.min(words.length(), size - text.length()));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,86 @@
+package benchmarks;
+
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.MessageService;
+import util.KeyUtil;
+
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One message sent to {@code recipients} users, with {@code sendToMany} compared with a loop of
+ * {@code sendMessage}. All recipients share one key pair so setup does not dominate the run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int recipients;
+
+    @Param({"256"})
+    public int messageSize;
+
+    private Path directory;
+    private MessageService messageService;
+    private User sender;
+    private List<User> users;
+    private String content;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = BenchmarkFiles.createTempDirectory();
+        content = BenchmarkFiles.text(messageSize);
+        messageService = new MessageService(directory);
+        sender = new User("sender", null);
+
+        KeyPair keyPair = KeyUtil.generateRSAKeyPair();
+        users = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            User user = new User("recipient" + i, null);
+            user.setPublicKey(keyPair.getPublic());
+            users.add(user);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        messageService.close();
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public Map<String, Exception> sendToMany() throws Exception {
+        Map<String, Exception> failures = messageService.sendToMany(sender, users, content);
+        users.forEach(user -> user.setInbox(null));
+        return failures;
+    }
+
+    @Benchmark
+    public void sendMessageLoop() throws Exception {
+        for (User user : users) {
+            messageService.sendMessage(sender, user, content);
+            user.setInbox(null);
+        }
+    }
+}
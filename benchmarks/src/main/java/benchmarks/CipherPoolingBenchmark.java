@@ -0,0 +1,84 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import util.CipherContext;
+import util.CryptoUtil;
+import util.KeyUtil;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-thread cipher reuse in {@link CryptoUtil} compared with creating a {@link Cipher}
+ * (and, for AES, a {@link SecureRandom}) on every call as before. Runs on several threads
+ * so contention on the shared IV source shows up.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class CipherPoolingBenchmark {
+
+    @Param({"64", "1024"})
+    public int messageSize;
+
+    private String plainText;
+    private SecretKey aesKey;
+    private KeyPair keyPair;
+
+    @Setup
+    public void setUp() throws Exception {
+        plainText = BenchmarkFiles.text(messageSize);
+        aesKey = CryptoUtil.generateAESKey();
+        keyPair = KeyUtil.generateRSAKeyPair();
+    }
+
+    @Benchmark
+    public byte[] encryptAESPooled() throws Exception {
+        return CryptoUtil.encryptAES(plainText, aesKey);
+    }
+
+    @Benchmark
+    public byte[] encryptAESPerCall() throws Exception {
+        Cipher cipher = Cipher.getInstance(CipherContext.AES_GCM);
+        byte[] iv = new byte[12];
+        new SecureRandom().nextBytes(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(128, iv));
+        byte[] cipherText = cipher.doFinal(plainText.getBytes());
+
+        byte[] encrypted = new byte[iv.length + cipherText.length];
+        System.arraycopy(iv, 0, encrypted, 0, iv.length);
+        System.arraycopy(cipherText, 0, encrypted, iv.length, cipherText.length);
+        return encrypted;
+    }
+
+    @Benchmark
+    public byte[] encryptRSAPooled() throws Exception {
+        return CryptoUtil.encryptRSA(aesKey.getEncoded(), keyPair.getPublic());
+    }
+
+    @Benchmark
+    public byte[] encryptRSAPerCall() throws Exception {
+        Cipher cipher = Cipher.getInstance(CipherContext.RSA_OAEP);
+        cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+        return cipher.doFinal(aesKey.getEncoded());
+    }
+}
@@ -0,0 +1,121 @@
+package benchmarks;
+
+import model.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import storage.MessageCodec;
+import storage.SenderTable;
+import util.CryptoUtil;
+import util.KeyUtil;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inbox encoding with {@link MessageCodec} compared with the {@code ObjectOutputStream}
+ * format used before it. Encoded sizes are printed once per trial.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int inboxSize;
+
+    private Path directory;
+    private SenderTable senders;
+    private List<Message> messages;
+    private ByteBuffer encodeBuffer;
+    private ByteBuffer binary;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = BenchmarkFiles.createTempDirectory();
+        senders = SenderTable.open(directory.resolve("senders"));
+
+        KeyPair keyPair = KeyUtil.generateRSAKeyPair();
+        messages = new ArrayList<>(inboxSize);
+        for (int i = 0; i < inboxSize; i++) {
+            SecretKey key = CryptoUtil.generateAESKey();
+            byte[] content = CryptoUtil.encryptAES(BenchmarkFiles.text(256), key);
+            byte[] wrappedKey = CryptoUtil.encryptRSA(key.getEncoded(), keyPair.getPublic());
+            messages.add(new Message(content, wrappedKey, "sender" + (i % 16)));
+        }
+
+        int size = 0;
+        for (Message message : messages) {
+            size += MessageCodec.encodedSize(message, senders.idFor(message.getSenderUsername()));
+        }
+        encodeBuffer = ByteBuffer.allocate(size);
+        binary = encodeBinary().flip();
+        serialized = encodeSerialized();
+        System.out.println("\n[codec] " + inboxSize + " messages: binary=" + binary.remaining()
+                + " bytes, serialized=" + serialized.length + " bytes");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() throws IOException {
+        encodeBuffer.clear();
+        for (Message message : messages) {
+            MessageCodec.encode(message, senders.idFor(message.getSenderUsername()), encodeBuffer);
+        }
+        return encodeBuffer;
+    }
+
+    @Benchmark
+    public List<Message> decodeBinary() throws IOException {
+        ByteBuffer src = binary.duplicate();
+        List<Message> decoded = new ArrayList<>(inboxSize);
+        for (int i = 0; i < inboxSize; i++) {
+            decoded.add(MessageCodec.decode(src, senders));
+        }
+        return decoded;
+    }
+
+    @Benchmark
+    public byte[] encodeSerialized() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(messages);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<Message> decodeSerialized() throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return (List<Message>) ois.readObject();
+        }
+    }
+}
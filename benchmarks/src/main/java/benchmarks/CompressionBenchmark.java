@@ -0,0 +1,172 @@
+package benchmarks;
+
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.MessageService;
+import util.Compression;
+import util.CryptoUtil;
+import util.KeyScheme;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * CPU cost of compress-then-encrypt against the bytes it saves, on three message corpora:
+ * chat-style prose, JSON event payloads and Base64 tokens (close to incompressible).
+ * {@code encrypt} and {@code decrypt} time the content path alone; {@code sendMessage} is a
+ * session-mode send including the inbox append. The stored size per message (ciphertext and
+ * inbox bytes on disk) is printed at the end of each {@code sendMessage} trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+
+    private static final String[] WORDS = {
+        "the", "a", "to", "and", "I", "you", "it", "is", "that", "we", "on", "for", "in", "of", "this",
+        "can", "will", "just", "be", "have", "not", "with", "are", "so", "at", "meeting", "tomorrow",
+        "today", "send", "report", "call", "later", "thanks", "sure", "sounds", "good", "let", "me",
+        "know", "when", "after", "lunch", "deploy", "build", "review", "fixed", "broken", "again",
+        "please", "check", "ticket", "customer", "numbers", "slides", "weekend", "coffee", "ok",
+        "maybe", "think", "need", "update", "morning", "afternoon", "quick", "question", "about",
+        "release", "notes", "branch", "merged", "waiting", "approval", "server", "down", "back", "up"
+    };
+    private static final String[] EVENT_TYPES = {"order.created", "order.paid", "order.shipped", "cart.updated"};
+
+    @Param({"chat", "json", "token"})
+    public String corpus;
+
+    @Param({"256", "4096"})
+    public int messageSize;
+
+    @Param({"true", "false"})
+    public boolean compress;
+
+    private Path directory;
+    private MessageService messageService;
+    private User sender;
+    private User recipient;
+    private String content;
+    private SecretKey aesKey;
+    private byte[] encrypted;
+    private boolean encryptedCompressed;
+    private long sent;
+
+    @Setup
+    public void setUp() throws Exception {
+        content = corpus(corpus, messageSize);
+        aesKey = CryptoUtil.generateAESKey();
+        encrypted = encrypt();
+        encryptedCompressed = compress && Compression.deflate(content.getBytes(StandardCharsets.UTF_8)) != null;
+
+        directory = BenchmarkFiles.createTempDirectory();
+        KeyPair keyPair = KeyScheme.X25519.generateKeyPair();
+        sender = new User("sender", null);
+        recipient = new User("recipient", null);
+        recipient.setPublicKey(keyPair.getPublic());
+        messageService = new MessageService(directory);
+        messageService.setSessionMode(true);
+        messageService.setCompressionThreshold(compress ? 1 : 0);
+        sent = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        messageService.close();
+        if (sent > 0) {
+            System.out.printf("%n%s/%d compress=%s: plaintext %d B, ciphertext %d B, inbox %.1f B per message%n",
+                    corpus, messageSize, compress, content.getBytes(StandardCharsets.UTF_8).length,
+                    encrypted.length, (double) directorySize(directory) / sent);
+        }
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        byte[] plainBytes = content.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = compress ? Compression.deflate(plainBytes) : null;
+        byte[] stored = compressed != null ? compressed : plainBytes;
+        byte[] out = new byte[CryptoUtil.encryptedSize(stored.length)];
+        CryptoUtil.encryptAES(ByteBuffer.wrap(stored), ByteBuffer.wrap(out), aesKey);
+        return out;
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        byte[] plainBytes = new byte[CryptoUtil.decryptedSize(encrypted.length)];
+        int length = CryptoUtil.decryptAES(ByteBuffer.wrap(encrypted), ByteBuffer.wrap(plainBytes), aesKey);
+        return Compression.toText(plainBytes, length, encryptedCompressed);
+    }
+
+    @Benchmark
+    public void sendMessage() throws Exception {
+        messageService.sendMessage(sender, recipient, content);
+        recipient.setInbox(null); // Do not let the in-memory inbox grow across invocations
+        sent++;
+    }
+
+    // Builds a deterministic message of about the given size from the named corpus
+    static String corpus(String name, int size) {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(size + 128);
+        switch (name) {
+            case "chat":
+                while (text.length() < size) {
+                    int words = 4 + random.nextInt(12);
+                    for (int i = 0; i < words; i++) {
+                        text.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+                    }
+                    text.append(random.nextInt(4) == 0 ? "? " : ". ");
+                }
+                break;
+            case "json":
+                text.append('[');
+                while (text.length() < size) {
+                    text.append(String.format(
+                            "{\"id\":%d,\"type\":\"%s\",\"user\":\"user-%d\",\"amount\":%d.%02d,\"currency\":\"EUR\",\"ts\":\"2024-05-%02dT%02d:%02d:%02dZ\"},",
+                            random.nextInt(1_000_000), EVENT_TYPES[random.nextInt(EVENT_TYPES.length)],
+                            random.nextInt(10_000), random.nextInt(500), random.nextInt(100),
+                            1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60)));
+                }
+                text.setCharAt(text.length() - 1, ']');
+                break;
+            case "token":
+                byte[] bytes = new byte[size];
+                random.nextBytes(bytes);
+                text.append(Base64.getEncoder().encodeToString(bytes));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown corpus: " + name);
+        }
+        return text.substring(0, size);
+    }
+
+    private static long directorySize(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+}
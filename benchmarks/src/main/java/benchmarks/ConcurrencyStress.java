@@ -0,0 +1,208 @@
+package benchmarks;
+
+import model.DecryptedMessage;
+import model.User;
+import service.MessageService;
+import service.PasswordHashing;
+import service.UserService;
+import util.KeyScheme;
+import util.PasswordHasher;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress check for the services under parallel load. Not a JMH benchmark; run it with
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar benchmarks.ConcurrencyStress [threads] [messages]
+ * </pre>
+ * It registers the same usernames from many threads at once and expects exactly one winner per
+ * name, registers them all again and expects no winner and every winner's key pair unchanged,
+ * then has every thread send {@code messages} messages to a few shared recipients, with and
+ * without session keys, and expects every message exactly once in each inbox after reopening
+ * the store. Exits with status 1 if any check fails.
+ */
+public class ConcurrencyStress {
+
+    private static final int USERNAMES = 16;
+    private static final int RECIPIENTS = 3;
+
+    private static final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Runs the stress check.
+     * @param args thread count and messages per thread, both optional
+     * @throws Exception if setup fails
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        Path directory = BenchmarkFiles.createTempDirectory();
+        try {
+            checkRegistrations(directory.resolve("users"), threads);
+            checkSends(directory.resolve("inboxes"), threads, messages, false);
+            checkSends(directory.resolve("sessions"), threads, messages, true);
+        } finally {
+            BenchmarkFiles.deleteRecursively(directory);
+        }
+
+        if (failures.isEmpty()) {
+            System.out.println("OK");
+        } else {
+            failures.forEach(System.out::println);
+            System.exit(1);
+        }
+    }
+
+    private static void checkRegistrations(Path directory, int threads) throws Exception {
+        Files.createDirectories(directory);
+        UserService userService = new UserService(directory);
+        userService.setKeyScheme(KeyScheme.X25519);
+        // Registration races are the subject here, not key derivation cost
+        userService.setPasswordHashing(new PasswordHashing(PasswordHasher.pbkdf2(1_000), threads,
+                PasswordHashing.DEFAULT_QUEUE_CAPACITY, 0));
+
+        AtomicInteger registered = new AtomicInteger();
+        Map<String, User> winners = new ConcurrentHashMap<>();
+        Map<String, Integer> winnerThreads = new ConcurrentHashMap<>();
+        runConcurrently(threads, thread -> {
+            for (int i = 0; i < USERNAMES; i++) {
+                try {
+                    winners.put("user" + i, userService.register("user" + i, "password" + thread));
+                    winnerThreads.put("user" + i, thread);
+                    registered.incrementAndGet();
+                } catch (IllegalArgumentException e) {
+                    // Another thread won this username
+                }
+            }
+        });
+        check(registered.get() == USERNAMES, "registrations: " + registered.get() + " winners for " + USERNAMES + " names");
+
+        // Every name is taken now; a late registration must neither win nor touch the keys
+        AtomicInteger late = new AtomicInteger();
+        runConcurrently(threads, thread -> {
+            for (int i = 0; i < USERNAMES; i++) {
+                try {
+                    userService.register("user" + i, "late" + thread);
+                    late.incrementAndGet();
+                } catch (IllegalArgumentException e) {
+                    // Expected
+                }
+            }
+        });
+        check(late.get() == 0, "registrations: " + late.get() + " registrations of taken names succeeded");
+
+        UserService reopened = new UserService(directory);
+        for (int i = 0; i < USERNAMES; i++) {
+            String username = "user" + i;
+            check(reopened.userExists(username), "registrations: " + username + " missing after reopen");
+            User winner = winners.get(username);
+            if (winner == null) {
+                continue;
+            }
+            User loggedIn = reopened.login(username, "password" + winnerThreads.get(username));
+            check(loggedIn.getPublicKey().equals(winner.getPublicKey())
+                    && loggedIn.getPrivateKey().equals(winner.getPrivateKey()),
+                    "registrations: " + username + " key pair changed after a late registration");
+        }
+        System.out.println("Registrations: " + registered.get() + " of " + (threads * USERNAMES) + " attempts succeeded");
+    }
+
+    private static void checkSends(Path directory, int threads, int messages, boolean sessionMode) throws Exception {
+        KeyPair keyPair = KeyScheme.X25519.generateKeyPair();
+        List<User> recipients = new ArrayList<>();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            User recipient = new User("recipient" + i, null);
+            recipient.setPublicKey(keyPair.getPublic());
+            recipient.setPrivateKey(keyPair.getPrivate());
+            recipients.add(recipient);
+        }
+
+        long start = System.nanoTime();
+        try (MessageService messageService = new MessageService(directory)) {
+            messageService.setSessionMode(sessionMode);
+            runConcurrently(threads, thread -> {
+                User sender = new User("sender" + thread, null);
+                for (int m = 0; m < messages; m++) {
+                    User recipient = recipients.get(m % RECIPIENTS);
+                    messageService.sendMessage(sender, recipient, thread + ":" + m);
+                }
+            });
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int total = threads * messages;
+        try (MessageService messageService = new MessageService(directory)) {
+            for (int r = 0; r < RECIPIENTS; r++) {
+                User recipient = new User("recipient" + r, null);
+                recipient.setPrivateKey(keyPair.getPrivate());
+                messageService.loadMessages(recipient);
+
+                Set<String> expected = new HashSet<>();
+                for (int thread = 0; thread < threads; thread++) {
+                    for (int m = r; m < messages; m += RECIPIENTS) {
+                        expected.add(thread + ":" + m);
+                    }
+                }
+                Set<String> seen = ConcurrentHashMap.newKeySet();
+                int size = recipient.getInbox().size();
+                messageService.decryptInbox(recipient, 0, size, message -> record(message, seen));
+                check(size == expected.size(), "sends: recipient" + r + " has " + size + " messages, expected " + expected.size());
+                check(seen.equals(expected), "sends: recipient" + r + " content differs from what was sent");
+            }
+        }
+        System.out.printf("Sends (session mode %s): %d messages from %d threads, %.0f messages/s%n",
+                sessionMode, total, threads, total / seconds);
+    }
+
+    private static void record(DecryptedMessage message, Set<String> seen) {
+        if (!message.isDecrypted()) {
+            failures.add("sends: message " + message.getIndex() + " failed to decrypt: " + message.getError());
+        } else if (!seen.add(message.getContent())) {
+            failures.add("sends: duplicate message " + message.getContent());
+        }
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runConcurrently(int threads, Worker worker) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> started = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    worker.run(index);
+                } catch (Exception e) {
+                    failures.add("thread " + index + " failed: " + e);
+                }
+            });
+            started.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : started) {
+            thread.join();
+        }
+    }
+
+    private static void check(boolean condition, String failure) {
+        if (!condition) {
+            failures.add(failure);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.CryptoUtil;
+import util.KeyUtil;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AES-GCM and RSA-OAEP primitives from {@link CryptoUtil}, including the
+ * {@code ByteBuffer} AES-GCM overloads on direct buffers.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBenchmark {
+
+    @Param({"64", "1024", "16384", "1048576"})
+    public int messageSize;
+
+    private String plainText;
+    private SecretKey aesKey;
+    private byte[] aesCipherText;
+    private KeyPair keyPair;
+    private byte[] wrappedKey;
+    private ByteBuffer plainBuffer;
+    private ByteBuffer cipherBuffer;
+    private ByteBuffer outBuffer;
+
+    @Setup
+    public void setUp() throws Exception {
+        plainText = BenchmarkFiles.text(messageSize);
+        aesKey = CryptoUtil.generateAESKey();
+        aesCipherText = CryptoUtil.encryptAES(plainText, aesKey);
+        keyPair = KeyUtil.generateRSAKeyPair();
+        wrappedKey = CryptoUtil.encryptRSA(aesKey.getEncoded(), keyPair.getPublic());
+
+        byte[] plainBytes = plainText.getBytes(StandardCharsets.UTF_8);
+        plainBuffer = ByteBuffer.allocateDirect(plainBytes.length).put(plainBytes).flip();
+        cipherBuffer = ByteBuffer.allocateDirect(CryptoUtil.encryptedSize(plainBytes.length));
+        outBuffer = ByteBuffer.allocateDirect(CryptoUtil.encryptedSize(plainBytes.length));
+        CryptoUtil.encryptAES(plainBuffer.duplicate(), cipherBuffer, aesKey);
+        cipherBuffer.flip();
+    }
+
+    @Benchmark
+    public byte[] encryptAES() throws Exception {
+        return CryptoUtil.encryptAES(plainText, aesKey);
+    }
+
+    @Benchmark
+    public String decryptAES() throws Exception {
+        return CryptoUtil.decryptAES(aesCipherText, aesKey);
+    }
+
+    @Benchmark
+    public int encryptAESDirectBuffer() throws Exception {
+        outBuffer.clear();
+        return CryptoUtil.encryptAES(plainBuffer.duplicate(), outBuffer, aesKey);
+    }
+
+    @Benchmark
+    public int decryptAESDirectBuffer() throws Exception {
+        outBuffer.clear();
+        return CryptoUtil.decryptAES(cipherBuffer.duplicate(), outBuffer, aesKey);
+    }
+
+    @Benchmark
+    public byte[] encryptRSA() throws Exception {
+        return CryptoUtil.encryptRSA(aesKey.getEncoded(), keyPair.getPublic());
+    }
+
+    @Benchmark
+    public byte[] decryptRSA() throws Exception {
+        return CryptoUtil.decryptRSA(wrappedKey, keyPair.getPrivate());
+    }
+}
@@ -0,0 +1,101 @@
+package benchmarks;
+
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import service.MessageService;
+import util.KeyScheme;
+
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Durable delivery throughput with many concurrent senders, each waiting until its message is on
+ * disk. A batch size of 1 forces the inbox once per message; larger batches share one force per
+ * inbox across every message committed together. A linger only helps senders that do not wait,
+ * so here it mostly adds latency. Session mode keeps key wrapping out of the way.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class GroupCommitBenchmark {
+
+    private static final int RECIPIENTS = 4;
+
+    @State(Scope.Benchmark)
+    public static class Store {
+
+        @Param({"1", "64", "256"})
+        public int maxBatchSize;
+
+        @Param({"0", "2"})
+        public int maxLingerMillis;
+
+        @Param({"256"})
+        public int messageSize;
+
+        private Path directory;
+        private MessageService messageService;
+        private KeyPair keyPair;
+        private String content;
+        private final AtomicInteger senders = new AtomicInteger();
+
+        @Setup
+        public void setUp() throws Exception {
+            directory = BenchmarkFiles.createTempDirectory();
+            content = BenchmarkFiles.text(messageSize);
+            keyPair = KeyScheme.X25519.generateKeyPair();
+            messageService = new MessageService(directory);
+            messageService.setSessionMode(true);
+            messageService.setGroupCommit(maxBatchSize, Duration.ofMillis(maxLingerMillis));
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            messageService.close();
+            BenchmarkFiles.deleteRecursively(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Sender {
+        private User sender;
+        private User[] recipients;
+        private int next;
+
+        @Setup
+        public void setUp(Store store) {
+            sender = new User("sender" + store.senders.getAndIncrement(), null);
+            recipients = new User[RECIPIENTS];
+            for (int i = 0; i < RECIPIENTS; i++) {
+                recipients[i] = new User("recipient" + i, null);
+                recipients[i].setPublicKey(store.keyPair.getPublic());
+            }
+        }
+    }
+
+    @Benchmark
+    public Object sendDurably(Store store, Sender sender) throws Exception {
+        User recipient = sender.recipients[sender.next++ % RECIPIENTS];
+        Object message = store.messageService.sendMessageAsync(sender.sender, recipient, store.content).join();
+        recipient.setInbox(null); // Do not let the in-memory inbox grow across invocations
+        return message;
+    }
+}
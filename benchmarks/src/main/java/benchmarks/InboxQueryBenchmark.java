@@ -0,0 +1,107 @@
+package benchmarks;
+
+import model.Message;
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.MessageService;
+import util.KeyScheme;
+
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetching the newest page of an inbox of {@code inboxSize} messages, sent one second apart,
+ * through the timestamp index or after a read cursor, compared with loading the whole inbox and
+ * taking its tail.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InboxQueryBenchmark {
+
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"1000", "100000", "1000000"})
+    public int inboxSize;
+
+    private Path directory;
+    private MessageService messageService;
+    private User recipient;
+    private LocalDateTime lastHour;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = BenchmarkFiles.createTempDirectory();
+        KeyPair keyPair = KeyScheme.X25519.generateKeyPair();
+        User sender = new User("sender", null);
+        recipient = new User("recipient", null);
+        recipient.setPublicKey(keyPair.getPublic());
+
+        messageService = new MessageService(directory);
+        messageService.sendMessage(sender, recipient, BenchmarkFiles.text(256));
+        Message template = recipient.getInbox().get(0);
+
+        // Copies of one real message, one second apart, written in a single bulk rewrite
+        LocalDateTime now = template.getTimestamp();
+        List<Message> inbox = new ArrayList<>(inboxSize);
+        for (int i = inboxSize - 1; i >= 0; i--) {
+            inbox.add(new Message(template.getEncryptedContent(), template.getEncryptedAESKey(),
+                    template.getSenderUsername(), now.minusSeconds(i)));
+        }
+        recipient.setInbox(inbox);
+        messageService.saveMessages(recipient);
+        recipient.setInbox(null);
+        lastHour = now.minusHours(1);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        messageService.close();
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public List<Message> newestPageIndexed() throws Exception {
+        return messageService.getInbox(recipient, null, null, 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Message> lastHourPageIndexed() throws Exception {
+        return messageService.getInbox(recipient, lastHour, null, 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Message> newSinceCursor() throws Exception {
+        return messageService.fetchSince(recipient, inboxSize - 1 - PAGE_SIZE, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Message> newestPageFullLoad() {
+        User user = new User(recipient.getUsername(), null);
+        messageService.loadMessages(user);
+        List<Message> inbox = user.getInbox();
+        List<Message> page = new ArrayList<>(PAGE_SIZE);
+        for (int i = inbox.size() - 1; i >= Math.max(0, inbox.size() - PAGE_SIZE); i--) {
+            page.add(inbox.get(i));
+        }
+        return page;
+    }
+}
@@ -0,0 +1,90 @@
+package benchmarks;
+
+import model.Message;
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.MessageService;
+import util.KeyScheme;
+
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registration key generation and per-message send and receive cost for each {@link KeyScheme}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeySchemeBenchmark {
+
+    @Param({"RSA", "X25519"})
+    public String scheme;
+
+    @Param({"256"})
+    public int messageSize;
+
+    private KeyScheme keyScheme;
+    private Path directory;
+    private MessageService messageService;
+    private User sender;
+    private User recipient;
+    private String content;
+    private Message received;
+
+    @Setup
+    public void setUp() throws Exception {
+        keyScheme = KeyScheme.forName(scheme);
+        directory = BenchmarkFiles.createTempDirectory();
+        content = BenchmarkFiles.text(messageSize);
+
+        KeyPair keyPair = keyScheme.generateKeyPair();
+        sender = new User("sender", null);
+        recipient = new User("recipient", null);
+        recipient.setPublicKey(keyPair.getPublic());
+        recipient.setPrivateKey(keyPair.getPrivate());
+
+        messageService = new MessageService(directory);
+        messageService.sendMessage(sender, recipient, content);
+        List<Message> inbox = recipient.getInbox();
+        received = inbox.get(inbox.size() - 1);
+        recipient.setInbox(null);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        messageService.close();
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public KeyPair generateKeyPair() throws Exception {
+        return keyScheme.generateKeyPair();
+    }
+
+    @Benchmark
+    public void sendMessage() throws Exception {
+        messageService.sendMessage(sender, recipient, content);
+        recipient.setInbox(null); // Do not let the in-memory inbox grow across invocations
+    }
+
+    @Benchmark
+    public String receiveMessage() throws Exception {
+        return messageService.decrypt(recipient, received);
+    }
+}
@@ -0,0 +1,99 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import storage.UserKeyStore;
+import util.KeyScheme;
+import util.KeyUtil;
+
+import java.nio.file.Path;
+import java.security.Key;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading keys at login (key pair) and send time (public key) from the single mapped key store,
+ * compared with the legacy pair of Java-serialized key files per user. Every user shares one
+ * key pair, since only lookup and decoding are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyStoreBenchmark {
+
+    @Param({"RSA", "X25519"})
+    public String scheme;
+
+    @Param({"1000", "10000"})
+    public int users;
+
+    private Path directory;
+    private UserKeyStore keyStore;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = BenchmarkFiles.createTempDirectory();
+        KeyPair keyPair = KeyScheme.forName(scheme).generateKeyPair();
+        keyStore = UserKeyStore.open(directory.resolve("keys.log"), null);
+        for (int i = 0; i < users; i++) {
+            keyStore.put(username(i), keyPair);
+            KeyUtil.saveKeyToFile(keyPair.getPublic(), legacyFile(i, "public"));
+            KeyUtil.saveKeyToFile(keyPair.getPrivate(), legacyFile(i, "private"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public KeyPair loginKeyStore() throws Exception {
+        return keyStore.getKeyPair(username(nextUser()));
+    }
+
+    @Benchmark
+    public Key[] loginLegacyFiles() throws Exception {
+        int user = nextUser();
+        return new Key[] {KeyUtil.loadKeyFromFile(legacyFile(user, "public")),
+                KeyUtil.loadKeyFromFile(legacyFile(user, "private"))};
+    }
+
+    @Benchmark
+    public Key publicKeyKeyStore() throws Exception {
+        return keyStore.getPublicKey(username(nextUser()));
+    }
+
+    @Benchmark
+    public Key publicKeyLegacyFile() throws Exception {
+        return KeyUtil.loadKeyFromFile(legacyFile(nextUser(), "public"));
+    }
+
+    private int nextUser() {
+        next = (next + 7919) % users;
+        return next;
+    }
+
+    private static String username(int i) {
+        return "user" + i;
+    }
+
+    private String legacyFile(int i, String kind) {
+        return directory.resolve(username(i) + "_" + kind + ".key").toString();
+    }
+}
@@ -0,0 +1,90 @@
+package benchmarks;
+
+import model.Message;
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.MessageService;
+import util.KeyUtil;
+
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end send and inbox load against a recipient whose inbox already holds
+ * {@code inboxSize} messages. Each trial works in its own temporary directory.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageServiceBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int inboxSize;
+
+    @Param({"256"})
+    public int messageSize;
+
+    private Path directory;
+    private MessageService messageService;
+    private User sender;
+    private User recipient;
+    private String content;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = BenchmarkFiles.createTempDirectory();
+        content = BenchmarkFiles.text(messageSize);
+
+        KeyPair keyPair = KeyUtil.generateRSAKeyPair();
+        sender = new User("sender", null);
+        recipient = new User("recipient", null);
+        recipient.setPublicKey(keyPair.getPublic());
+        recipient.setPrivateKey(keyPair.getPrivate());
+
+        messageService = new MessageService(directory);
+
+        // Fill the inbox with copies of one real message in a single bulk write
+        messageService.sendMessage(sender, recipient, content);
+        Message template = recipient.getInbox().get(0);
+        recipient.setInbox(Collections.nCopies(inboxSize, template));
+        messageService.saveMessages(recipient);
+        recipient.setInbox(null);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        messageService.close();
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void sendMessage() throws Exception {
+        messageService.sendMessage(sender, recipient, content);
+        recipient.setInbox(null); // Do not let the in-memory inbox grow across invocations
+    }
+
+    @Benchmark
+    public Message loadMessagesNewest() {
+        User user = new User(recipient.getUsername(), null);
+        messageService.loadMessages(user);
+        List<Message> inbox = user.getInbox();
+        return inbox.get(inbox.size() - 1);
+    }
+}
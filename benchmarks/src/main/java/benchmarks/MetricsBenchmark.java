@@ -0,0 +1,88 @@
+package benchmarks;
+
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import service.MessageService;
+import util.KeyScheme;
+
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the metrics subsystem: timing an empty operation and bumping a counter from four
+ * threads, and a session-mode send (the cheapest instrumented path) with metrics on and off.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private static final Histogram TIMER = Metrics.timer("benchmark.empty");
+    private static final Counter COUNTER = Metrics.counter("benchmark.counter");
+
+    @Param({"true", "false"})
+    public boolean enabled;
+
+    private Path directory;
+    private MessageService messageService;
+    private User sender;
+    private User recipient;
+    private String content;
+
+    @Setup
+    public void setUp() throws Exception {
+        Metrics.setEnabled(enabled);
+        directory = BenchmarkFiles.createTempDirectory();
+        KeyPair keyPair = KeyScheme.X25519.generateKeyPair();
+        sender = new User("sender", null);
+        recipient = new User("recipient", null);
+        recipient.setPublicKey(keyPair.getPublic());
+        content = BenchmarkFiles.text(256);
+        messageService = new MessageService(directory);
+        messageService.setSessionMode(true);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        messageService.close();
+        BenchmarkFiles.deleteRecursively(directory);
+        Metrics.setEnabled(true);
+    }
+
+    @Benchmark
+    public void timeEmptyOperation() {
+        TIMER.recordSince(Metrics.start());
+    }
+
+    @Benchmark
+    public void incrementCounter() {
+        COUNTER.increment();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void sendMessage() throws Exception {
+        messageService.sendMessage(sender, recipient, content);
+        recipient.setInbox(null); // Do not let the in-memory inbox grow across invocations
+    }
+}
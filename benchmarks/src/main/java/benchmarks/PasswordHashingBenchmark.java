@@ -0,0 +1,79 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.PasswordHashing;
+import util.PasswordHasher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a login's password check: PBKDF2 verification at several iteration counts through the
+ * bounded worker pool, a repeated login answered from the verification cache, and the legacy
+ * unsalted SHA-256 check it replaces.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordHashingBenchmark {
+
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @Param({"100000", "600000"})
+    public int iterations;
+
+    private PasswordHashing uncached;
+    private PasswordHashing cached;
+    private String pbkdf2Hash;
+    private String legacyHash;
+
+    @Setup
+    public void setUp() throws Exception {
+        PasswordHasher hasher = PasswordHasher.pbkdf2(iterations);
+        uncached = new PasswordHashing(hasher, 1, PasswordHashing.DEFAULT_QUEUE_CAPACITY, 0);
+        cached = new PasswordHashing(hasher, 1, PasswordHashing.DEFAULT_QUEUE_CAPACITY,
+                PasswordHashing.DEFAULT_CACHE_CAPACITY);
+        pbkdf2Hash = hasher.hash(PASSWORD);
+        legacyHash = PasswordHasher.LEGACY_SHA256.hash(PASSWORD);
+        cached.verify(PASSWORD, pbkdf2Hash);
+    }
+
+    @TearDown
+    public void tearDown() {
+        uncached.close();
+        cached.close();
+    }
+
+    @Benchmark
+    public String hashPbkdf2() throws Exception {
+        return uncached.hash(PASSWORD);
+    }
+
+    @Benchmark
+    public boolean verifyPbkdf2() throws Exception {
+        return uncached.verify(PASSWORD, pbkdf2Hash);
+    }
+
+    @Benchmark
+    public boolean verifyCached() throws Exception {
+        return cached.verify(PASSWORD, pbkdf2Hash);
+    }
+
+    @Benchmark
+    public boolean verifyLegacySha256() throws Exception {
+        return PasswordHasher.LEGACY_SHA256.verify(PASSWORD, legacyHash);
+    }
+}
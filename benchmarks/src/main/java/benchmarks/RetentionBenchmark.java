@@ -0,0 +1,104 @@
+package benchmarks;
+
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.MessageService;
+import util.KeyScheme;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Send latency while retention expires messages in the background. With {@code retention=count}
+ * each of 64 inboxes keeps its newest 1000 messages, and a thread enforces retention every 10 ms
+ * (far more often than the store's own maintenance task) to expose any contention with sends.
+ * The inbox bytes left on disk are printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RetentionBenchmark {
+
+    @Param({"off", "count"})
+    public String retention;
+
+    private Path directory;
+    private MessageService messageService;
+    private User sender;
+    private User[] recipients;
+    private String content;
+    private Thread enforcer;
+    private volatile boolean running;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = BenchmarkFiles.createTempDirectory();
+        content = BenchmarkFiles.text(256);
+        KeyPair keyPair = KeyScheme.X25519.generateKeyPair();
+        sender = new User("sender", null);
+        recipients = new User[64];
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = new User("recipient" + i, null);
+            recipients[i].setPublicKey(keyPair.getPublic());
+        }
+        messageService = new MessageService(directory);
+        messageService.setSessionMode(true);
+        if (retention.equals("count")) {
+            messageService.setRetention(null, 1000, 0);
+        }
+
+        running = true;
+        enforcer = new Thread(() -> {
+            while (running) {
+                messageService.enforceRetention();
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "retention-enforcer");
+        enforcer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        running = false;
+        enforcer.join();
+        messageService.close();
+        System.out.printf("%nretention=%s: %d KiB of inboxes on disk%n", retention, directorySize(directory) / 1024);
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void sendMessage() throws Exception {
+        User recipient = recipients[ThreadLocalRandom.current().nextInt(recipients.length)];
+        messageService.sendMessage(sender, recipient, content);
+        recipient.setInbox(null); // Do not let the in-memory inbox grow across invocations
+    }
+
+    private static long directorySize(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package benchmarks;
+
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import service.MessageService;
+import storage.StorageLayout;
+import util.KeyScheme;
+
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable delivery from 16 concurrent senders to many recipients, with one shard and writer
+ * thread compared with 64 shards divided among several writers. With one writer every inbox
+ * force is serialized; with several, inboxes in different shards are written and forced in
+ * parallel. Session mode keeps key wrapping out of the way.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class ShardedDeliveryBenchmark {
+
+    @Param({"1", "64"})
+    public int shards;
+
+    @Param({"1", "4", "8"})
+    public int writers;
+
+    @Param({"1024"})
+    public int recipients;
+
+    private Path directory;
+    private MessageService messageService;
+    private User sender;
+    private User[] users;
+    private String content;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = BenchmarkFiles.createTempDirectory();
+        content = BenchmarkFiles.text(256);
+        KeyPair keyPair = KeyScheme.X25519.generateKeyPair();
+        sender = new User("sender", null);
+        users = new User[recipients];
+        for (int i = 0; i < recipients; i++) {
+            users[i] = new User("recipient" + i, null);
+            users[i].setPublicKey(keyPair.getPublic());
+        }
+        messageService = new MessageService(new StorageLayout(directory, shards));
+        messageService.setSessionMode(true);
+        messageService.setGroupCommit(256, Duration.ZERO, writers);
+        // Open every inbox up front so the measurement only covers steady-state delivery
+        for (User user : users) {
+            messageService.sendMessageAsync(sender, user, content).join();
+            user.setInbox(null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        messageService.close();
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public Object sendDurably() throws Exception {
+        User recipient = users[ThreadLocalRandom.current().nextInt(users.length)];
+        Object message = messageService.sendMessageAsync(sender, recipient, content).join();
+        recipient.setInbox(null); // Do not let the in-memory inbox grow across invocations
+        return message;
+    }
+}